@@ -0,0 +1,35 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Entry point of the benchmark jar. Accepts the same command line options of the JMH runner (use -h for the list),
+ * but unless a result format is specified (-rf) the results are written in JSON format, to <code>jmh-result.json</code>
+ * or to the file specified with -rff, so that they can be compared between versions.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws IOException, RunnerException, CommandLineOptionException{
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if(cmdOptions.shouldHelp()){
+            cmdOptions.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        if(!cmdOptions.getResultFormat().hasValue()){
+            options.resultFormat(ResultFormatType.JSON);
+            if(!cmdOptions.getResult().hasValue())
+                options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import com.github.gianlucanitti.javaexpreval.CompactExpressionContext;
+import com.github.gianlucanitti.javaexpreval.Expression;
+import com.github.gianlucanitti.javaexpreval.ExpressionContext;
+import com.github.gianlucanitti.javaexpreval.ExpressionException;
+import com.github.gianlucanitti.javaexpreval.Function;
+import com.github.gianlucanitti.javaexpreval.UndefinedException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups of {@link ExpressionContext#getVariable(String)} and {@link ExpressionContext#getFunction(String, int)}
+ * in contexts with many symbols, and the evaluation of expressions that read a variable. Each invocation looks up a different symbol, cycling through all of them.
+ * The variables are kept in an {@link ExpressionContext} (<code>hash</code>) or in a {@link CompactExpressionContext} (<code>compact</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContextBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Param({"hash", "compact"})
+    public String store;
+
+    private ExpressionContext context;
+    private String[] names;
+    private Expression[] reads;
+    private int next;
+
+    @Setup
+    public void setup() throws ExpressionException{
+        context = store.equals("compact") ? new CompactExpressionContext() : new ExpressionContext();
+        names = new String[size];
+        reads = new Expression[size];
+        Expression body = Expression.parse("x+1");
+        for(int i = 0; i < size; i++){
+            names[i] = "sym" + i;
+            reads[i] = Expression.parse(names[i]);
+            context.setVariable(names[i], i);
+            context.setFunction(names[i], body, "x");
+        }
+    }
+
+    private int nextIndex(){
+        int index = next;
+        next = next + 1 == names.length ? 0 : next + 1;
+        return index;
+    }
+
+    private String nextName(){
+        return names[nextIndex()];
+    }
+
+    @Benchmark
+    public double getVariable() throws UndefinedException{
+        return context.getVariable(nextName());
+    }
+
+    @Benchmark
+    public double evalVariable() throws UndefinedException{
+        return reads[nextIndex()].eval(context, null, false);
+    }
+
+    @Benchmark
+    public Function getFunction() throws UndefinedException{
+        return context.getFunction(nextName(), 1);
+    }
+
+}
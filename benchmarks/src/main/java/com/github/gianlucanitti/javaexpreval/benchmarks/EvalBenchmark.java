@@ -0,0 +1,59 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import com.github.gianlucanitti.javaexpreval.Expression;
+import com.github.gianlucanitti.javaexpreval.ExpressionContext;
+import com.github.gianlucanitti.javaexpreval.ExpressionException;
+import com.github.gianlucanitti.javaexpreval.UndefinedException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Expression#eval(ExpressionContext)} of an already parsed expression, with and without logging the evaluation steps.
+ * The log is written to a {@link Writer} that discards it, so only the cost of formatting the steps is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+
+    private static final class DiscardingWriter extends Writer{
+        @Override
+        public void write(char[] cbuf, int off, int len){}
+
+        @Override
+        public void flush(){}
+
+        @Override
+        public void close(){}
+    }
+
+    private Expression expr;
+    private ExpressionContext context;
+    private Writer log;
+
+    @Setup
+    public void setup() throws ExpressionException{
+        expr = Expression.parse("(a*2+b^2-sqrt(c))/(1+abs(a-b))*-c");
+        context = new ExpressionContext();
+        context.setVariable("a", 3);
+        context.setVariable("b", 4.5);
+        context.setVariable("c", 16);
+        log = new DiscardingWriter();
+    }
+
+    @Benchmark
+    public double eval() throws UndefinedException{
+        return expr.eval(context);
+    }
+
+    @Benchmark
+    public double evalLogged() throws UndefinedException{
+        return expr.eval(context, log);
+    }
+
+}
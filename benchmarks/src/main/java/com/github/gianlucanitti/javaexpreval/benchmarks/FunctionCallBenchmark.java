@@ -0,0 +1,54 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import com.github.gianlucanitti.javaexpreval.Expression;
+import com.github.gianlucanitti.javaexpreval.ExpressionContext;
+import com.github.gianlucanitti.javaexpreval.ExpressionException;
+import com.github.gianlucanitti.javaexpreval.UndefinedException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of calling a user-defined function (a {@link com.github.gianlucanitti.javaexpreval.CustomFunction}),
+ * comparing the same computation written with calls, with its body written inline, and with a call to a built-in function.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FunctionCallBenchmark {
+
+    private Expression calls;
+    private Expression inline;
+    private Expression builtIn;
+    private ExpressionContext context;
+
+    @Setup
+    public void setup() throws ExpressionException{
+        context = new ExpressionContext();
+        context.setFunction("hyp", Expression.parse("sqrt(a*a+b*b)"), "a", "b");
+        context.setVariable("x", 3);
+        context.setVariable("y", 4);
+        calls = Expression.parse("hyp(x,y)+hyp(y,x)");
+        inline = Expression.parse("sqrt(x*x+y*y)+sqrt(y*y+x*x)");
+        builtIn = Expression.parse("sqrt(x)+sqrt(y)");
+    }
+
+    @Benchmark
+    public double customFunction() throws UndefinedException{
+        return calls.eval(context);
+    }
+
+    @Benchmark
+    public double inlineBody() throws UndefinedException{
+        return inline.eval(context);
+    }
+
+    @Benchmark
+    public double builtInFunction() throws UndefinedException{
+        return builtIn.eval(context);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import com.github.gianlucanitti.javaexpreval.InteractiveExpressionContext;
+import com.github.gianlucanitti.javaexpreval.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link InteractiveExpressionContext#update()} (the loop run by the command line tool)
+ * on a generated statement file which defines variables and functions, redefines them and evaluates expressions that use them.
+ * The verbose output (evaluation steps) can be enabled, like when the command line tool is not run with -q.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InteractiveBenchmark {
+
+    @Param({"10000"})
+    public int statements;
+
+    @Param({"false", "true"})
+    public boolean verbose;
+
+    private String input;
+    private InteractiveExpressionContext context;
+
+    @Setup(Level.Trial)
+    public void generateInput(){
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < statements; i++){
+            switch(i % 4){
+                case 0:
+                    sb.append("v").append(i % 100).append('=').append(i).append("/7\n");
+                    break;
+                case 1:
+                    sb.append("f").append(i % 50).append("(x,y)=x*v").append((i - 1) % 100).append("+y^2\n");
+                    break;
+                case 2:
+                    sb.append("f").append((i - 1) % 50).append("(v").append((i - 2) % 100).append(",").append(i).append(")*2-sqrt(").append(i).append(")\n");
+                    break;
+                default:
+                    sb.append("ans+v").append((i - 3) % 100).append("*(1+2*(3-4/5))\n");
+            }
+        }
+        input = sb.toString();
+    }
+
+    @Setup(Level.Invocation)
+    public void createContext(){
+        StringWriter output = new StringWriter();
+        Writer verboseOutput = verbose ? output : NullOutputStream.getWriter();
+        context = new InteractiveExpressionContext(new StringReader(input), output, verboseOutput, output, false);
+        context.setStopOnError(true);
+    }
+
+    @Benchmark
+    public InteractiveExpressionContext.Status update() throws IOException{
+        return context.update();
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.github.gianlucanitti.javaexpreval.benchmarks;
+
+import com.github.gianlucanitti.javaexpreval.Expression;
+import com.github.gianlucanitti.javaexpreval.ExpressionException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Expression#parse(String)}, and {@link Expression#readFrom(ByteBuffer)} on the binary encoding of the same expressions, on inputs with different shapes:
+ * <ul>
+ *     <li>shallow: a short sum of products of variables and constants;</li>
+ *     <li>deep: many nested parenthesis and function calls;</li>
+ *     <li>wide: a long flat sum of terms with mixed precedence.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"shallow", "deep", "wide"})
+    public String shape;
+
+    private String input;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws ExpressionException, IOException{
+        StringBuilder sb = new StringBuilder();
+        if(shape.equals("shallow"))
+            sb.append("a*2+b*3-c/4");
+        else if(shape.equals("deep")){
+            for(int i = 0; i < 200; i++)
+                sb.append(i % 2 == 0 ? "sqrt(" : "(1+");
+            sb.append("x");
+            for(int i = 0; i < 200; i++)
+                sb.append(')');
+        }else{
+            sb.append("x0");
+            for(int i = 1; i < 1000; i++)
+                sb.append(i % 3 == 0 ? "+" : i % 3 == 1 ? "*" : "-").append('x').append(i).append("^2");
+        }
+        input = sb.toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Expression.parse(input).writeTo(out);
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public Expression parse() throws ExpressionException{
+        return Expression.parse(input);
+    }
+
+    @Benchmark
+    public Expression readFrom() throws IOException{
+        return Expression.readFrom(ByteBuffer.wrap(encoded));
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The implementation of {@link ColumnKernels} that processes as many rows per instruction as the SIMD registers of the CPU can hold
+ * (for example 4 with AVX2 and 8 with AVX-512 on x86, 2 with NEON on ARM), using the Vector API.
+ * This is compiled only by the Maven profile for Java 16 or later and loaded by {@link ColumnKernels} through reflection,
+ * so the rest of the library doesn't depend on the incubator module.
+ */
+final class VectorKernels extends ColumnKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Initializes a VectorKernels.
+     * @throws UnsupportedOperationException if the CPU can't process more than one double at a time, so the scalar loops are faster.
+     */
+    VectorKernels(){
+        if(SPECIES.length() < 2)
+            throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Applies an operation to the rows that fill whole vectors.
+     * @return The number of rows processed; the remaining ones (less than a vector) are left to the caller's scalar loop.
+     */
+    private static int lanewise(VectorOperators.Binary op, double[] a, int ao, double[] b, int bo, double[] out, int length){
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, a, ao + i).lanewise(op, DoubleVector.fromArray(SPECIES, b, bo + i)).intoArray(out, i);
+        return i;
+    }
+
+    private static int lanewise(VectorOperators.Unary op, double[] a, int ao, double[] out, int length){
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, a, ao + i).lanewise(op).intoArray(out, i);
+        return i;
+    }
+
+    @Override
+    void add(double[] a, int ao, double[] b, int bo, double[] out, int length){
+        for(int i = lanewise(VectorOperators.ADD, a, ao, b, bo, out, length); i < length; i++)
+            out[i] = a[ao + i] + b[bo + i];
+    }
+
+    @Override
+    void sub(double[] a, int ao, double[] b, int bo, double[] out, int length){
+        for(int i = lanewise(VectorOperators.SUB, a, ao, b, bo, out, length); i < length; i++)
+            out[i] = a[ao + i] - b[bo + i];
+    }
+
+    @Override
+    void mul(double[] a, int ao, double[] b, int bo, double[] out, int length){
+        for(int i = lanewise(VectorOperators.MUL, a, ao, b, bo, out, length); i < length; i++)
+            out[i] = a[ao + i] * b[bo + i];
+    }
+
+    @Override
+    void div(double[] a, int ao, double[] b, int bo, double[] out, int length){
+        for(int i = lanewise(VectorOperators.DIV, a, ao, b, bo, out, length); i < length; i++)
+            out[i] = a[ao + i] / b[bo + i];
+    }
+
+    @Override
+    void neg(double[] a, int ao, double[] out, int length){
+        for(int i = lanewise(VectorOperators.NEG, a, ao, out, length); i < length; i++)
+            out[i] = -a[ao + i];
+    }
+
+    @Override
+    void abs(double[] a, int ao, double[] out, int length){
+        for(int i = lanewise(VectorOperators.ABS, a, ao, out, length); i < length; i++)
+            out[i] = Math.abs(a[ao + i]);
+    }
+
+    @Override
+    void sqrt(double[] a, int ao, double[] out, int length){
+        for(int i = lanewise(VectorOperators.SQRT, a, ao, out, length); i < length; i++)
+            out[i] = Math.sqrt(a[ao + i]);
+    }
+
+}
@@ -2,6 +2,9 @@ package com.github.gianlucanitti;
 
 import com.github.gianlucanitti.javaexpreval.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Main class of the command line tool that solves expression given as CLI arguments.
@@ -12,6 +15,8 @@ import java.io.*;
  */
 public class ExprCli {
 
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
     private static class CliOptions{
 
         private boolean quiet = false;
@@ -21,6 +26,10 @@ public class ExprCli {
         private String inputFile = null;
         private String outputFile = null;
         private String statements = "";
+        private int cacheSize = 0;
+        private String mapExpression = null;
+        private int threads = 0;
+        private String contextFile = null;
 
         private CliOptions(String[] args){
             int i = 0;
@@ -35,6 +44,14 @@ public class ExprCli {
                     outputFile = args[++i];
                 else if(args[i].equals("-f") || args[i].equals("--fail-on-error"))
                     failOnError = true;
+                else if(args[i].equals("-c") || args[i].equals("--cache"))
+                    cacheSize = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-p") || args[i].equals("--parallel"))
+                    threads = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-x") || args[i].equals("--context"))
+                    contextFile = args[++i];
+                else if(args[i].equals("-m") || args[i].equals("--map"))
+                    mapExpression = args[++i];
                 else if(args[i].equals("-h") || args[i].equals("--help"))
                     help = true;
                 else
@@ -46,23 +63,40 @@ public class ExprCli {
     }
 
     private static InteractiveExpressionContext context;
+    private static ExecutorService executor; //null if statements are executed sequentially
 
     private static void updateSafe() throws Exception{
         if(context.update() == InteractiveExpressionContext.Status.ERROR)
             throw new Exception();
     }
 
+    private static void updateParallelSafe() throws Exception{
+        if(executor == null)
+            updateSafe();
+        else if(context.update(executor) == InteractiveExpressionContext.Status.ERROR)
+            throw new Exception();
+    }
+
     private static void showHelp(){
         String nl = System.getProperty("line.separator");
         System.out.println("CLI tool help (for help on expression/statement syntax, run without arguments then write help in the java-expr-eval prompt)" + nl +
                 " Usage: java -jar javaexpreval-VERSION.jar [options] [statements]" + nl +
                 " Options:" + nl +
                 "  -b, --batch                Batch mode, don't read from stdin and exit after statements in input file and/or command line are executed." + nl +
+                "  -c <n>, --cache <n>        Keep the last <n> parsed expressions in memory, so that repeated statements aren't parsed again" + nl +
                 "  -f, --fail-on-error        Exit (with status code 1) if an error occurs while executing statements from any source" + nl +
                 "  -h, --help                 Show this help message" + nl +
                 "  -i <file>, --input <file>  Read statements from <file> (one line = one statement)" + nl +
+                "  -m <expr>, --map <expr>    Map mode: read a CSV or TSV table with a header row from the input file (or stdin), evaluate <expr> for each row" +
+                " with the columns as variables, and write the table with an additional \"ans\" column of results to the output file (or stdout)." +
+                " The statements are executed before reading the table, without output (for example to define functions)." +
+                " If the input file is a binary column file, the output file (required) is written as a column file with the \"ans\" column only." + nl +
                 "  -o <file>, --output <file> Write output to <file>" + nl +
+                "  -p <n>, --parallel <n>     Read all the statements in input file and command line before executing them, and evaluate independent statements" +
+                " concurrently with <n> threads; the output and the final context are the same of sequential execution" + nl +
                 "  -q, --quiet                Don't be verbose (write results only, not evaluation steps)" + nl +
+                "  -x <file>, --context <file> Load the variables and functions saved in <file> (if it exists) before executing any statement," +
+                " and save the final context to <file> when all the statements are executed (except in map mode)" + nl +
                 " Statements will be processed in the following order: file (if -i/--input is specified), command line (if any, separated by spaces), standard input (if -b/--batch isn't specified)." + nl +
                 " When specifying expressions on the command line, please note that on some shells some math operators (like ^) may be special characters" +
                 " and thus won't be passed to the JVM and to the program. Enclosing expressions in double quotes can avoid this."
@@ -78,6 +112,8 @@ public class ExprCli {
         CliOptions options = new CliOptions(args);
         if(options.help)
             showHelp();
+        if(options.mapExpression != null)
+            System.exit(map(options));
         int exitCode = 0;
         try {
             Reader in = new InputStreamReader(System.in);
@@ -85,27 +121,38 @@ public class ExprCli {
             try {
                 context = new InteractiveExpressionContext();
                 context.setStopOnError(options.failOnError);
+                if (options.cacheSize > 0)
+                    context.setExpressionCache(new ExpressionCache(options.cacheSize));
+                if (options.threads > 1)
+                    executor = Executors.newFixedThreadPool(options.threads);
                 if (options.outputFile != null)
                     out = new FileWriter(options.outputFile);
                 context.setOutputWriter(out, true);
                 if (!options.quiet)
                     context.setVerboseOutputWriter(out, true);
-                context.setErrorOutputWriter(new OutputStreamWriter(System.err), true);
+                PrintWriter errorWriter = new PrintWriter(new OutputStreamWriter(System.err), true);
+                context.setErrorOutputWriter(errorWriter, true);
+                if (!loadContext(options, errorWriter))
+                    throw new Exception();
                 if (options.inputFile != null) {
                     in = new FileReader(options.inputFile);
                     context.setInputReader(in);
-                    updateSafe(); //process statements from file
+                    updateParallelSafe(); //process statements from file
                     in.close();
                 }
                 context.setInputReader(new StringReader(options.statements));
-                updateSafe(); //process statements from cli arguments
+                updateParallelSafe(); //process statements from cli arguments
                 if (!options.batch) {
                     context.setInputReader(new InputStreamReader(System.in));
                     if (options.outputFile == null)
                         context.setPrompt("> ");
                     updateSafe(); //process statements from stdin
                 }
+                if (!saveContext(options, errorWriter))
+                    throw new Exception();
             }finally{
+                if (executor != null)
+                    executor.shutdown();
                 in.close();
                 out.close();
             }
@@ -115,4 +162,191 @@ public class ExprCli {
         System.exit(exitCode);
     }
 
+    /**
+     * Restores the variables and functions saved in the context file (see {@link ExpressionContext#restore(File)}), if it's specified and it exists.
+     * @param options The command line options.
+     * @param errorWriter The writer for the error messages.
+     * @return <code>false</code> if the file can't be read, <code>true</code> otherwise.
+     */
+    private static boolean loadContext(CliOptions options, PrintWriter errorWriter){
+        if(options.contextFile == null || !new File(options.contextFile).exists())
+            return true;
+        try{
+            context.restore(new File(options.contextFile));
+            return true;
+        }catch(IOException ex){
+            errorWriter.println("Can't load the context from " + options.contextFile + ": " + ex.getMessage());
+        }catch(ExpressionException ex){
+            errorWriter.println("Can't load the context from " + options.contextFile + ": " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Saves the variables and functions of the context to the context file (see {@link ExpressionContext#snapshot(File)}), if it's specified.
+     * @param options The command line options.
+     * @param errorWriter The writer for the error messages.
+     * @return <code>false</code> if the file can't be written, <code>true</code> otherwise.
+     */
+    private static boolean saveContext(CliOptions options, PrintWriter errorWriter){
+        if(options.contextFile == null)
+            return true;
+        try{
+            context.snapshot(new File(options.contextFile)); //replaces the file only when the new snapshot is complete
+            return true;
+        }catch(IOException ex){
+            errorWriter.println("Can't save the context to " + options.contextFile + ": " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Runs the map mode: evaluates the expression for each row of a table read from the input file or stdin, appending the result to the row.
+     * The first row is the header with the names of the columns, which are used as variables; the fields are separated by tabs if the header contains a tab,
+     * otherwise by commas. Fields enclosed in double quotes are unquoted, but they can't contain separators.
+     * The rows are streamed through buffered I/O, so the memory used doesn't depend on the size of the table.
+     * If the input file is a binary column file (see {@link ColumnFile}), it's evaluated in place by {@link #mapColumns(CliOptions, PrintWriter)} instead.
+     * @param options The command line options.
+     * @return The exit code.
+     */
+    private static int map(CliOptions options){
+        PrintWriter errorWriter = new PrintWriter(new OutputStreamWriter(System.err), true);
+        try {
+            if(options.inputFile != null && ColumnFile.isColumnFile(new File(options.inputFile)))
+                return mapColumns(options, errorWriter);
+            BufferedReader in = new BufferedReader(options.inputFile != null ? new FileReader(options.inputFile) : new InputStreamReader(System.in), IO_BUFFER_SIZE);
+            Writer out = null;
+            try {
+                out = new BufferedWriter(options.outputFile != null ? new FileWriter(options.outputFile) : new OutputStreamWriter(System.out), IO_BUFFER_SIZE);
+                context = new InteractiveExpressionContext(new StringReader(options.statements), NullOutputStream.getWriter(), NullOutputStream.getWriter(), errorWriter, true);
+                context.setStopOnError(true);
+                if(!loadContext(options, errorWriter))
+                    return 1;
+                if(context.update() == InteractiveExpressionContext.Status.ERROR)
+                    return 1;
+                return mapRows(Expression.parse(options.mapExpression), in, out, errorWriter, options.failOnError);
+            }finally{
+                in.close();
+                if(out != null)
+                    out.close();
+            }
+        }catch(ExpressionException ex){
+            errorWriter.println(ex.getMessage());
+        }catch(IOException ex){
+            errorWriter.println(ex.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * Runs the map mode on a binary column file (see {@link ColumnFile}): the columns of the input file and the result column of the output file
+     * are memory-mapped and evaluated in place, without any text conversion.
+     * @param options The command line options.
+     * @param errorWriter The writer for the error messages.
+     * @return The exit code.
+     */
+    private static int mapColumns(CliOptions options, PrintWriter errorWriter) throws IOException, ExpressionException{
+        if(options.outputFile == null){
+            errorWriter.println("An output file (-o) is required when the input is a column file");
+            return 1;
+        }
+        if(new File(options.inputFile).getCanonicalFile().equals(new File(options.outputFile).getCanonicalFile())){ //creating the output would truncate the mapped input
+            errorWriter.println("The output file must be different from the input file when the input is a column file");
+            return 1;
+        }
+        context = new InteractiveExpressionContext(new StringReader(options.statements), NullOutputStream.getWriter(), NullOutputStream.getWriter(), errorWriter, true);
+        context.setStopOnError(true);
+        if(!loadContext(options, errorWriter))
+            return 1;
+        if(context.update() == InteractiveExpressionContext.Status.ERROR)
+            return 1;
+        Expression expr = Expression.parse(options.mapExpression);
+        ColumnFile input = ColumnFile.open(new File(options.inputFile));
+        ColumnFile output = ColumnFile.create(new File(options.outputFile), input.getRowCount(), "ans");
+        expr.evalBatch(context, input.getColumns(), output.getColumn("ans"));
+        output.force();
+        return 0;
+    }
+
+    private static int mapRows(Expression expr, BufferedReader in, Writer out, PrintWriter errorWriter, boolean failOnError) throws IOException, UndefinedException{
+        String header = in.readLine();
+        if(header == null)
+            return 0;
+        char separator = header.indexOf('\t') >= 0 ? '\t' : ',';
+        ArrayList<String> nameList = new ArrayList<String>();
+        for(int start = 0, end; start <= header.length(); start = end + 1){
+            end = header.indexOf(separator, start);
+            if(end < 0)
+                end = header.length();
+            String name = header.substring(start, end).trim();
+            if(name.length() >= 2 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"')
+                name = name.substring(1, name.length() - 1);
+            nameList.add(name);
+        }
+        String[] names = nameList.toArray(new String[nameList.size()]);
+        PreparedExpression prepared = expr.prepare(context, names);
+        boolean[] read = new boolean[names.length]; //only the columns read by the expression are parsed
+        for(String name: new PreparedExpression(expr, context).getVariableNames()){
+            int slot = prepared.getSlot(name);
+            if(slot >= 0)
+                read[slot] = true;
+        }
+        String nl = System.getProperty("line.separator");
+        out.write(header);
+        out.write(separator);
+        out.write("ans");
+        out.write(nl);
+        int exitCode = 0;
+        String line;
+        for(int lineNumber = 2; (line = in.readLine()) != null; lineNumber++){
+            if(line.length() == 0)
+                continue;
+            String result = "";
+            try {
+                int start = 0;
+                for(int i = 0; i < names.length; i++){
+                    if(start > line.length())
+                        throw new NumberFormatException("missing value of " + names[i]);
+                    int end = line.indexOf(separator, start);
+                    if(end < 0)
+                        end = line.length();
+                    if(read[i])
+                        prepared.setValue(i, parseField(line, start, end));
+                    start = end + 1;
+                }
+                result = Double.toString(prepared.eval());
+            }catch(NumberFormatException ex){ //an undefined symbol is an error for every row, so UndefinedException isn't caught here
+                errorWriter.println("Line " + lineNumber + ": " + ex.getMessage());
+                exitCode = 1;
+                if(failOnError)
+                    return exitCode;
+            }
+            out.write(line);
+            out.write(separator);
+            out.write(result);
+            out.write(nl);
+        }
+        return exitCode;
+    }
+
+    /**
+     * Parses the value of a field, ignoring the surrounding spaces and double quotes (if any).
+     * @param line The line that contains the field.
+     * @param start The index of the first character of the field.
+     * @param end The index after the last character of the field.
+     * @return The value of the field.
+     * @throws NumberFormatException if the field isn't a number.
+     */
+    private static double parseField(String line, int start, int end){
+        while(start < end && line.charAt(start) == ' ')
+            start++;
+        while(end > start && line.charAt(end - 1) == ' ')
+            end--;
+        if(end - start >= 2 && line.charAt(start) == '"' && line.charAt(end - 1) == '"'){
+            start++;
+            end--;
+        }
+        return Double.parseDouble(line.substring(start, end));
+    }
+
 }
@@ -0,0 +1,132 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.PrintWriter;
+
+/**
+ * An expression that reads an argument of the {@link CustomFunction} call it's evaluated in.
+ * {@link CustomFunction} replaces the variables with the names of its arguments with instances of this class when it's defined,
+ * so that the arguments of each call are passed through a frame (see {@link Expression#evalExpr(ExpressionContext, PrintWriter, double[])})
+ * instead of modifying the shared expression tree.
+ */
+final class ArgumentExpression extends Expression{
+
+    private final String name;
+    private final int index;
+
+    /**
+     * Initializes a new ArgumentExpression.
+     * @param name The name of the argument.
+     * @param index The position of the argument in the frame.
+     */
+    ArgumentExpression(String name, int index){
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * @return The name of the argument read by this expression.
+     */
+    String getName(){
+        return name;
+    }
+
+    /**
+     * @return The position in the frame of the argument read by this expression.
+     */
+    int getIndex(){
+        return index;
+    }
+
+    /**
+     * Returns a copy of the specified expression where the variables with the specified names are replaced by ArgumentExpressions
+     * that read them by position from the frame. The original expression is not modified.
+     * This is used by {@link CustomFunction} to bind its arguments and by {@link PreparedExpression} to bind the variables to slots.
+     * @param expr The expression to rewrite.
+     * @param names The names of the variables to replace, in frame order.
+     * An expression that references some of the names but can't be rewritten (see {@link Expression#withSubExpressions(Expression[])}) is wrapped in a {@link ScopedExpression}.
+     * @return The rewritten expression (or <code>expr</code> itself, if it doesn't reference any of the names).
+     */
+    static Expression bind(Expression expr, String[] names){
+        if(expr instanceof VariableExpression){
+            VariableExpression var = (VariableExpression)expr;
+            if(var.getBinding() == null)
+                for(int i = names.length - 1; i >= 0; i--) //if a name is repeated, the last one wins (like in Expression.bindVariables)
+                    if(names[i].equals(var.getName()))
+                        return new ArgumentExpression(names[i], i);
+            return expr;
+        }
+        if(expr instanceof ArgumentExpression){ //like a decoded body: its position may refer to another frame, so it's bound by name again
+            ArgumentExpression arg = (ArgumentExpression)expr;
+            for(int i = names.length - 1; i >= 0; i--)
+                if(names[i].equals(arg.name))
+                    return i == arg.index ? expr : new ArgumentExpression(names[i], i);
+            try{
+                return new VariableExpression(arg.name); //outside of its function, an argument reads the variable with its name
+            }catch(InvalidSymbolNameException ex){
+                throw new IllegalStateException(ex); //can't happen, the names of the arguments are validated when they're defined or decoded
+            }
+        }
+        Expression[] subExpressions = expr.getSubExpressions().clone();
+        boolean changed = false;
+        for(int i = 0; i < subExpressions.length; i++){
+            Expression bound = bind(subExpressions[i], names);
+            changed |= bound != subExpressions[i];
+            subExpressions[i] = bound;
+        }
+        if(!changed)
+            return expr;
+        Expression rewritten = expr.withSubExpressions(subExpressions);
+        return rewritten != expr ? rewritten : new ScopedExpression(expr, names); //an expression that can't be rewritten reads the arguments from a scope
+    }
+
+    /**
+     * @return An empty array of {@link Expression}s.
+     */
+    @Override
+    public Expression[] getSubExpressions(){
+        return new Expression[0];
+    }
+
+    /**
+     * Evaluated outside of a function call, an argument behaves like a {@link VariableExpression} with the same name.
+     */
+    @Override
+    protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
+        return context.getVariable(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+        return frame == null ? evalExpr(context, logWriter) : frame[index];
+    }
+
+    /**
+     * @return The name of the argument.
+     */
+    @Override
+    public String toString(){
+        return name;
+    }
+
+    /**
+     * Compares this expression with another object.
+     * @param other The object to compare to.
+     * @return <code>true</code> if <code>other</code> is an ArgumentExpression with the same name and index, <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object other){
+        return other instanceof ArgumentExpression && index == ((ArgumentExpression) other).index && name.equals(((ArgumentExpression) other).name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode(){
+        return 31 * name.hashCode() + index;
+    }
+
+}
@@ -0,0 +1,441 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates an {@link Expression} over many rows of variable values given as columns (one array or buffer of doubles per variable), used by
+ * {@link Expression#evalBatch(ExpressionContext, Map, double[])} and {@link Expression#evalBatch(ExpressionContext, Map, DoubleBuffer)}.
+ * Instead of walking the tree once per row, each node is evaluated over a chunk of rows at a time in a tight loop over primitive arrays
+ * (the loops of the basic operations are in {@link ColumnKernels}, which can use SIMD instructions).
+ * The intermediate results are stored in a few chunk-sized buffers that are reused for every chunk: a node evaluated at depth <i>d</i> of the
+ * operand stack writes to the buffer <i>d</i>, so the number of buffers is bounded by the depth of the tree, not by its size.
+ * Functions and the variables which aren't columns are resolved in the context once, when the evaluator is built.
+ * An evaluator is not thread-safe because of the buffers, but many evaluators can share the same columns:
+ * {@link #evalParallel(Expression, ExpressionContext, Map, double[], ForkJoinPool)} splits the rows into ranges evaluated by different evaluators in parallel.
+ */
+final class BatchEvaluator {
+
+    /**
+     * The number of rows evaluated by each pass over the tree; small enough for the buffers to stay in the CPU cache.
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The maximum number of rows of the ranges evaluated by each task of a parallel evaluation; large enough to make the cost of building an evaluator negligible.
+     */
+    static final int PARALLEL_RANGE_SIZE = 64 * CHUNK_SIZE;
+
+    /**
+     * A node of the expression tree, evaluated over a chunk of rows. After {@link #eval(int, int)},
+     * the results are in <code>data[offset]</code> to <code>data[offset + length - 1]</code>.
+     */
+    private static abstract class Node{
+        double[] data;
+        int offset;
+
+        /**
+         * Evaluates this node over the specified rows.
+         * @param row The index of the first row.
+         * @param length The number of rows, which is at most {@link #CHUNK_SIZE}.
+         * @throws UndefinedException if the node calls a function which can't be evaluated.
+         */
+        abstract void eval(int row, int length) throws UndefinedException;
+    }
+
+    private static final class ConstNode extends Node{
+        ConstNode(double value){
+            data = new double[CHUNK_SIZE];
+            Arrays.fill(data, value);
+        }
+
+        @Override
+        void eval(int row, int length){}
+    }
+
+    private static final class ColumnNode extends Node{
+        ColumnNode(double[] column){
+            data = column;
+        }
+
+        @Override
+        void eval(int row, int length){
+            offset = row; //the column is read in place
+        }
+    }
+
+    /**
+     * A column in a buffer (for example, mapped from a {@link ColumnFile}), copied one chunk at a time to an array.
+     */
+    private static final class BufferColumnNode extends Node{
+        private final DoubleBuffer column;
+
+        BufferColumnNode(DoubleBuffer column){
+            this.column = column.slice(); //row 0 is at the current position of the buffer
+            data = new double[CHUNK_SIZE];
+        }
+
+        @Override
+        void eval(int row, int length){
+            column.position(row);
+            column.get(data, 0, length);
+        }
+    }
+
+    private static final class NegatedNode extends Node{
+        private final Node child;
+
+        NegatedNode(Node child, double[] buffer){
+            this.child = child;
+            data = buffer;
+        }
+
+        @Override
+        void eval(int row, int length) throws UndefinedException{
+            child.eval(row, length);
+            ColumnKernels.getInstance().neg(child.data, child.offset, data, length);
+        }
+    }
+
+    private static final class BinaryOpNode extends Node{
+        private final Node left;
+        private final char operator;
+        private final Node right;
+
+        BinaryOpNode(Node left, char operator, Node right, double[] buffer){
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+            data = buffer;
+        }
+
+        @Override
+        void eval(int row, int length) throws UndefinedException{
+            left.eval(row, length);
+            right.eval(row, length);
+            double[] a = left.data;
+            double[] b = right.data;
+            int ao = left.offset;
+            int bo = right.offset;
+            ColumnKernels kernels = ColumnKernels.getInstance();
+            switch(operator){ //the operator is checked once per chunk, not once per row
+                case '+':
+                    kernels.add(a, ao, b, bo, data, length);
+                    break;
+                case '-':
+                    kernels.sub(a, ao, b, bo, data, length);
+                    break;
+                case '*':
+                    kernels.mul(a, ao, b, bo, data, length);
+                    break;
+                case '/':
+                    kernels.div(a, ao, b, bo, data, length);
+                    break;
+                default: //'^', the only other allowed operator
+                    for(int i = 0; i < length; i++)
+                        data[i] = Math.pow(a[ao + i], b[bo + i]);
+            }
+        }
+    }
+
+    /**
+     * A call to a built-in function of {@link Math} (see {@link BuiltInFunctions.MathFunction}).
+     */
+    private static final class MathNode extends Node{
+        private final String function;
+        private final Node argument;
+
+        MathNode(String function, Node argument, double[] buffer){
+            this.function = function;
+            this.argument = argument;
+            data = buffer;
+        }
+
+        @Override
+        void eval(int row, int length) throws UndefinedException{
+            argument.eval(row, length);
+            double[] a = argument.data;
+            int ao = argument.offset;
+            if(function.equals("sin"))
+                for(int i = 0; i < length; i++)
+                    data[i] = Math.sin(a[ao + i]);
+            else if(function.equals("cos"))
+                for(int i = 0; i < length; i++)
+                    data[i] = Math.cos(a[ao + i]);
+            else if(function.equals("tan"))
+                for(int i = 0; i < length; i++)
+                    data[i] = Math.tan(a[ao + i]);
+            else if(function.equals("log"))
+                for(int i = 0; i < length; i++)
+                    data[i] = Math.log(a[ao + i]);
+            else if(function.equals("sqrt"))
+                ColumnKernels.getInstance().sqrt(a, ao, data, length);
+            else //abs
+                ColumnKernels.getInstance().abs(a, ao, data, length);
+        }
+    }
+
+    /**
+     * A call to any other function, evaluated row by row.
+     */
+    private static final class CallNode extends Node{
+        private final Function function;
+        private final Node[] arguments;
+        private final double[] args;
+        private final ExpressionContext context;
+
+        CallNode(Function function, Node[] arguments, ExpressionContext context, double[] buffer){
+            this.function = function;
+            this.arguments = arguments;
+            this.args = new double[arguments.length];
+            this.context = context;
+            data = buffer;
+        }
+
+        @Override
+        void eval(int row, int length) throws UndefinedException{
+            for(Node a: arguments)
+                a.eval(row, length);
+            for(int i = 0; i < length; i++){
+                for(int j = 0; j < arguments.length; j++)
+                    args[j] = arguments[j].data[arguments[j].offset + i];
+                data[i] = function.eval(args, context, null);
+            }
+        }
+    }
+
+    /**
+     * Any other expression, evaluated row by row by the interpreter with the values of the columns passed as a frame (see {@link ArgumentExpression}).
+     */
+    private static final class InterpretedNode extends Node{
+        private final Expression expr;
+        private final Node[] columns;
+        private final double[] frame;
+        private final ExpressionContext context;
+
+        InterpretedNode(Expression expr, String[] names, Node[] columns, ExpressionContext context, double[] buffer){
+            this.expr = ArgumentExpression.bind(expr, names);
+            this.columns = columns;
+            this.frame = new double[columns.length];
+            this.context = context;
+            data = buffer;
+        }
+
+        @Override
+        void eval(int row, int length) throws UndefinedException{
+            for(Node c: columns)
+                c.eval(row, length);
+            for(int i = 0; i < length; i++){
+                for(int j = 0; j < columns.length; j++)
+                    frame[j] = columns[j].data[columns[j].offset + i];
+                data[i] = expr.eval(context, null, frame);
+            }
+        }
+    }
+
+    private final ExpressionContext context;
+    private final String[] columnNames;
+    private final Node[] columns;
+    private final HashMap<String, Node> columnsByName = new HashMap<String, Node>();
+    private final ArrayList<double[]> buffers = new ArrayList<double[]>();
+    private final Node root;
+
+    /**
+     * Builds an evaluator for the specified expression.
+     * @param expr The expression to evaluate.
+     * @param context The context used to resolve the functions and the variables which aren't in <code>columns</code>.
+     * @param columns The values of the variables, one array per variable, indexed by row.
+     * @throws UndefinedException if the expression contains a symbol which is neither a column nor defined in the context.
+     */
+    BatchEvaluator(Expression expr, ExpressionContext context, Map<String, double[]> columns) throws UndefinedException{
+        this(expr, context, columns.keySet().toArray(new String[columns.size()]), arrayColumns(columns));
+    }
+
+    private BatchEvaluator(Expression expr, ExpressionContext context, String[] columnNames, Node[] columns) throws UndefinedException{
+        this.context = context;
+        this.columnNames = columnNames;
+        this.columns = columns;
+        for(int i = 0; i < columns.length; i++)
+            columnsByName.put(columnNames[i], columns[i]);
+        this.root = build(expr, 0);
+    }
+
+    private static Node[] arrayColumns(Map<String, double[]> columns){
+        Node[] nodes = new Node[columns.size()];
+        int i = 0;
+        for(double[] column: columns.values())
+            nodes[i++] = new ColumnNode(column);
+        return nodes;
+    }
+
+    /**
+     * Builds an evaluator for the specified expression, whose variables are read from buffers.
+     * @param expr The expression to evaluate.
+     * @param context The context used to resolve the functions and the variables which aren't in <code>columns</code>.
+     * @param columns The values of the variables, one buffer per variable, indexed by row starting from the current position of the buffer.
+     * @return The evaluator.
+     * @throws UndefinedException if the expression contains a symbol which is neither a column nor defined in the context.
+     */
+    static BatchEvaluator forBuffers(Expression expr, ExpressionContext context, Map<String, DoubleBuffer> columns) throws UndefinedException{
+        Node[] nodes = new Node[columns.size()];
+        int i = 0;
+        for(DoubleBuffer column: columns.values())
+            nodes[i++] = new BufferColumnNode(column);
+        return new BatchEvaluator(expr, context, columns.keySet().toArray(new String[columns.size()]), nodes);
+    }
+
+    /**
+     * @param depth The depth in the operand stack.
+     * @return The buffer for the nodes evaluated at the specified depth.
+     */
+    private double[] getBuffer(int depth){
+        while(buffers.size() <= depth)
+            buffers.add(new double[CHUNK_SIZE]);
+        return buffers.get(depth);
+    }
+
+    private Node build(Expression expr, int depth) throws UndefinedException{
+        if(expr instanceof DagExpression) //shared nodes are evaluated once per occurrence, since their buffers depend on the position in the tree
+            return build(((DagExpression) expr).getRoot(), depth);
+        if(expr instanceof ConstExpression)
+            return new ConstNode(((ConstExpression) expr).getValue());
+        if(expr instanceof VariableExpression){
+            VariableExpression var = (VariableExpression) expr;
+            if(var.getBinding() != null)
+                return new ConstNode(var.getBinding().getValue());
+            Node column = columnsByName.get(var.getName());
+            return column != null ? column : new ConstNode(context.getVariable(var.getName()));
+        }
+        if(expr instanceof NegatedExpression)
+            return new NegatedNode(build(expr.getSubExpressions()[0], depth), getBuffer(depth));
+        if(expr instanceof BinaryOpExpression){
+            Expression[] operands = expr.getSubExpressions();
+            Node left = build(operands[0], depth); //the left operand is evaluated in the buffer of this node, which is then overwritten in place
+            Node right = build(operands[1], depth + 1);
+            return new BinaryOpNode(left, ((BinaryOpExpression) expr).getOperator(), right, getBuffer(depth));
+        }
+        if(expr instanceof FunctionExpression){
+            Expression[] args = expr.getSubExpressions();
+            Function f = context.getFunction(((FunctionExpression) expr).getName(), args.length);
+            if(f instanceof BuiltInFunctions.MathFunction)
+                return new MathNode(f.getName(), build(args[0], depth), getBuffer(depth));
+            Node[] arguments = new Node[args.length];
+            for(int i = 0; i < args.length; i++)
+                arguments[i] = build(args[i], depth + i);
+            return new CallNode(f, arguments, context, getBuffer(depth));
+        }
+        return new InterpretedNode(expr, columnNames, columns, context, getBuffer(depth));
+    }
+
+    /**
+     * Evaluates the expression for the specified rows.
+     * @param out The array where the result of each row is stored, at the same index of the row.
+     * @param from The index of the first row (inclusive).
+     * @param to The index of the last row (exclusive).
+     * @throws UndefinedException if the expression calls a function which can't be evaluated.
+     */
+    void eval(double[] out, int from, int to) throws UndefinedException{
+        for(int row = from; row < to; row += CHUNK_SIZE){
+            int length = Math.min(CHUNK_SIZE, to - row);
+            root.eval(row, length);
+            System.arraycopy(root.data, root.offset, out, row, length);
+        }
+    }
+
+    /**
+     * Evaluates the expression for the specified rows, storing the results in a buffer.
+     * @param out The buffer where the result of each row is stored, at the same index of the row relative to its current position (which is not changed).
+     * @param from The index of the first row (inclusive).
+     * @param to The index of the last row (exclusive).
+     * @throws UndefinedException if the expression calls a function which can't be evaluated.
+     */
+    void eval(DoubleBuffer out, int from, int to) throws UndefinedException{
+        DoubleBuffer results = out.slice();
+        results.position(from);
+        for(int row = from; row < to; row += CHUNK_SIZE){
+            int length = Math.min(CHUNK_SIZE, to - row);
+            root.eval(row, length);
+            results.put(root.data, root.offset, length);
+        }
+    }
+
+    /**
+     * Carries an {@link UndefinedException} thrown by a task of a parallel evaluation out of {@link RecursiveAction#compute()}, which can't throw checked exceptions.
+     */
+    private static final class UndefinedError extends RuntimeException{
+        UndefinedError(UndefinedException cause){
+            super(cause);
+        }
+    }
+
+    /**
+     * Evaluates a range of rows; if it's too large, it's split into two halves evaluated in parallel.
+     * Each task which evaluates rows builds its own evaluator, so the tasks don't share any mutable state except the disjoint ranges of <code>out</code>.
+     */
+    private static final class RangeTask extends RecursiveAction{
+        private final Expression expr;
+        private final ExpressionContext context;
+        private final Map<String, double[]> columns;
+        private final double[] out;
+        private final int from;
+        private final int to;
+        private final BatchEvaluator evaluator; //built by the caller for the first range, null for the others
+
+        RangeTask(Expression expr, ExpressionContext context, Map<String, double[]> columns, double[] out, int from, int to, BatchEvaluator evaluator){
+            this.expr = expr;
+            this.context = context;
+            this.columns = columns;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.evaluator = evaluator;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from > PARALLEL_RANGE_SIZE){
+                int middle = from + (to - from) / CHUNK_SIZE / 2 * CHUNK_SIZE; //aligned to the chunks, so they are never split
+                invokeAll(new RangeTask(expr, context, columns, out, from, middle, evaluator), new RangeTask(expr, context, columns, out, middle, to, null));
+            }else{
+                try{
+                    (evaluator != null ? evaluator : new BatchEvaluator(expr, context, columns)).eval(out, from, to);
+                }catch(UndefinedException ex){
+                    throw new UndefinedError(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates an expression for the specified rows, splitting them into ranges which are evaluated in parallel by the threads of the specified pool.
+     * The context is only read, so it must not be modified until this method returns.
+     * @param expr The expression to evaluate.
+     * @param context The context used to resolve the functions and the variables which aren't in <code>columns</code>.
+     * @param columns The values of the variables, one array per variable, indexed by row.
+     * @param out The array where the result of each row is stored, at the same index of the row.
+     * @param pool The pool that runs the tasks.
+     * @throws UndefinedException if the expression contains a symbol which is neither a column nor defined in the context,
+     * or calls a function which can't be evaluated.
+     */
+    static void evalParallel(Expression expr, ExpressionContext context, Map<String, double[]> columns, double[] out, ForkJoinPool pool) throws UndefinedException{
+        BatchEvaluator first = new BatchEvaluator(expr, context, columns); //reports undefined symbols before starting the tasks
+        if(out.length <= PARALLEL_RANGE_SIZE){
+            first.eval(out, 0, out.length);
+            return;
+        }
+        try{
+            pool.invoke(new RangeTask(expr, context, columns, out, 0, out.length, first)); //the evaluator is reused by the task of the first range
+        }catch(RuntimeException ex){
+            for(Throwable t = ex; t != null; t = t.getCause()) //the pool may wrap the exception thrown by the task
+                if(t instanceof UndefinedException)
+                    throw (UndefinedException) t;
+            throw ex;
+        }
+    }
+
+}
@@ -1,6 +1,5 @@
 package com.github.gianlucanitti.javaexpreval;
 
-import java.util.Arrays;
 import java.io.PrintWriter;
 
 /**
@@ -11,8 +10,7 @@ public final class BinaryOpExpression extends Expression{
   private final Expression left;
   private final Expression right;
   private final char op;
-
-  private static final Character[] allowedOperators = new Character[]{'+', '-', '*', '/', '^'};
+  private int hash; //cached by hashCode(), 0 if not computed yet
 
   /**
    * Check if the specified char is a supported binary operator. Currently the supported operators are '+', '-', '*', '/', '^'.
@@ -20,7 +18,21 @@ public final class BinaryOpExpression extends Expression{
    * @return <code>true</code> if the argument is a binary operator supported by this class, otherwise <code>false</code>.
    */
   public static boolean isAllowedOperator(Character c){
-    return Arrays.asList(allowedOperators).contains(c);
+    return c != null && getPrecedence(c) != 0;
+  }
+
+  /**
+   * Returns the precedence of the specified operator: ^ is evaluated first, followed by * and / and then + and -.
+   * @param op The operator.
+   * @return 3 for ^, 2 for * and /, 1 for + and -, 0 if <code>op</code> isn't a supported operator.
+   */
+  static int getPrecedence(char op){
+    switch(op){
+      case '^': return 3;
+      case '*': case '/': return 2;
+      case '+': case '-': return 1;
+      default: return 0;
+    }
   }
 
   /**
@@ -38,6 +50,13 @@ public final class BinaryOpExpression extends Expression{
     this.op = op;
   }
 
+  /**
+   * @return The char representing the operator of this operation (the 2nd argument passed to the {@link #BinaryOpExpression(Expression, char, Expression)} constructor).
+   */
+  public char getOperator(){
+    return op;
+  }
+
   /**
    * @return The two operands passed to the {@link #BinaryOpExpression(Expression, char, Expression)} constructor.
    */
@@ -51,8 +70,16 @@ public final class BinaryOpExpression extends Expression{
    */
   @Override
   protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
-    double a = left.eval(context, logWriter);
-    double b = right.eval(context, logWriter);
+    return evalExpr(context, logWriter, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+    double a = left.eval(context, logWriter, frame);
+    double b = right.eval(context, logWriter, frame);
     double result = 0;
     switch(op){
       case '+': result = a + b; break;
@@ -65,6 +92,20 @@ public final class BinaryOpExpression extends Expression{
     return result;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  Expression withSubExpressions(Expression[] subExpressions){
+    if(subExpressions[0] == left && subExpressions[1] == right)
+      return this;
+    try{
+      return new BinaryOpExpression(subExpressions[0], op, subExpressions[1]);
+    }catch(InvalidOperatorException ex){
+      throw new IllegalStateException(ex); //can't happen, the operator was already validated by this object's constructor
+    }
+  }
+
   /**
    * Returns a string representation of this binary operation, enclosed in parenthesis.
    * @return The string is built by concatenating the string representations of the two operand expressions separated by the character representing the operator.
@@ -73,5 +114,31 @@ public final class BinaryOpExpression extends Expression{
   public String toString(){
     return "(" + left.toString() + op + right.toString() + ")";
   }
-  
+
+  /**
+   * Compares this expression with another object.
+   * @param other The object to compare to.
+   * @return <code>true</code> if <code>other</code> is a BinaryOpExpression with the same operator and equal operands, <code>false</code> otherwise.
+   */
+  @Override
+  public boolean equals(Object other){
+    if(this == other)
+      return true;
+    if(!(other instanceof BinaryOpExpression))
+      return false;
+    BinaryOpExpression otherOp = (BinaryOpExpression) other;
+    return op == otherOp.op && hashCode() == otherOp.hashCode() && left.equals(otherOp.left) && right.equals(otherOp.right);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int hashCode(){
+    int h = hash;
+    if(h == 0) //the operands never change, so the hash is computed only once (like in String.hashCode())
+      hash = h = (31 * left.hashCode() + op) * 31 + right.hashCode();
+    return h;
+  }
+
 }
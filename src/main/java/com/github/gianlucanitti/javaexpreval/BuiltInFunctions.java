@@ -53,9 +53,19 @@ public class BuiltInFunctions {
         protected abstract double eval(double[] args);
     }
 
-    private static class SinFunction extends BuiltInFunction{
+    /**
+     * Represents a built-in function of one argument which is computed by the static method of {@link Math} with the same name.
+     * Since built-in functions are read-only, calls to these functions can be bound directly to the {@link Math} method (see {@link ExpressionCompiler}).
+     */
+    static abstract class MathFunction extends BuiltInFunction{
+        private MathFunction(String name) throws InvalidSymbolNameException {
+            super(name, 1);
+        }
+    }
+
+    private static class SinFunction extends MathFunction{
         private SinFunction() throws InvalidSymbolNameException {
-            super("sin", 1);
+            super("sin");
         }
 
         @Override
@@ -64,9 +74,9 @@ public class BuiltInFunctions {
         }
     }
 
-    private static class CosFunction extends BuiltInFunction{
+    private static class CosFunction extends MathFunction{
         private CosFunction() throws InvalidSymbolNameException {
-            super("cos", 1);
+            super("cos");
         }
 
         @Override
@@ -75,9 +85,9 @@ public class BuiltInFunctions {
         }
     }
 
-    private static class TanFunction extends BuiltInFunction{
+    private static class TanFunction extends MathFunction{
         private TanFunction() throws InvalidSymbolNameException {
-            super("tan", 1);
+            super("tan");
         }
 
         @Override
@@ -86,9 +96,9 @@ public class BuiltInFunctions {
         }
     }
 
-    private static class LogFunction extends BuiltInFunction{
+    private static class LogFunction extends MathFunction{
         private LogFunction() throws InvalidSymbolNameException {
-            super("log", 1);
+            super("log");
         }
 
         @Override
@@ -97,9 +107,9 @@ public class BuiltInFunctions {
         }
     }
 
-    private static class SqrtFunction extends BuiltInFunction{
+    private static class SqrtFunction extends MathFunction{
         private SqrtFunction() throws InvalidSymbolNameException {
-            super("sqrt", 1);
+            super("sqrt");
         }
 
         @Override
@@ -108,9 +118,9 @@ public class BuiltInFunctions {
         }
     }
 
-    private static class AbsFunction extends BuiltInFunction{
+    private static class AbsFunction extends MathFunction{
         private AbsFunction() throws InvalidSymbolNameException {
-            super("abs", 1);
+            super("abs");
         }
 
         @Override
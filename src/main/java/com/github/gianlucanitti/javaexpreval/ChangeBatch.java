@@ -0,0 +1,71 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The changes of an {@link ExpressionContext} made since {@link ExpressionContext#beginBatch()}, coalesced by symbol.
+ * A clear is never coalesced, and it separates the changes made before it from the ones made after it, so the order of the changes relative to it is kept.
+ */
+final class ChangeBatch {
+
+    private final ArrayList<ContextChange> changes = new ArrayList<ContextChange>();
+    private final HashMap<String, Integer> indexes = new HashMap<String, Integer>(); //the position of the pending change of each symbol since the last clear
+    private int depth;
+    private boolean changed;
+
+    /**
+     * Enters a (possibly nested) batch.
+     */
+    void begin(){
+        depth++;
+    }
+
+    /**
+     * Leaves a batch.
+     * @return Whether the outermost batch has ended, so the changes must be delivered.
+     */
+    boolean end(){
+        return --depth == 0;
+    }
+
+    /**
+     * @return Whether any change has been made in this batch, even if the coalesced changes cancel each other (the {@link java.util.Observer}s are notified anyway).
+     */
+    boolean isChanged(){
+        return changed;
+    }
+
+    /**
+     * Adds a change, coalescing it with the pending change of the same symbol.
+     * @param change The change.
+     */
+    void add(ContextChange change){
+        changed = true;
+        if(!(change instanceof ContextChange.SymbolChange)){ //a clear
+            changes.add(change);
+            indexes.clear();
+            return;
+        }
+        ContextChange.SymbolChange symbolChange = (ContextChange.SymbolChange) change;
+        String symbol = symbolChange.getSymbol();
+        Integer index = indexes.get(symbol);
+        if(index == null){
+            indexes.put(symbol, changes.size());
+            changes.add(change);
+        }else{
+            ContextChange.SymbolChange merged = ((ContextChange.SymbolChange) changes.get(index)).merge(symbolChange);
+            changes.set(index, merged);
+            if(merged == null)
+                indexes.remove(symbol);
+        }
+    }
+
+    /**
+     * @return The coalesced changes, in order; the ones that were cancelled are <code>null</code>.
+     */
+    ArrayList<ContextChange> getChanges(){
+        return changes;
+    }
+
+}
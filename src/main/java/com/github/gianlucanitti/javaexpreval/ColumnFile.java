@@ -0,0 +1,204 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A file of named columns of doubles, memory-mapped so that the values are read and written in place, without any copy or text conversion
+ * (see {@link Expression#evalBatch(ExpressionContext, Map, DoubleBuffer)}).
+ * The format is little-endian:
+ * <ul>
+ *     <li>the magic number <code>0x4A455843</code> ("JEXC" in ASCII) and the format version (1), as 32 bit integers;</li>
+ *     <li>the number of columns (32 bit integer) and the number of rows (64 bit integer);</li>
+ *     <li>the name of each column, as the number of bytes (16 bit unsigned integer) followed by the UTF-8 bytes;</li>
+ *     <li>zero bytes up to a multiple of 8 bytes from the start of the file;</li>
+ *     <li>the values of each column, one column after the other, as 64 bit IEEE 754 doubles.</li>
+ * </ul>
+ * Each column is mapped separately, so a column can have up to {@link #MAX_ROWS} rows, but the file can be larger than 2GB.
+ */
+public final class ColumnFile {
+
+    private static final int MAGIC = 0x4A455843;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The maximum number of rows, so that each column fits in a single mapping.
+     */
+    public static final long MAX_ROWS = Integer.MAX_VALUE / 8;
+
+    private final long rowCount;
+    private final ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+    private final LinkedHashMap<String, DoubleBuffer> columns = new LinkedHashMap<String, DoubleBuffer>();
+
+    private ColumnFile(FileChannel channel, FileChannel.MapMode mode, long dataOffset, long rowCount, String[] names) throws IOException{
+        this.rowCount = rowCount;
+        for(int i = 0; i < names.length; i++){
+            MappedByteBuffer column = channel.map(mode, dataOffset + i * rowCount * 8, rowCount * 8); //the mapping stays valid after the channel is closed
+            mappings.add(column);
+            if(columns.put(names[i], column.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer()) != null) //only the last column with the name could be read
+                throw new IOException("Duplicate column name: " + names[i]);
+        }
+    }
+
+    /**
+     * Checks if a file starts with the magic number of the column files.
+     * @param file The file to check.
+     * @return <code>true</code> if the file starts with the magic number, <code>false</code> otherwise.
+     * @throws IOException if the file can't be read.
+     */
+    public static boolean isColumnFile(File file) throws IOException{
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try{
+            if(f.length() < 4)
+                return false;
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            f.getChannel().read(magic, 0);
+            return magic.getInt(0) == MAGIC;
+        }finally{
+            f.close();
+        }
+    }
+
+    /**
+     * Maps an existing column file in read-only mode.
+     * @param file The file to open.
+     * @return The opened file.
+     * @throws IOException if the file can't be read or it's not a valid column file (including a file with two columns with the same name).
+     */
+    public static ColumnFile open(File file) throws IOException{
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = f.getChannel();
+            ByteBuffer fixed = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+            if(channel.read(fixed, 0) < 20 || fixed.getInt(0) != MAGIC)
+                throw new IOException("Not a column file: " + file);
+            if(fixed.getInt(4) != VERSION)
+                throw new IOException("Unsupported column file version: " + fixed.getInt(4));
+            int columnCount = fixed.getInt(8);
+            long rowCount = fixed.getLong(12);
+            if(columnCount < 0 || rowCount < 0 || rowCount > MAX_ROWS)
+                throw new IOException("Invalid column file header: " + file);
+            String[] names = new String[columnCount];
+            long position = 20;
+            ByteBuffer length = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            for(int i = 0; i < columnCount; i++){
+                length.clear();
+                if(channel.read(length, position) < 2)
+                    throw new IOException("Truncated column file header: " + file);
+                ByteBuffer name = ByteBuffer.allocate(length.getShort(0) & 0xffff);
+                if(channel.read(name, position + 2) < name.capacity())
+                    throw new IOException("Truncated column file header: " + file);
+                names[i] = new String(name.array(), UTF8);
+                position += 2 + name.capacity();
+            }
+            long dataOffset = align(position);
+            if(channel.size() < dataOffset + columnCount * rowCount * 8)
+                throw new IOException("Truncated column file: " + file);
+            return new ColumnFile(channel, FileChannel.MapMode.READ_ONLY, dataOffset, rowCount, names);
+        }finally{
+            f.close();
+        }
+    }
+
+    /**
+     * Creates (or overwrites) a column file with the specified columns, and maps it in read-write mode. The values are initially 0.
+     * @param file The file to create.
+     * @param rowCount The number of rows.
+     * @param names The names of the columns.
+     * @return The created file.
+     * @throws IOException if the file can't be written.
+     * @throws IllegalArgumentException if <code>rowCount</code> is negative or greater than {@link #MAX_ROWS}, a column name is longer than 65535 bytes
+     * or two columns have the same name.
+     */
+    public static ColumnFile create(File file, long rowCount, String ... names) throws IOException{
+        if(rowCount < 0 || rowCount > MAX_ROWS)
+            throw new IllegalArgumentException("Invalid number of rows: " + rowCount);
+        long position = 20;
+        byte[][] encodedNames = new byte[names.length][];
+        HashSet<String> distinctNames = new HashSet<String>();
+        for(int i = 0; i < names.length; i++){
+            if(!distinctNames.add(names[i]))
+                throw new IllegalArgumentException("Duplicate column name: " + names[i]);
+            encodedNames[i] = names[i].getBytes(UTF8);
+            if(encodedNames[i].length > 0xffff)
+                throw new IllegalArgumentException("Column name too long: " + names[i]);
+            position += 2 + encodedNames[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate((int) align(position)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(names.length).putLong(rowCount);
+        for(byte[] name: encodedNames)
+            header.putShort((short) name.length).put(name);
+        header.clear();
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try{
+            FileChannel channel = f.getChannel();
+            channel.truncate(0);
+            while(header.hasRemaining())
+                channel.write(header, header.position());
+            return new ColumnFile(channel, FileChannel.MapMode.READ_WRITE, header.capacity(), rowCount, names); //mapping extends the file
+        }finally{
+            f.close();
+        }
+    }
+
+    private static long align(long position){
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public long getRowCount(){
+        return rowCount;
+    }
+
+    /**
+     * @return The names of the columns, in file order.
+     */
+    public String[] getColumnNames(){
+        return columns.keySet().toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Returns the values of a column, mapped from the file. Each call returns a new buffer, with its own position and limit.
+     * @param name The name of the column.
+     * @return The values of the column, or <code>null</code> if there's no column with the specified name.
+     */
+    public DoubleBuffer getColumn(String name){
+        DoubleBuffer column = columns.get(name);
+        return column == null ? null : column.duplicate();
+    }
+
+    /**
+     * @return A map from the names of the columns to their values, mapped from the file (see {@link #getColumn(String)}).
+     */
+    public Map<String, DoubleBuffer> getColumns(){
+        LinkedHashMap<String, DoubleBuffer> result = new LinkedHashMap<String, DoubleBuffer>();
+        for(Map.Entry<String, DoubleBuffer> e: columns.entrySet())
+            result.put(e.getKey(), e.getValue().duplicate());
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Writes the changes made to the values of the columns to the storage device (see {@link MappedByteBuffer#force()}).
+     * The changes are visible to other processes that read the file even if this isn't called, and they are written back eventually by the operating system.
+     */
+    public void force(){
+        for(MappedByteBuffer m: mappings)
+            m.force();
+    }
+
+}
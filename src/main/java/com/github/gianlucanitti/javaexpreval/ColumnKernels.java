@@ -0,0 +1,97 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * The loops used by {@link BatchEvaluator} to apply an operation to a chunk of rows.
+ * Each method reads <code>length</code> values from the input arrays starting at the specified offsets, and writes the results to
+ * <code>out[0]</code> to <code>out[length - 1]</code>; <code>out</code> may be one of the inputs (with offset 0).
+ * The default implementation is a plain scalar loop. When the library runs on Java 16 or later with the <code>jdk.incubator.vector</code> module
+ * (<code>--add-modules jdk.incubator.vector</code>), the implementation in <code>src/main/java-vector</code>, which uses SIMD instructions, is used instead;
+ * it can be disabled by setting the <code>javaexpreval.vector</code> system property to <code>false</code>.
+ * Both implementations give exactly the same results, since these operations are correctly rounded in both cases.
+ */
+abstract class ColumnKernels {
+
+    private static final ColumnKernels INSTANCE = load();
+
+    private static ColumnKernels load(){
+        if(!"false".equals(System.getProperty("javaexpreval.vector"))) {
+            try {
+                return (ColumnKernels) Class.forName("com.github.gianlucanitti.javaexpreval.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (Throwable ex) {
+                //the class wasn't compiled (older JDK), the module is missing at runtime or there are no vector registers: use the scalar loops
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * @return The fastest implementation available on this JVM.
+     */
+    static ColumnKernels getInstance(){
+        return INSTANCE;
+    }
+
+    abstract void add(double[] a, int ao, double[] b, int bo, double[] out, int length);
+
+    abstract void sub(double[] a, int ao, double[] b, int bo, double[] out, int length);
+
+    abstract void mul(double[] a, int ao, double[] b, int bo, double[] out, int length);
+
+    abstract void div(double[] a, int ao, double[] b, int bo, double[] out, int length);
+
+    abstract void neg(double[] a, int ao, double[] out, int length);
+
+    abstract void abs(double[] a, int ao, double[] out, int length);
+
+    abstract void sqrt(double[] a, int ao, double[] out, int length);
+
+    /**
+     * The portable implementation, which leaves the vectorization (if any) to the JIT compiler.
+     */
+    static final class Scalar extends ColumnKernels{
+
+        @Override
+        void add(double[] a, int ao, double[] b, int bo, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = a[ao + i] + b[bo + i];
+        }
+
+        @Override
+        void sub(double[] a, int ao, double[] b, int bo, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = a[ao + i] - b[bo + i];
+        }
+
+        @Override
+        void mul(double[] a, int ao, double[] b, int bo, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = a[ao + i] * b[bo + i];
+        }
+
+        @Override
+        void div(double[] a, int ao, double[] b, int bo, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = a[ao + i] / b[bo + i];
+        }
+
+        @Override
+        void neg(double[] a, int ao, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = -a[ao + i];
+        }
+
+        @Override
+        void abs(double[] a, int ao, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = Math.abs(a[ao + i]);
+        }
+
+        @Override
+        void sqrt(double[] a, int ao, double[] out, int length){
+            for(int i = 0; i < length; i++)
+                out[i] = Math.sqrt(a[ao + i]);
+        }
+
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An {@link ExpressionContext} that keeps its variables in primitive arrays instead of a map of objects, for contexts with very many variables.
+ * Each variable name is interned once when it is defined, getting an integer id (names which are only read are never interned); the values are kept in a <code>double[]</code> indexed by id, and whether each variable
+ * is defined and read-only in two bitsets, so a variable costs a few bytes besides its name. The names are looked up in an open-addressing hash table,
+ * and a {@link VariableExpression} caches the id of its variable, so when it's evaluated in this context the lookup is just an array access.
+ * <p>
+ * The {@link VariableValue}s returned by {@link #getVariables()} and passed to the {@link ContextListener}s are created on demand.
+ * The names of the deleted variables stay interned, so that their ids can be reused if they are defined again.
+ * Like {@link ExpressionContext}, this class is not thread-safe.
+ */
+public class CompactExpressionContext extends ExpressionContext {
+
+    private final SymbolTable symbols = new SymbolTable();
+    private double[] values = new double[64];
+    private long[] defined = new long[1];
+    private long[] readOnly = new long[1];
+    private int count;
+    private final Map<String, VariableValue> variablesView = new VariablesView();
+
+    /**
+     * Initializes an empty context.
+     */
+    public CompactExpressionContext(){}
+
+    private static boolean get(long[] bits, int id){
+        return (bits[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private static void set(long[] bits, int id, boolean value){
+        if(value)
+            bits[id >>> 6] |= 1L << id;
+        else
+            bits[id >>> 6] &= ~(1L << id);
+    }
+
+    /**
+     * Interns a name, growing the arrays if it gets a new id.
+     * @param varName The name of a variable.
+     * @return The id of the variable.
+     */
+    private int intern(String varName){
+        int id = symbols.intern(varName);
+        if(id >= values.length){
+            int capacity = values.length;
+            while(capacity <= id)
+                capacity *= 2;
+            values = Arrays.copyOf(values, capacity);
+            defined = Arrays.copyOf(defined, capacity >>> 6);
+            readOnly = Arrays.copyOf(readOnly, capacity >>> 6);
+        }
+        return id;
+    }
+
+    /**
+     * @param id The id of a variable, or -1.
+     * @return Whether the variable is defined.
+     */
+    private boolean isDefined(int id){
+        return id >= 0 && id < values.length && get(defined, id);
+    }
+
+    /**
+     * @param id The id of a variable, or -1.
+     * @return The current value of the variable, or <code>null</code> if it's not defined.
+     */
+    private VariableValue getValue(int id){
+        return isDefined(id) ? new VariableValue(values[id], get(readOnly, id)) : null;
+    }
+
+    /**
+     * Binds a variable to a value, without checking if it's read-only.
+     * @return The replaced value, or <code>null</code> if the variable was not defined.
+     */
+    private VariableValue put(int id, double value, boolean readOnly){
+        VariableValue oldValue = getValue(id);
+        if(oldValue == null){
+            set(defined, id, true);
+            count++;
+        }
+        values[id] = value;
+        set(this.readOnly, id, readOnly);
+        return oldValue;
+    }
+
+    /**
+     * @return A unmodifiable {@link Map} containing the names and values of the variables defined in this context.
+     * It's a live view, whose values are created when they are read.
+     */
+    @Override
+    public Map<String, VariableValue> getVariables(){
+        return variablesView;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getVariable(String varName) throws UndefinedException{
+        int id = symbols.indexOf(varName);
+        if(!isDefined(id))
+            throw new UndefinedException(varName);
+        return values[id];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double getVariable(VariableExpression var) throws UndefinedException{
+        int id = var.getSymbolId(symbols);
+        if(!isDefined(id))
+            throw new UndefinedException(var.getName());
+        return values[id];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setVariable(String varName, boolean readOnly, double value) throws InvalidSymbolNameException, ReadonlyException{
+        VariableExpression.assertValidSymbolName(varName);
+        int id = intern(varName);
+        if(get(defined, id) && get(this.readOnly, id))
+            throw new ReadonlyException(varName);
+        VariableValue oldValue = put(id, value, readOnly);
+        fireChange(new ContextChange.VariableChange(varName, oldValue, new VariableValue(value, readOnly)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setVariables(Map<String, Double> values, boolean readOnly) throws InvalidSymbolNameException, ReadonlyException{
+        String[] names = new String[values.size()];
+        double[] newValues = new double[names.length];
+        checkVariables(values, names, newValues);
+        beginBatch();
+        try{
+            for(int i = 0; i < names.length; i++){
+                VariableValue oldValue = put(intern(names[i]), newValues[i], readOnly);
+                fireChange(new ContextChange.VariableChange(names[i], oldValue, new VariableValue(newValues[i], readOnly)));
+            }
+        }finally{
+            endBatch();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void storeResult(double value) throws ReadonlyException{
+        int id = intern("ans");
+        if(get(defined, id) && get(readOnly, id))
+            throw new ReadonlyException("ans");
+        put(id, value, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delVariable(String varName) throws ReadonlyException{
+        int id = symbols.indexOf(varName);
+        VariableValue oldValue = getValue(id);
+        if(oldValue == null)
+            return;
+        if(oldValue.isReadOnly())
+            throw new ReadonlyException(varName);
+        set(defined, id, false);
+        count--;
+        fireChange(new ContextChange.VariableChange(varName, oldValue, null));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear(){
+        for(int i = 0; i < defined.length; i++){
+            long deleted = defined[i] & ~readOnly[i];
+            defined[i] &= readOnly[i];
+            count -= Long.bitCount(deleted);
+        }
+        super.clear();
+    }
+
+    /**
+     * The variables of this context as a read-only {@link Map}.
+     */
+    private final class VariablesView extends AbstractMap<String, VariableValue>{
+
+        @Override
+        public VariableValue get(Object key){
+            return key instanceof String ? getValue(symbols.indexOf((String) key)) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key){
+            return get(key) != null;
+        }
+
+        @Override
+        public int size(){
+            return count;
+        }
+
+        @Override
+        public Set<Entry<String, VariableValue>> entrySet(){
+            return new AbstractSet<Entry<String, VariableValue>>(){
+                @Override
+                public int size(){
+                    return count;
+                }
+
+                @Override
+                public Iterator<Entry<String, VariableValue>> iterator(){
+                    return new Iterator<Entry<String, VariableValue>>(){
+                        private int next = advance(0);
+
+                        private int advance(int id){
+                            while(id < symbols.size() && !isDefined(id))
+                                id++;
+                            return id;
+                        }
+
+                        public boolean hasNext(){
+                            return next < symbols.size();
+                        }
+
+                        public Entry<String, VariableValue> next(){
+                            if(!hasNext())
+                                throw new NoSuchElementException();
+                            int id = next;
+                            next = advance(id + 1);
+                            return new SimpleImmutableEntry<String, VariableValue>(symbols.getName(id), getValue(id));
+                        }
+
+                        public void remove(){
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * An {@link Expression} translated to JVM bytecode by {@link Expression#compile(ExpressionContext)}.
+ * The generated class evaluates the whole expression tree in a single straight-line method, without any virtual dispatch between the nodes,
+ * so it can be inlined and optimized by the JIT compiler like hand-written code.
+ * Variables are read by position from an array of values (see {@link #getVariableNames()}) and calls to built-in functions are bound directly to {@link Math};
+ * any other function is resolved in the context at evaluation time, like in {@link Expression#eval(ExpressionContext)}.
+ */
+public abstract class CompiledExpression {
+
+    private String[] variableNames;
+    private String[] functionNames;
+    private FunctionBinding[] bindings; //the last resolution of each call site
+
+    /**
+     * Initializes a CompiledExpression. This is only meant to be called by the generated subclasses.
+     */
+    protected CompiledExpression(){}
+
+    /**
+     * Sets the symbol tables of this object; called by {@link ExpressionCompiler} after the generated class is instantiated.
+     * @param variableNames The names of the variables, in slot order.
+     * @param functionNames The names of the functions that are called through {@link #callFunction(int, double[], ExpressionContext)}, in call site order.
+     */
+    final void init(String[] variableNames, String[] functionNames){
+        this.variableNames = variableNames;
+        this.functionNames = functionNames;
+        this.bindings = new FunctionBinding[functionNames.length];
+    }
+
+    /**
+     * Returns the names of the variables read by this expression. The values passed to {@link #eval(double[], ExpressionContext)} must follow this order.
+     * @return A copy of the array of the variable names, indexed by slot.
+     */
+    public String[] getVariableNames(){
+        return variableNames.clone();
+    }
+
+    /**
+     * The generated straight-line code of the expression.
+     * @param values The values of the variables, indexed as in {@link #getVariableNames()}.
+     * @param context The context used to resolve the functions that weren't bound at compile time.
+     * @return The computed value of the expression.
+     * @throws UndefinedException if a function which wasn't bound at compile time is not defined in <code>context</code>.
+     */
+    protected abstract double evalCompiled(double[] values, ExpressionContext context) throws UndefinedException;
+
+    /**
+     * Called by the generated code for the functions that couldn't be bound at compile time (for example user-defined functions, that can be redefined).
+     * @param index The index of the call site in the function name table.
+     * @param args The values of the arguments.
+     * @param context The context to resolve the function in.
+     * @return The result of the function call.
+     * @throws UndefinedException if the function is not defined in <code>context</code> for the given number of arguments.
+     */
+    protected final double callFunction(int index, double[] args, ExpressionContext context) throws UndefinedException{
+        FunctionBinding b = bindings[index];
+        if(b == null || !b.isValid(context))
+            bindings[index] = b = FunctionBinding.bind(context, functionNames[index], args.length);
+        return b.getFunction().eval(args, context, null);
+    }
+
+    /**
+     * Evaluates this expression using the specified values for the variables, without reading them from the context.
+     * Unlike {@link #eval(ExpressionContext)}, this doesn't store the result in the "ans" variable.
+     * @param values The values of the variables, indexed as in {@link #getVariableNames()}.
+     * @param context The context used to resolve user-defined functions.
+     * @return The computed value of the expression.
+     * @throws UndefinedException if the expression calls a function that is not defined in <code>context</code>.
+     * @throws IllegalArgumentException if <code>values</code> has a different length than the array returned by {@link #getVariableNames()}.
+     */
+    public final double eval(double[] values, ExpressionContext context) throws UndefinedException{
+        if(values.length != variableNames.length)
+            throw new IllegalArgumentException();
+        return evalCompiled(values, context);
+    }
+
+    /**
+     * Evaluates this expression in the specified context; the result is returned and stored in the "ans" variable in the context,
+     * like {@link Expression#eval(ExpressionContext)} does (storing the result doesn't notify the {@link ContextListener}s and the observers of the context).
+     * @param context The {@link ExpressionContext} to evaluate the expression in.
+     * @return The computed value of this expression.
+     * @throws UndefinedException if the expression contains a symbol (function or variable) not defined in the context.
+     */
+    public double eval(ExpressionContext context) throws UndefinedException{
+        double[] values = new double[variableNames.length];
+        for(int i = 0; i < values.length; i++)
+            values[i] = context.getVariable(variableNames[i]);
+        double val = evalCompiled(values, context);
+        try {
+            context.storeResult(val);
+        }catch(ReadonlyException ex){
+            //same as Expression.eval, a failure to store the result doesn't affect the evaluation
+        }
+        return val;
+    }
+
+    /**
+     * Evaluates this expression in an empty context.
+     * @return The computed value of this expression.
+     * @throws UndefinedException if the expression contains a symbol (function or variable) not defined in the context.
+     */
+    public final double eval() throws UndefinedException{
+        return eval(new ExpressionContext());
+    }
+
+    /**
+     * The fallback used when an expression contains nodes that the compiler doesn't know how to translate:
+     * the original tree is evaluated by the interpreter, reading all the variables from the context.
+     */
+    static final class Interpreted extends CompiledExpression{
+
+        private final Expression expr;
+
+        Interpreted(Expression expr){
+            this.expr = expr;
+            init(new String[0], new String[0]);
+        }
+
+        @Override
+        protected double evalCompiled(double[] values, ExpressionContext context) throws UndefinedException{
+            return expr.eval(context, null, false);
+        }
+
+        @Override
+        public double eval(ExpressionContext context) throws UndefinedException{
+            return expr.eval(context);
+        }
+
+    }
+
+}
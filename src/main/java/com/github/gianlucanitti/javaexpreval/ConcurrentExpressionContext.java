@@ -0,0 +1,323 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An {@link ExpressionContext} that can be shared by many threads, for example a context read by every request of a server and updated occasionally.
+ * Reads (variable lookups and function calls) never block: variables are kept in a {@link ConcurrentHashMap} and updated with atomic compare-and-set operations,
+ * and functions are kept in an immutable table that is replaced by a modified copy on every change (functions are expected to change rarely).
+ * The only exception are bulk updates ({@link #setVariables(Map, boolean)}), which are atomic: while one is applied, the lookups that would see any of its writes
+ * wait until it's complete, so a thread that reads one of the new values will then read all the others too.
+ * {@link Observer}s are kept in a copy-on-write list and notified without holding any lock, so they may be notified concurrently by different threads;
+ * the same holds for {@link ContextListener}s. Batches of changes (see {@link #beginBatch()}) are confined to a thread: a batch collects the changes
+ * made by the thread that started it, and the changes made by the other threads meanwhile are delivered as usual.
+ * Note that evaluating an expression stores the result in the "ans" variable, which is shared by all the threads; use
+ * {@link Expression#eval(ExpressionContext, java.io.Writer, boolean)} to evaluate without storing it.
+ */
+public class ConcurrentExpressionContext extends ExpressionContext {
+
+    private final ConcurrentHashMap<String, VariableValue> variables = new ConcurrentHashMap<String, VariableValue>();
+    private volatile FunctionTable functions = new FunctionTable();
+    private final Object functionsLock = new Object(); //serializes the writers of the function table
+    private final StampedLock variablesLock = new StampedLock(); //held exclusively by bulk updates, and shared by the other writers of the variables
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<Observer>();
+    private final ThreadLocal<ChangeBatch> batches = new ThreadLocal<ChangeBatch>();
+
+    /**
+     * Initializes an empty context.
+     */
+    public ConcurrentExpressionContext(){
+        super(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int getFunctionsVersion(){
+        return functions.getVersion();
+    }
+
+    /**
+     * @return The batch of changes in progress in the current thread, or <code>null</code>.
+     */
+    @Override
+    ChangeBatch getBatch(){
+        return batches.get();
+    }
+
+    /**
+     * @param batch The batch of changes in progress in the current thread, or <code>null</code> when the batch ends.
+     */
+    @Override
+    void setBatch(ChangeBatch batch){
+        if(batch == null)
+            batches.remove();
+        else
+            batches.set(batch);
+    }
+
+    /**
+     * @return A unmodifiable {@link Map} containing the names and values of the variables defined in this context.
+     * The map is a live view, which reflects the concurrent modifications made after this method returns.
+     */
+    @Override
+    public Map<String, VariableValue> getVariables(){
+        return Collections.unmodifiableMap(variables);
+    }
+
+    /**
+     * @return A unmodifiable {@link Set} containing the functions defined in this context when this method is called.
+     */
+    @Override
+    public Set<Function> getFunctions(){
+        return Collections.unmodifiableSet(functions.getFunctions());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getVariable(String varName) throws UndefinedException{
+        long stamp = variablesLock.tryOptimisticRead();
+        VariableValue value = variables.get(varName);
+        if(!variablesLock.validate(stamp)){ //a bulk update is in progress, wait for it to complete
+            stamp = variablesLock.readLock();
+            try{
+                value = variables.get(varName);
+            }finally{
+                variablesLock.unlockRead(stamp);
+            }
+        }
+        if(value == null)
+            throw new UndefinedException(varName);
+        return value.getValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setVariable(String varName, boolean readOnly, double value) throws InvalidSymbolNameException, ReadonlyException{
+        VariableExpression.assertValidSymbolName(varName);
+        VariableValue newValue = new VariableValue(value, readOnly);
+        fireChange(new ContextChange.VariableChange(varName, put(varName, newValue), newValue));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void storeResult(double value) throws ReadonlyException{
+        put("ans", new VariableValue(value, false));
+    }
+
+    /**
+     * Binds a variable to a new value, unless it's read-only.
+     * @param varName The name of the variable.
+     * @param newValue The new value.
+     * @return The replaced value, or <code>null</code> if the variable was not defined.
+     * @throws ReadonlyException if the variable is defined as read-only.
+     */
+    private VariableValue put(String varName, VariableValue newValue) throws ReadonlyException{
+        long stamp = variablesLock.readLock();
+        try{
+            while(true){ //retry if another thread changed the variable between the read-only check and the update
+                VariableValue oldValue = variables.get(varName);
+                if(oldValue == null){
+                    if(variables.putIfAbsent(varName, newValue) == null)
+                        return null;
+                }else if(oldValue.isReadOnly())
+                    throw new ReadonlyException(varName);
+                else if(variables.replace(varName, oldValue, newValue))
+                    return oldValue;
+            }
+        }finally{
+            variablesLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The variables are set atomically: the other threads see either none or all of the new values.
+     */
+    @Override
+    public void setVariables(Map<String, Double> values, boolean readOnly) throws InvalidSymbolNameException, ReadonlyException{
+        String[] names = new String[values.size()];
+        double[] newValues = new double[names.length];
+        VariableValue[] oldValues = new VariableValue[names.length];
+        VariableValue[] setValues = new VariableValue[names.length];
+        long stamp = variablesLock.writeLock();
+        try{
+            checkVariables(values, names, newValues);
+            for(int i = 0; i < names.length; i++)
+                oldValues[i] = variables.put(names[i], setValues[i] = new VariableValue(newValues[i], readOnly));
+        }finally{
+            variablesLock.unlockWrite(stamp);
+        }
+        beginBatch();
+        try{
+            for(int i = 0; i < names.length; i++)
+                fireChange(new ContextChange.VariableChange(names[i], oldValues[i], setValues[i]));
+        }finally{
+            endBatch();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delVariable(String varName) throws ReadonlyException{
+        VariableValue oldValue;
+        long stamp = variablesLock.readLock();
+        try{
+            do{
+                oldValue = variables.get(varName);
+                if(oldValue == null)
+                    return;
+                if(oldValue.isReadOnly())
+                    throw new ReadonlyException(varName);
+            }while(!variables.remove(varName, oldValue));
+        }finally{
+            variablesLock.unlockRead(stamp);
+        }
+        fireChange(new ContextChange.VariableChange(varName, oldValue, null));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFunction(Function f) throws ReadonlyException{
+        ContextChange change;
+        synchronized(functionsLock){
+            Function oldFunction = functions.get(f.getName(), f.getArgCount());
+            if(oldFunction != null && oldFunction.isReadOnly())
+                throw new ReadonlyException(f.getName(), f.getArgCount());
+            FunctionTable newFunctions = functions.copy();
+            newFunctions.put(f);
+            functions = newFunctions;
+            change = new ContextChange.FunctionChange(oldFunction, f);
+        }
+        fireChange(change);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Function getFunction(String name, int argCount) throws UndefinedException{
+        Function f = functions.get(name, argCount);
+        if(f == null)
+            throw new UndefinedException(name, argCount);
+        return f;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delFunction(String name, int argCount) throws ReadonlyException{
+        Function toRemove;
+        synchronized(functionsLock){
+            toRemove = functions.get(name, argCount);
+            if(toRemove == null)
+                return;
+            if(toRemove.isReadOnly())
+                throw new ReadonlyException(name, argCount);
+            FunctionTable newFunctions = functions.copy();
+            newFunctions.remove(toRemove);
+            functions = newFunctions;
+        }
+        fireChange(new ContextChange.FunctionChange(toRemove, null));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Variables defined by other threads while this method is running may not be deleted.
+     */
+    @Override
+    public void clear(){
+        long stamp = variablesLock.readLock();
+        try{
+            for(Map.Entry<String, VariableValue> var: variables.entrySet())
+                if(!var.getValue().isReadOnly())
+                    variables.remove(var.getKey(), var.getValue());
+        }finally{
+            variablesLock.unlockRead(stamp);
+        }
+        synchronized(functionsLock){
+            FunctionTable newFunctions = functions.copy();
+            newFunctions.clear();
+            functions = newFunctions;
+        }
+        fireChange(new ContextChange.Clear());
+    }
+
+    /**
+     * Adds an observer, which will be notified (with <code>null</code> as argument) every time a variable or function of this context changes.
+     * @param o The observer to add.
+     */
+    @Override
+    public void addObserver(Observer o){
+        if(o == null)
+            throw new NullPointerException();
+        observers.addIfAbsent(o);
+    }
+
+    /**
+     * Removes an observer.
+     * @param o The observer to remove.
+     */
+    @Override
+    public void deleteObserver(Observer o){
+        observers.remove(o);
+    }
+
+    /**
+     * Removes all the observers.
+     */
+    @Override
+    public void deleteObservers(){
+        observers.clear();
+    }
+
+    /**
+     * @return The number of observers of this context.
+     */
+    @Override
+    public int countObservers(){
+        return observers.size();
+    }
+
+    /**
+     * Notifies the observers of a change without taking any lock; the changed flag of {@link Observable} isn't used, since setting it is synchronized.
+     */
+    @Override
+    void notifyChange(){
+        notifyObservers();
+    }
+
+    /**
+     * Notifies all the observers, without taking any lock (unlike {@link Observable#notifyObservers(Object)}).
+     * @param arg The argument passed to the observers.
+     */
+    @Override
+    public void notifyObservers(Object arg){
+        for(Observer o: observers)
+            o.update(this, arg);
+    }
+
+    /**
+     * Notifies all the observers with <code>null</code> as argument.
+     */
+    @Override
+    public void notifyObservers(){
+        notifyObservers(null);
+    }
+
+}
@@ -17,6 +17,13 @@ public final class ConstExpression extends Expression{
     value = val;
   }
 
+  /**
+   * @return The value this expression represents (the argument passed to {@link #ConstExpression(double)}).
+   */
+  public double getValue(){
+    return value;
+  }
+
   /**
    * @return An empty array of {@link Expression}s.
    */
@@ -52,4 +59,23 @@ public final class ConstExpression extends Expression{
     return Double.toString(value);
   }
 
+  /**
+   * Compares this expression with another object.
+   * @param other The object to compare to.
+   * @return <code>true</code> if <code>other</code> is a ConstExpression with the same value (NaN is equal to NaN, 0 is not equal to -0), <code>false</code> otherwise.
+   */
+  @Override
+  public boolean equals(Object other){
+    return other instanceof ConstExpression && Double.doubleToLongBits(value) == Double.doubleToLongBits(((ConstExpression) other).value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int hashCode(){
+    long bits = Double.doubleToLongBits(value);
+    return (int)(bits ^ (bits >>> 32));
+  }
+
 }
@@ -0,0 +1,105 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * A change of an {@link ExpressionContext}, which is delivered to the {@link ContextListener}s immediately or at the end of a batch.
+ */
+abstract class ContextChange {
+
+    /**
+     * Calls the method of the listener that reports this change.
+     * @param listener The listener.
+     * @param context The context that changed.
+     */
+    abstract void deliver(ContextListener listener, ExpressionContext context);
+
+    /**
+     * A change of a single symbol, which is coalesced with the following changes of the same symbol.
+     */
+    abstract static class SymbolChange extends ContextChange{
+
+        /**
+         * @return The symbol that changed (see {@link SymbolDependencies#functionKey(String, int)} for the functions).
+         */
+        abstract String getSymbol();
+
+        /**
+         * Coalesces this change with the following change of the same symbol.
+         * @param next The following change.
+         * @return A change equivalent to both, or <code>null</code> if together they don't change anything.
+         */
+        abstract SymbolChange merge(SymbolChange next);
+    }
+
+    static final class VariableChange extends SymbolChange{
+        private final String name;
+        private final ExpressionContext.VariableValue oldValue;
+        private final ExpressionContext.VariableValue newValue;
+
+        VariableChange(String name, ExpressionContext.VariableValue oldValue, ExpressionContext.VariableValue newValue){
+            this.name = name;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        @Override
+        String getSymbol(){
+            return name;
+        }
+
+        @Override
+        SymbolChange merge(SymbolChange next){
+            ExpressionContext.VariableValue value = ((VariableChange) next).newValue;
+            return oldValue == null && value == null ? null : new VariableChange(name, oldValue, value);
+        }
+
+        @Override
+        void deliver(ContextListener listener, ExpressionContext context){
+            listener.variableChanged(context, name, oldValue, newValue);
+        }
+    }
+
+    static final class FunctionChange extends SymbolChange{
+        private final Function oldFunction;
+        private final Function newFunction;
+
+        /**
+         * @param oldFunction The replaced or removed function, or <code>null</code>.
+         * @param newFunction The new function, or <code>null</code> if <code>oldFunction</code> has been removed.
+         */
+        FunctionChange(Function oldFunction, Function newFunction){
+            this.oldFunction = oldFunction;
+            this.newFunction = newFunction;
+        }
+
+        @Override
+        String getSymbol(){
+            Function f = newFunction != null ? newFunction : oldFunction;
+            return SymbolDependencies.functionKey(f.getName(), f.getArgCount());
+        }
+
+        @Override
+        SymbolChange merge(SymbolChange next){
+            Function f = ((FunctionChange) next).newFunction;
+            return oldFunction == null && f == null ? null : new FunctionChange(oldFunction, f);
+        }
+
+        @Override
+        void deliver(ContextListener listener, ExpressionContext context){
+            if(newFunction == null)
+                listener.functionRemoved(context, oldFunction);
+            else
+                listener.functionDefined(context, oldFunction, newFunction);
+        }
+    }
+
+    /**
+     * The removal of all the non read-only symbols, which is never coalesced.
+     */
+    static final class Clear extends ContextChange{
+        @Override
+        void deliver(ContextListener listener, ExpressionContext context){
+            listener.contextCleared(context);
+        }
+    }
+
+}
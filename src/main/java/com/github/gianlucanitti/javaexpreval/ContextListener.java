@@ -0,0 +1,42 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * Receives the changes made to the variables and functions of an {@link ExpressionContext} (see {@link ExpressionContext#addListener(ContextListener)}).
+ * Unlike an {@link java.util.Observer}, a listener is told what changed, so it doesn't need to compare the whole context with a previous copy.
+ * The changes made between {@link ExpressionContext#beginBatch()} and {@link ExpressionContext#endBatch()} are delivered together when the batch ends,
+ * and the changes of the same symbol are coalesced into one (for example, a variable set three times is reported once, with its first old value and its last new value).
+ * The storage of the result of an evaluation in the "ans" variable (see {@link Expression#eval(ExpressionContext, java.io.Writer, boolean)}) is not reported.
+ */
+public interface ContextListener {
+
+    /**
+     * Called when a variable is defined, changed or deleted.
+     * @param context The context that changed.
+     * @param name The name of the variable.
+     * @param oldValue The previous value of the variable, or <code>null</code> if it was not defined.
+     * @param newValue The new value of the variable, or <code>null</code> if it has been deleted.
+     */
+    void variableChanged(ExpressionContext context, String name, ExpressionContext.VariableValue oldValue, ExpressionContext.VariableValue newValue);
+
+    /**
+     * Called when a function is defined or redefined.
+     * @param context The context that changed.
+     * @param oldFunction The function with the same name and number of arguments which has been replaced, or <code>null</code> if there wasn't one.
+     * @param newFunction The new function.
+     */
+    void functionDefined(ExpressionContext context, Function oldFunction, Function newFunction);
+
+    /**
+     * Called when a function is deleted.
+     * @param context The context that changed.
+     * @param function The deleted function.
+     */
+    void functionRemoved(ExpressionContext context, Function function);
+
+    /**
+     * Called when the context is cleared, which deletes all the non-readonly variables and functions (see {@link ExpressionContext#clear()}).
+     * @param context The context that changed.
+     */
+    void contextCleared(ExpressionContext context);
+
+}
@@ -9,7 +9,7 @@ import java.util.ArrayList;
 public class CustomFunction extends Function {
 
     private String[] argNames;
-    private Expression expr;
+    private Expression body;
 
     /**
      * Initializes a new instance of CustomFunction.
@@ -29,7 +29,7 @@ public class CustomFunction extends Function {
                 argNameList.add(s);
             }
         this.argNames = argNameList.toArray(new String[0]);
-        this.expr = expr;
+        this.body = ArgumentExpression.bind(expr, this.argNames);
     }
 
     /**
@@ -40,23 +40,35 @@ public class CustomFunction extends Function {
         return argNames.length;
     }
 
+    /**
+     * @return The names of the arguments of this function, in order.
+     */
+    String[] getArgNames(){
+        return argNames.clone();
+    }
+
+    /**
+     * @return The definition of this function, where the arguments are replaced by {@link ArgumentExpression}s that read them from the frame of the call.
+     */
+    Expression getBody(){
+        return body;
+    }
+
     /**
      * Evaluates this function for the specified arguments in the specified context.
-     * It takes the {@link Expression} passed as 2nd parameter to the {@link #CustomFunction(String, Expression, boolean,  String...)} constructor
-     * and binds the variables that have names that match the argument names passed to the constructor to the respective values specified
-     * in the <code>args</code> array, then evaluates it.
+     * It evaluates the {@link Expression} passed as 2nd parameter to the {@link #CustomFunction(String, Expression, boolean,  String...)} constructor,
+     * where the variables that have names that match the argument names passed to the constructor take the respective values specified
+     * in the <code>args</code> array. The expression is never modified, so a function can be called concurrently from many threads and recursively.
      * @param args The values to pass to the function.
      * @param context The context this function must be evaluated into.
      * @param logWriter The {@link java.io.Writer} to write evaluation steps onto.
      * @return The result of the evaluation.
      * @throws UndefinedException if the {@link Expression} passed to the {@link #CustomFunction(String, Expression, boolean, String...)}
      * constructor can't be evaluated because it contains symbol not defined in the specified <code>context</code>.
-     * @throws IllegalArgumentException if the specified <code>args</code> and the number of argument names passed to the constructor have different lengths.
      */
     @Override
     protected double evalFunction(double[] args, ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
-        expr.bindVariables(argNames, args);
-        return expr.eval(context, logWriter);
+        return body.eval(context, logWriter, args);
     }
 
 }
@@ -0,0 +1,16 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * Exception thrown when a formula of a {@link ReactiveExpressionContext} can't be evaluated because it depends, directly or through other formulas, on itself.
+ */
+public class CyclicDependencyException extends UndefinedException{
+
+    /**
+     * Initializes a new CyclicDependencyException related to the specified variable.
+     * @param varName The name of the variable defined by the cyclic formula.
+     */
+    public CyclicDependencyException(String varName){
+        super(LocalizationHelper.Message.CYCLIC_DEPENDENCY, varName);
+    }
+
+}
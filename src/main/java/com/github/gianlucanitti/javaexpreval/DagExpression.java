@@ -0,0 +1,232 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The root of an expression tree where some sub-trees are shared (the same object appears many times), as built by {@link ExpressionInterner}.
+ * Walking such a tree would evaluate a shared node once for each time it appears; instead, the nodes are flattened into a list of steps,
+ * one for each distinct node in evaluation order, so that each one is evaluated once and its value is then read from an array by the nodes that use it.
+ * The steps don't have any state, so the same expression can be evaluated concurrently by many threads.
+ * When the evaluation steps must be logged, the tree is walked as usual, so that the log is the same of the equivalent tree.
+ */
+final class DagExpression extends Expression{
+
+    /**
+     * The evaluation of a distinct node; the values of its operands are read from the values computed by the previous steps.
+     */
+    private static abstract class Step{
+        abstract double eval(double[] values, ExpressionContext context, double[] frame) throws UndefinedException;
+    }
+
+    private static final class ConstStep extends Step{
+        private final double value;
+
+        ConstStep(double value){
+            this.value = value;
+        }
+
+        @Override
+        double eval(double[] values, ExpressionContext context, double[] frame){
+            return value;
+        }
+    }
+
+    private static final class NegatedStep extends Step{
+        private final int operand;
+
+        NegatedStep(int operand){
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(double[] values, ExpressionContext context, double[] frame){
+            return -values[operand];
+        }
+    }
+
+    private static final class BinaryOpStep extends Step{
+        private final int left;
+        private final char op;
+        private final int right;
+
+        BinaryOpStep(int left, char op, int right){
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+
+        @Override
+        double eval(double[] values, ExpressionContext context, double[] frame){
+            double a = values[left];
+            double b = values[right];
+            switch(op){
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default: return Math.pow(a, b);
+            }
+        }
+    }
+
+    private static final class CallStep extends Step{
+        private final FunctionExpression call;
+        private final int[] args;
+
+        CallStep(FunctionExpression call, int[] args){
+            this.call = call;
+            this.args = args;
+        }
+
+        @Override
+        double eval(double[] values, ExpressionContext context, double[] frame) throws UndefinedException{
+            double[] evaluatedArgs = new double[args.length]; //becomes the frame of the function, so it can't be reused
+            for(int i = 0; i < args.length; i++)
+                evaluatedArgs[i] = values[args[i]];
+            return call.resolve(context).eval(evaluatedArgs, context, null);
+        }
+    }
+
+    /**
+     * Any other node (variables, arguments, and types of expression that can't be flattened) is evaluated by the interpreter.
+     */
+    private static final class NodeStep extends Step{
+        private final Expression expr;
+
+        NodeStep(Expression expr){
+            this.expr = expr;
+        }
+
+        @Override
+        double eval(double[] values, ExpressionContext context, double[] frame) throws UndefinedException{
+            return expr.eval(context, null, frame);
+        }
+    }
+
+    private final Expression root;
+    private final Step[] steps;
+
+    /**
+     * Initializes a DagExpression.
+     * @param root The root of the tree, whose shared nodes must be the same objects.
+     */
+    DagExpression(Expression root){
+        this.root = root;
+        ArrayList<Step> stepList = new ArrayList<Step>();
+        addSteps(root, new IdentityHashMap<Expression, Integer>(), stepList);
+        this.steps = stepList.toArray(new Step[stepList.size()]);
+    }
+
+    /**
+     * Adds the steps to evaluate the specified node (and its operands, if they don't have a step yet) in post-order.
+     * @param expr The node.
+     * @param indexes The index of the step of each node which already has one.
+     * @param steps The steps.
+     * @return The index of the step of <code>expr</code>.
+     */
+    private static int addSteps(Expression expr, IdentityHashMap<Expression, Integer> indexes, ArrayList<Step> steps){
+        Integer index = indexes.get(expr);
+        if(index != null)
+            return index;
+        Step step;
+        if(expr instanceof ConstExpression)
+            step = new ConstStep(((ConstExpression) expr).getValue());
+        else if(expr instanceof NegatedExpression)
+            step = new NegatedStep(addSteps(expr.getSubExpressions()[0], indexes, steps));
+        else if(expr instanceof BinaryOpExpression){
+            Expression[] operands = expr.getSubExpressions();
+            int left = addSteps(operands[0], indexes, steps);
+            step = new BinaryOpStep(left, ((BinaryOpExpression) expr).getOperator(), addSteps(operands[1], indexes, steps));
+        }else if(expr instanceof FunctionExpression){
+            Expression[] args = expr.getSubExpressions();
+            int[] argIndexes = new int[args.length];
+            for(int i = 0; i < args.length; i++)
+                argIndexes[i] = addSteps(args[i], indexes, steps);
+            step = new CallStep((FunctionExpression) expr, argIndexes);
+        }else
+            step = new NodeStep(expr);
+        steps.add(step);
+        indexes.put(expr, steps.size() - 1);
+        return steps.size() - 1;
+    }
+
+    /**
+     * @return The root of the shared tree.
+     */
+    Expression getRoot(){
+        return root;
+    }
+
+    /**
+     * @return An array containing the root of the shared tree, so that tree walks see through this node.
+     */
+    @Override
+    public Expression[] getSubExpressions(){
+        return new Expression[]{root};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
+        return evalExpr(context, logWriter, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+        if(logWriter != null)
+            return root.eval(context, logWriter, frame);
+        double[] values = new double[steps.length];
+        for(int i = 0; i < steps.length; i++)
+            values[i] = steps[i].eval(values, context, frame);
+        return values[steps.length - 1];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Expression withSubExpressions(Expression[] subExpressions){
+        return subExpressions[0] == root ? this : new DagExpression(subExpressions[0]);
+    }
+
+    /**
+     * Returns the message to log when this expression is evaluated, which is empty because the root of the tree already logged its value.
+     * @return an empty string.
+     */
+    @Override
+    public String getEvalMsg(double val){
+        return "";
+    }
+
+    /**
+     * @return The string representation of the root of the tree.
+     */
+    @Override
+    public String toString(){
+        return root.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object other){
+        return other instanceof DagExpression && root.equals(((DagExpression) other).root);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode(){
+        return root.hashCode();
+    }
+
+}
@@ -1,8 +1,14 @@
 package com.github.gianlucanitti.javaexpreval;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import static com.github.gianlucanitti.javaexpreval.LocalizationHelper.*;
 
 /**
@@ -30,12 +36,38 @@ public abstract class Expression{
    * This method doesn't actually log anything (this is done by {@link #eval(ExpressionContext, PrintWriter)});
    * the parameter is passed to the underlying calls to {@link Expression#eval(ExpressionContext, PrintWriter)} of the sub-expressions (if any) to properly log each step.
    * @param context The {@link ExpressionContext} to evaluate the expression in.
-   * @param logWriter A {@link PrintWriter} to log the steps done.
+   * @param logWriter A {@link PrintWriter} to log the steps done, or <code>null</code> if the steps must not be logged.
    * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
    * @return The computed value of this expression.
    */
   protected abstract double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException;
 
+  /**
+   * Evaluates this expression as part of the body of a {@link CustomFunction}, reading the arguments of the current call from <code>frame</code>.
+   * Expressions that have sub-expressions override this to pass the frame down to them (see {@link ArgumentExpression});
+   * the default implementation ignores the frame and calls {@link #evalExpr(ExpressionContext, PrintWriter)}.
+   * @param context The {@link ExpressionContext} to evaluate the expression in.
+   * @param logWriter A {@link PrintWriter} to log the steps done, or <code>null</code> if the steps must not be logged.
+   * @param frame The values of the arguments of the function call being evaluated, or <code>null</code> if this isn't evaluated inside a function.
+   * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
+   * @return The computed value of this expression.
+   */
+  double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+    return evalExpr(context, logWriter);
+  }
+
+  /**
+   * Returns an expression of the same type of this one, with the specified sub-expressions.
+   * This is used to rewrite trees without modifying them (expressions can be shared, for example between the threads calling the same function).
+   * Expressions that have sub-expressions override this; the default implementation returns this expression,
+   * so an expression of another type is evaluated in a {@link ScopedExpression} when its variables must read the arguments of a function.
+   * @param subExpressions The new sub-expressions, in the same order of {@link #getSubExpressions()}.
+   * @return A new expression, or this one if <code>subExpressions</code> are the same of this expression.
+   */
+  Expression withSubExpressions(Expression[] subExpressions){
+    return this;
+  }
+
   /**
    * Returns a string representing the log entry corresponding to the evaluation of this expression.
    * Can be overridden by expression that need custom log messages (see for example {@link ConstExpression#getEvalMsg(double)});
@@ -66,34 +98,70 @@ public abstract class Expression{
   }
 
   /**
-   * Evaluates this expression and logs the steps done to the specified {@link PrintWriter};
-   * the result is returned and stored in the "ans" variable in the context.
+   * Evaluates this expression and logs the steps done to the specified {@link PrintWriter}.
+   * This is called on each node of the expression tree; the result is not stored in the context (this is done only once, for the root
+   * of the tree, by {@link #eval(ExpressionContext, Writer, boolean)}).
    * @param context The {@link ExpressionContext} to evaluate the expression in.
-   * @param logWriter A {@link PrintWriter} to write the evaluation steps to.
+   * @param logWriter A {@link PrintWriter} to write the evaluation steps to, or <code>null</code> to skip logging completely.
    * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
    * @return The computed value of this expression.
    */
   protected final double eval(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
-    double val = evalExpr(context, logWriter);
-    logWriter.print(getEvalMsg(val));
-    logWriter.flush();
-    try {
-      context.setVariable("ans", val);
-    }catch(ExpressionException ex){
-      logWriter.println(getMessage(Message.FAILED_STORE_RESULT, ex.getMessage()));
+    return eval(context, logWriter, null);
+  }
+
+  /**
+   * Evaluates this expression with the specified argument frame and logs the steps done to the specified {@link PrintWriter}.
+   * @param context The {@link ExpressionContext} to evaluate the expression in.
+   * @param logWriter A {@link PrintWriter} to write the evaluation steps to, or <code>null</code> to skip logging completely.
+   * @param frame The values of the arguments of the function call being evaluated (see {@link #evalExpr(ExpressionContext, PrintWriter, double[])}).
+   * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
+   * @return The computed value of this expression.
+   */
+  final double eval(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+    double val = evalExpr(context, logWriter, frame);
+    if(logWriter != null) {
+      logWriter.print(getEvalMsg(val));
+      logWriter.flush();
     }
     return val;
   }
 
   /**
-   * Evaluates this expression and logs the steps done to the specified {@link Writer}.
+   * Evaluates this expression and optionally logs the steps done to the specified {@link Writer} and stores the result in the "ans" variable in the context.
+   * Storing the result doesn't notify the {@link ContextListener}s and the observers of the context.
+   * When <code>logWriter</code> is <code>null</code> (or a writer returned by {@link NullOutputStream#getWriter()}) and <code>storeResult</code> is <code>false</code>,
+   * the expression is evaluated without any side effect, which is the fastest way to evaluate it many times.
    * @param context The {@link ExpressionContext} to evaluate the expression in.
-   * @param logWriter A {@link Writer} to write the evaluation steps to.
+   * @param logWriter A {@link Writer} to write the evaluation steps to, or <code>null</code> if the steps must not be logged.
+   * @param storeResult Whether the result must be stored in the "ans" variable of the context.
+   * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
+   * @return The computed value of this expression.
+   */
+  public final double eval(ExpressionContext context, Writer logWriter, boolean storeResult) throws UndefinedException{
+    PrintWriter printWriter = NullOutputStream.isNullWriter(logWriter) ? null : new PrintWriter(logWriter);
+    double val = eval(context, printWriter);
+    if(storeResult) {
+      try {
+        context.storeResult(val);
+      } catch (ExpressionException ex) {
+        if(printWriter != null)
+          printWriter.println(getMessage(Message.FAILED_STORE_RESULT, ex.getMessage()));
+      }
+    }
+    return val;
+  }
+
+  /**
+   * Evaluates this expression and logs the steps done to the specified {@link Writer};
+   * the result is returned and stored in the "ans" variable in the context.
+   * @param context The {@link ExpressionContext} to evaluate the expression in.
+   * @param logWriter A {@link Writer} to write the evaluation steps to, or <code>null</code> if the steps must not be logged.
    * @throws UndefinedException if the expression can't be evaluated because it contains a symbol (function or variable) not defined in the context.
    * @return The computed value of this expression.
    */
   public final double eval(ExpressionContext context, Writer logWriter) throws UndefinedException{
-    return eval(context, new PrintWriter(logWriter));
+    return eval(context, logWriter, true);
   }
 
   /**
@@ -103,7 +171,7 @@ public abstract class Expression{
    * @return The computed value of this expression.
    */
   public final double eval(ExpressionContext context) throws UndefinedException{
-    return eval(context, NullOutputStream.getWriter());
+    return eval(context, null, true);
   }
 
   /**
@@ -126,131 +194,201 @@ public abstract class Expression{
   }
 
   /**
-   * Parses the given {@link String} into an {@link Expression} object without logging the steps done.
-   * @param expr The string representation of the expression to parse.
-   * @return An {@link Expression} object representing the expression given as string.
-   * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
+   * Evaluates this expression over many rows of values of the variables, given as columns, storing the result of each row in <code>out</code>.
+   * Each operation is applied to a whole chunk of rows at a time, in loops over primitive arrays; this is much faster than setting the variables
+   * in a context and evaluating the expression once per row. The result is not stored in the "ans" variable.
+   * Functions and the variables that aren't in <code>columns</code> are resolved in <code>context</code> once, before evaluating the first row.
+   * @param context The {@link ExpressionContext} used to resolve functions and the variables that aren't in <code>columns</code>.
+   * @param columns A map from the names of the variables to arrays of their values, indexed by row.
+   * @param out The array where the results are stored; its length is the number of rows to evaluate.
+   * @throws UndefinedException if the expression contains a symbol (function or variable) that is neither in <code>columns</code> nor defined in the context.
+   * @throws IllegalArgumentException if one of the columns has less rows than <code>out</code>.
    */
-  public static final Expression parse(String expr) throws ExpressionException{
-    return parse(expr, NullOutputStream.getWriter());
+  public final void evalBatch(ExpressionContext context, Map<String, double[]> columns, double[] out) throws UndefinedException{
+    checkColumns(columns, out);
+    new BatchEvaluator(this, context, columns).eval(out, 0, out.length);
   }
 
   /**
-   * Parses the given {@link String} into an {@link Expression} object and logs the steps done to the specified {@link Writer}.
-   * @param expr The string representation of the expression to parse.
-   * @param logWriter A {@link Writer} to write the parsing steps to.
-   * @return An {@link Expression} object representing the expression given as string.
-   * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
+   * Evaluates this expression over many rows of values of the variables, given as buffers of doubles, storing the result of each row in <code>out</code>;
+   * like {@link #evalBatch(ExpressionContext, Map, double[])}, but the values can be read and written in place from memory-mapped files (see {@link ColumnFile}).
+   * The rows of each buffer start at its current position; the positions of the buffers are not changed.
+   * @param context The {@link ExpressionContext} used to resolve functions and the variables that aren't in <code>columns</code>.
+   * @param columns A map from the names of the variables to buffers of their values, indexed by row.
+   * @param out The buffer where the results are stored; its remaining elements are the number of rows to evaluate.
+   * @throws UndefinedException if the expression contains a symbol (function or variable) that is neither in <code>columns</code> nor defined in the context.
+   * @throws IllegalArgumentException if one of the columns has less remaining rows than <code>out</code>.
    */
-  public static final Expression parse(String expr, Writer logWriter) throws ExpressionException{
-    return parseRange(expr, 0, expr.length(), new PrintWriter(logWriter));
+  public final void evalBatch(ExpressionContext context, Map<String, DoubleBuffer> columns, DoubleBuffer out) throws UndefinedException{
+    for(DoubleBuffer column: columns.values())
+      if(column.remaining() < out.remaining())
+        throw new IllegalArgumentException();
+    BatchEvaluator.forBuffers(this, context, columns).eval(out, 0, out.remaining());
   }
 
   /**
-   * Parses a range of the given {@link String} into an {@link Expression} object and logs the steps done to the specified {@link PrintWriter}.
+   * Like {@link #evalBatch(ExpressionContext, Map, double[])}, but the rows are split into ranges which are evaluated in parallel by the threads of the specified pool.
+   * Each range is evaluated by its own evaluator, which writes to its part of <code>out</code>; since this expression and the context are only read,
+   * the throughput grows with the number of threads. The context must not be modified until this method returns.
+   * @param context The {@link ExpressionContext} used to resolve functions and the variables that aren't in <code>columns</code>.
+   * @param columns A map from the names of the variables to arrays of their values, indexed by row.
+   * @param out The array where the results are stored; its length is the number of rows to evaluate.
+   * @param pool The {@link ForkJoinPool} which runs the evaluation.
+   * @throws UndefinedException if the expression contains a symbol (function or variable) that is neither in <code>columns</code> nor defined in the context.
+   * @throws IllegalArgumentException if one of the columns has less rows than <code>out</code>.
+   */
+  public final void evalBatchParallel(ExpressionContext context, Map<String, double[]> columns, double[] out, ForkJoinPool pool) throws UndefinedException{
+    checkColumns(columns, out);
+    BatchEvaluator.evalParallel(this, context, columns, out, pool);
+  }
+
+  /**
+   * Like {@link #evalBatch(ExpressionContext, Map, double[])}, but the rows are evaluated in parallel by the common {@link ForkJoinPool}
+   * (see {@link #evalBatchParallel(ExpressionContext, Map, double[], ForkJoinPool)}).
+   * @param context The {@link ExpressionContext} used to resolve functions and the variables that aren't in <code>columns</code>.
+   * @param columns A map from the names of the variables to arrays of their values, indexed by row.
+   * @param out The array where the results are stored; its length is the number of rows to evaluate.
+   * @throws UndefinedException if the expression contains a symbol (function or variable) that is neither in <code>columns</code> nor defined in the context.
+   * @throws IllegalArgumentException if one of the columns has less rows than <code>out</code>.
+   */
+  public final void evalBatchParallel(ExpressionContext context, Map<String, double[]> columns, double[] out) throws UndefinedException{
+    evalBatchParallel(context, columns, out, ForkJoinPool.commonPool());
+  }
+
+  private static void checkColumns(Map<String, double[]> columns, double[] out){
+    for(double[] column: columns.values())
+      if(column.length < out.length)
+        throw new IllegalArgumentException();
+  }
+
+  /**
+   * Evaluates this expression in an empty context over many rows of values of the variables, given as columns.
+   * Equivalent to {@link #evalBatch(ExpressionContext, Map, double[])} with an empty context.
+   * @param columns A map from the names of the variables to arrays of their values, indexed by row.
+   * @param out The array where the results are stored; its length is the number of rows to evaluate.
+   * @throws UndefinedException if the expression contains a symbol (function or variable) that is neither in <code>columns</code> nor a built-in function.
+   * @throws IllegalArgumentException if one of the columns has less rows than <code>out</code>.
+   */
+  public final void evalBatch(Map<String, double[]> columns, double[] out) throws UndefinedException{
+    evalBatch(new ExpressionContext(), columns, out);
+  }
+
+  /**
+   * Returns an expression equivalent to this one which is cheaper to evaluate, by folding constants and removing redundant operations.
+   * The result is exactly the same of this expression for every value of the variables (see {@link ExpressionOptimizer} for the rewrites that are applied).
+   * This expression is not modified.
+   * @return The optimized expression, or this one if it can't be optimized.
+   */
+  public final Expression optimize(){
+    return ExpressionOptimizer.optimize(this);
+  }
+
+  /**
+   * Returns an expression equivalent to this one in the specified context which is cheaper to evaluate: like {@link #optimize()},
+   * but the calls to the read-only user-defined functions of the context are replaced by their definitions first
+   * (see {@link ExpressionOptimizer#inline(Expression, ExpressionContext, int)}), so they can be optimized and compiled together with this expression.
+   * This expression is not modified.
+   * @param context The context where the result will be evaluated.
+   * @return The optimized expression, or this one if it can't be optimized.
+   */
+  public final Expression optimize(ExpressionContext context){
+    return ExpressionOptimizer.optimize(this, context);
+  }
+
+  /**
+   * Compiles this expression to JVM bytecode, binding the calls to built-in functions at compile time.
+   * The returned object gives the same results as {@link #eval(ExpressionContext)}, but it's much faster when the same expression is evaluated many times.
+   * Symbols that can't be resolved in <code>context</code> when this method is called (and user-defined functions, that can be redefined)
+   * are looked up by the interpreter at evaluation time.
+   * @param context The {@link ExpressionContext} used to resolve the functions at compile time.
+   * @return A {@link CompiledExpression} equivalent to this expression.
+   */
+  public final CompiledExpression compile(ExpressionContext context){
+    return ExpressionCompiler.compile(this, context);
+  }
+
+  /**
+   * Compiles this expression to JVM bytecode, binding the calls to built-in functions at compile time.
+   * Equivalent to {@link #compile(ExpressionContext)} with an empty context.
+   * @return A {@link CompiledExpression} equivalent to this expression.
+   */
+  public final CompiledExpression compile(){
+    return compile(new ExpressionContext());
+  }
+
+  /**
+   * Prepares this expression to be evaluated many times with different values of the specified variables, which are bound to slots in the given order.
+   * Equivalent to {@link PreparedExpression#PreparedExpression(Expression, ExpressionContext, String...)}.
+   * @param context The {@link ExpressionContext} used to resolve functions and the variables that aren't bound to slots.
+   * @param variableNames The names of the variables, in slot order.
+   * @return A {@link PreparedExpression} equivalent to this expression.
+   */
+  public final PreparedExpression prepare(ExpressionContext context, String ... variableNames){
+    return new PreparedExpression(this, context, variableNames);
+  }
+
+  /**
+   * Prepares this expression to be evaluated many times in an empty context, binding all its variables to slots in order of first appearance.
+   * Equivalent to {@link PreparedExpression#PreparedExpression(Expression)}.
+   * @return A {@link PreparedExpression} equivalent to this expression.
+   */
+  public final PreparedExpression prepare(){
+    return new PreparedExpression(this);
+  }
+
+  /**
+   * Writes this expression to a stream in a compact binary format, which can be loaded again by {@link #readFrom(InputStream)} or {@link #readFrom(ByteBuffer)}
+   * much faster than the text representation can be parsed. The constants are written exactly (signed zeros and NaN included), and the shared
+   * nodes of an expression built by {@link ExpressionInterner} are written once.
+   * @param out The stream to write the expression to; it's not closed.
+   * @throws IOException if the stream can't be written.
+   * @throws java.io.NotSerializableException if the tree contains an expression of a type defined outside of this library.
+   */
+  public final void writeTo(OutputStream out) throws IOException{
+    ExpressionCodec.write(this, out);
+  }
+
+  /**
+   * Reads an expression written by {@link #writeTo(OutputStream)}. The stream is not read past the end of the expression,
+   * so many expressions (or other data) can be written one after the other.
+   * @param in The stream to read the expression from; it's not closed.
+   * @return The expression.
+   * @throws IOException if the stream can't be read, or it doesn't contain an expression in a supported version of the format.
+   */
+  public static final Expression readFrom(InputStream in) throws IOException{
+    return ExpressionCodec.read(in);
+  }
+
+  /**
+   * Reads an expression written by {@link #writeTo(OutputStream)} from the current position of a buffer (for example a mapped file),
+   * and moves the position to the end of the expression.
+   * @param buffer The buffer to read the expression from.
+   * @return The expression.
+   * @throws IOException if the buffer doesn't contain an expression in a supported version of the format; in this case the position is not changed.
+   */
+  public static final Expression readFrom(ByteBuffer buffer) throws IOException{
+    return ExpressionCodec.read(buffer);
+  }
+
+  /**
+   * Parses the given {@link String} into an {@link Expression} object without logging the steps done.
    * @param expr The string representation of the expression to parse.
-   * @param begin Index of the first character to parse.
-   * @param end Index of the first character to ignore (the first in the string after the last in the parsed substring).
-   * @param logWriter A {@link PrintWriter} to write the parsing steps to.
    * @return An {@link Expression} object representing the expression given as string.
    * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
    */
-  private static Expression parseRange(String expr, int begin, int end, PrintWriter logWriter) throws ExpressionException{
-    int i = begin;
-    ExpressionList subExpressions = new ExpressionList();
-    boolean negate = false;
-    boolean expectExpression;
-    while(i < end){
-      expectExpression = !subExpressions.isExpectingOperator();
-      char c = expr.charAt(i);
-      Expression itemToAdd = null;
-      if(expectExpression && (c == '+' || c == '-')) {
-        if(c == '-')
-          negate = !negate;
-        i++;
-      }else if(c == '.' || Character.isDigit(c)) {
-        String number = "";
-        while (c == '.' || Character.isDigit(c)) {
-          number += c;
-          i++;
-          if (i >= end)
-            break;
-          c = expr.charAt(i);
-        }
-        itemToAdd = new ConstExpression(Double.parseDouble(number));
-      }else if (NamedSymbolExpression.isValidSymbolFirstChar(c)){
-        String symName = "";
-        while(NamedSymbolExpression.isValidSymbolChar(c)){
-          symName += c;
-          i++;
-          if(i >= end)
-            break;
-          c = expr.charAt(i);
-        }
-        if(i < end && expr.charAt(i) == '(') { //it's a function
-          int closedIndex = findCloseParenthesis(expr, i);
-          int argBegin = i + 1;
-          int argEnd;
-          ArrayList<Expression> args = new ArrayList<Expression>();
-          do{
-            argEnd = expr.indexOf(',', argBegin);
-            if(argEnd == -1 || argEnd > closedIndex)
-              argEnd = closedIndex;
-            if(argBegin != argEnd)
-              args.add(parseRange(expr, argBegin, argEnd, logWriter));
-            argBegin = argEnd + 1;
-          }while(argEnd != closedIndex);
-          itemToAdd = new FunctionExpression(symName, args.toArray(new Expression[args.size()]));
-          i = closedIndex + 1;
-        }else //it's a variable
-          itemToAdd = new VariableExpression(symName);
-      }else if(c == '('){
-        int closedIndex = findCloseParenthesis(expr, i);
-        itemToAdd = parseRange(expr, i + 1, closedIndex, logWriter);
-        i = closedIndex + 1;
-      }else if(BinaryOpExpression.isAllowedOperator(c)) {
-        subExpressions.addOperator(c);
-        i++;
-      }else if(c == ')'){ //if a closed parenthesis is found here instead that in findCloseParenthesis, it means there are more closed than opened ones
-        throw new MismatchedParenthesisException();
-      }else if(c == ' ') { //spaces are allowed and ignored
-        i++;
-      }else{
-        throw new UnknownCharException(c);
-      }
-      if(itemToAdd != null) {
-        subExpressions.addItem(negate ? new NegatedExpression(itemToAdd) : itemToAdd);
-        negate = false;
-      }
-    }
-    Expression result = subExpressions.simplify();
-    String userStr = expr.substring(begin, end);
-    String parsedStr = result.toString();
-    if(!userStr.equals(parsedStr)) { //log only if the string representation of the parsed expression is different from the input string
-      logWriter.println(getMessage(Message.REWRITE_STEP, userStr, parsedStr));
-      logWriter.flush();
-    }
-    return result;
+  public static final Expression parse(String expr) throws ExpressionException{
+    return parse(expr, null);
   }
 
   /**
-   * Given a string and the index to a open parenthesis in it, computes the respective closed parenthesis.
-   * @param s The string containing the parenthesis.
-   * @param openIndex The index of the opened parenthesis character in the string (if s.charAt(openIndex)!='(', the call will result in undefined behaviour).
-   * @return The index of the corresponding closed parenthesis.
-   * @throws MismatchedParenthesisException if the numbers of opened and closed parenthesis in the string after <code>openIndex</code> don't match.
+   * Parses the given {@link String} into an {@link Expression} object and logs the steps done to the specified {@link Writer}.
+   * @param expr The string representation of the expression to parse.
+   * @param logWriter A {@link Writer} to write the parsing steps to, or <code>null</code> if the steps must not be logged.
+   * @return An {@link Expression} object representing the expression given as string.
+   * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
    */
-  private static int findCloseParenthesis(String s, int openIndex) throws MismatchedParenthesisException{
-    int openedCount = 1;
-    for(int i = openIndex + 1; i < s.length(); i++){
-      if(s.charAt(i) == '(')
-        openedCount++;
-      else if(s.charAt(i) == ')')
-        openedCount--;
-      if(openedCount == 0)
-        return i;
-    }
-    throw new MismatchedParenthesisException();
+  public static final Expression parse(String expr, Writer logWriter) throws ExpressionException{
+    return ExpressionParser.parse(expr, NullOutputStream.isNullWriter(logWriter) ? null : new PrintWriter(logWriter));
   }
 
 }
@@ -0,0 +1,160 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of parsed {@link Expression}s, keyed by their source text, that evicts the least recently used entries.
+ * The cache can be bounded by number of entries and by total size, which is estimated as the length of the cached source strings.
+ * It can be safely used by many threads at the same time; parsing happens outside of the lock, so a slow parse doesn't block other lookups.
+ * The cached expressions are shared between all the callers, so they must not be modified (see {@link Expression#bindVariables(String[], double[])}).
+ */
+public class ExpressionCache {
+
+    private final int maxEntries;
+    private final long maxSize;
+    private final LinkedHashMap<String, Expression> entries = new LinkedHashMap<String, Expression>(16, 0.75f, true); //access order, so the first entry is the least recently used
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Initializes a new ExpressionCache bounded by number of entries and total size.
+     * @param maxEntries The maximum number of expressions to keep.
+     * @param maxSize The maximum total length of the source strings of the cached expressions.
+     * @throws IllegalArgumentException if <code>maxEntries</code> or <code>maxSize</code> is negative.
+     */
+    public ExpressionCache(int maxEntries, long maxSize){
+        if(maxEntries < 0 || maxSize < 0)
+            throw new IllegalArgumentException();
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Initializes a new ExpressionCache bounded by number of entries only.
+     * @param maxEntries The maximum number of expressions to keep.
+     * @throws IllegalArgumentException if <code>maxEntries</code> is negative.
+     */
+    public ExpressionCache(int maxEntries){
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the expression parsed from the specified string, parsing it only if it's not already cached.
+     * @param expr The string representation of the expression to parse.
+     * @return An {@link Expression} object representing the expression given as string.
+     * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression. Failures are not cached.
+     */
+    public Expression parse(String expr) throws ExpressionException{
+        return parse(expr, null);
+    }
+
+    /**
+     * Returns the expression parsed from the specified string, parsing it only if it's not already cached.
+     * The parsing steps are logged to the specified {@link Writer} only when the expression is actually parsed (i.e. it wasn't cached).
+     * @param expr The string representation of the expression to parse.
+     * @param logWriter A {@link Writer} to write the parsing steps to, or <code>null</code> if the steps must not be logged.
+     * @return An {@link Expression} object representing the expression given as string.
+     * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression. Failures are not cached.
+     */
+    public Expression parse(String expr, Writer logWriter) throws ExpressionException{
+        synchronized(entries){
+            Expression cached = entries.get(expr);
+            if(cached != null){
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        Expression parsed = Expression.parse(expr, logWriter);
+        synchronized(entries){
+            Expression previous = entries.put(expr, parsed);
+            if(previous == null) //it may have been added by another thread in the meanwhile
+                size += expr.length();
+            evict();
+        }
+        return parsed;
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is within its bounds. Must be called with the lock held.
+     */
+    private void evict(){
+        Iterator<Map.Entry<String, Expression>> iterator = entries.entrySet().iterator();
+        while((entries.size() > maxEntries || size > maxSize) && iterator.hasNext()){
+            size -= iterator.next().getKey().length();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all the entries from the cache. Statistics are not reset.
+     */
+    public void clear(){
+        synchronized(entries){
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return The number of expressions currently cached.
+     */
+    public int getEntryCount(){
+        synchronized(entries){
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The estimated size of the cached expressions (the total length of their source strings).
+     */
+    public long getSize(){
+        synchronized(entries){
+            return size;
+        }
+    }
+
+    /**
+     * @return The number of calls to {@link #parse(String, Writer)} that found the expression in the cache.
+     */
+    public long getHits(){
+        synchronized(entries){
+            return hits;
+        }
+    }
+
+    /**
+     * @return The number of calls to {@link #parse(String, Writer)} that had to parse the expression.
+     */
+    public long getMisses(){
+        synchronized(entries){
+            return misses;
+        }
+    }
+
+    /**
+     * @return The number of expressions removed from the cache to keep it within its bounds.
+     */
+    public long getEvictions(){
+        synchronized(entries){
+            return evictions;
+        }
+    }
+
+    /**
+     * @return A string representation of the statistics of this cache.
+     */
+    @Override
+    public String toString(){
+        synchronized(entries){
+            return "entries=" + entries.size() + ", size=" + size + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+        }
+    }
+
+}
@@ -0,0 +1,492 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Encodes expression trees in a compact binary format, so that they can be stored and loaded again without parsing them
+ * (see {@link Expression#writeTo(OutputStream)} and {@link Expression#readFrom(ByteBuffer)}).
+ * The format is big-endian; the numbers marked as varints are unsigned, written 7 bits per byte starting from the lowest ones,
+ * with the highest bit of each byte set if more bytes follow:
+ * <ul>
+ *     <li>the magic number <code>0x4A455845</code> ("JEXE" in ASCII), as a 32 bit integer, and the format version (1), as a byte;</li>
+ *     <li>the number of bytes of the rest of the encoding (varint), so that a reader never reads past its end;</li>
+ *     <li>the constant pool: the number of distinct constants (varint), followed by the constants as 64 bit IEEE 754 doubles;</li>
+ *     <li>the symbol pool: the number of distinct names (varint), followed by each name as the number of bytes (varint) and the UTF-8 bytes;</li>
+ *     <li>the number of operations (nodes with operands) of the tree if some of them are shared (see below), 0 otherwise (varint);</li>
+ *     <li>the nodes of the tree in prefix order, each one as an opcode byte followed by its operands (varints):
+ *     a constant (index in the constant pool), a variable (index in the symbol pool), a variable bound to a value (name and constant),
+ *     a negation, one opcode for each binary operator, a function call (name and number of arguments)
+ *     and an argument of a user-defined function body (name and position in the frame).</li>
+ * </ul>
+ * The operations can be nested at most {@link #MAX_DEPTH} levels.
+ * The operations are numbered in prefix order; when an operation appears again in the tree (as in the expressions built by {@link ExpressionInterner}),
+ * it's written as a reference to its number, so the shared nodes are shared in the decoded tree too.
+ */
+final class ExpressionCodec {
+
+    private static final int MAGIC = 0x4A455845;
+    private static final byte VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte CONST = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte BOUND_VARIABLE = 2;
+    private static final byte NEGATION = 3;
+    private static final byte CALL = 4;
+    private static final byte ARGUMENT = 5;
+    private static final byte REFERENCE = 6;
+    private static final byte OPERATION = 7; //followed by one opcode for each operator, in the order of OPERATORS
+    private static final String OPERATORS = "+-*/^";
+
+    /**
+     * The maximum nesting of operations (with operands) in an encoded tree. Deeper trees are neither written nor read:
+     * the trees are encoded and decoded without recursion, but most of the other operations on a tree (like evaluating it) are recursive.
+     */
+    static final int MAX_DEPTH = 10000;
+
+    private ExpressionCodec(){}
+
+    /**
+     * Builds the pools and the nodes of an encoding.
+     */
+    private static final class Encoder{
+        private final HashMap<Long, Integer> constants = new HashMap<Long, Integer>(); //by bits, so that -0.0 and NaNs are kept as they are
+        private final ArrayList<Double> constantPool = new ArrayList<Double>();
+        private final HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+        private final ArrayList<String> symbolPool = new ArrayList<String>();
+        private final IdentityHashMap<Expression, Integer> operations = new IdentityHashMap<Expression, Integer>();
+        private final ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        private boolean shared;
+
+        private int constant(double value){
+            Long bits = Double.doubleToRawLongBits(value);
+            Integer index = constants.get(bits);
+            if(index == null){
+                constants.put(bits, index = constantPool.size());
+                constantPool.add(value);
+            }
+            return index;
+        }
+
+        private int symbol(String name){
+            Integer index = symbols.get(name);
+            if(index == null){
+                symbols.put(name, index = symbolPool.size());
+                symbolPool.add(name);
+            }
+            return index;
+        }
+
+        /**
+         * Encodes a tree without recursion, so that a deep tree can't overflow the stack.
+         * @throws IOException if the operations are nested more than {@link #MAX_DEPTH} levels, or the tree contains an expression of an unknown type.
+         */
+        private void encode(Expression root) throws IOException{
+            ArrayList<Expression> pending = new ArrayList<Expression>(); //the nodes to write, the next one last
+            ArrayList<Integer> depths = new ArrayList<Integer>(); //the number of operations each pending node is an operand of
+            pending.add(root);
+            depths.add(0);
+            while(!pending.isEmpty()){
+                Expression expr = pending.remove(pending.size() - 1);
+                int depth = depths.remove(depths.size() - 1);
+                if(expr instanceof DagExpression){
+                    pending.add(((DagExpression) expr).getRoot());
+                    depths.add(depth);
+                    continue;
+                }
+                Integer index = operations.get(expr);
+                if(index != null){
+                    nodes.write(REFERENCE);
+                    writeVarint(nodes, index);
+                    shared = true;
+                    continue;
+                }
+                if(expr instanceof ConstExpression){
+                    nodes.write(CONST);
+                    writeVarint(nodes, constant(((ConstExpression) expr).getValue()));
+                }else if(expr instanceof VariableExpression){
+                    VariableExpression var = (VariableExpression) expr;
+                    ConstExpression binding = var.getBinding();
+                    nodes.write(binding == null ? VARIABLE : BOUND_VARIABLE);
+                    writeVarint(nodes, symbol(var.getName()));
+                    if(binding != null)
+                        writeVarint(nodes, constant(binding.getValue()));
+                }else if(expr instanceof ArgumentExpression){
+                    ArgumentExpression arg = (ArgumentExpression) expr;
+                    nodes.write(ARGUMENT);
+                    writeVarint(nodes, symbol(arg.getName()));
+                    writeVarint(nodes, arg.getIndex());
+                }else{
+                    Expression[] subExpressions = expr.getSubExpressions();
+                    if(expr instanceof NegatedExpression)
+                        nodes.write(NEGATION);
+                    else if(expr instanceof BinaryOpExpression)
+                        nodes.write(OPERATION + OPERATORS.indexOf(((BinaryOpExpression) expr).getOperator()));
+                    else if(expr instanceof FunctionExpression){
+                        nodes.write(CALL);
+                        writeVarint(nodes, symbol(((FunctionExpression) expr).getName()));
+                        writeVarint(nodes, subExpressions.length);
+                    }else
+                        throw new NotSerializableException(expr.getClass().getName());
+                    if(subExpressions.length > 0 && depth >= MAX_DEPTH) //the readers reject it
+                        throw new IOException("Expression too deep");
+                    operations.put(expr, operations.size());
+                    for(int i = subExpressions.length - 1; i >= 0; i--){ //the first operand is written first
+                        pending.add(subExpressions[i]);
+                        depths.add(depth + 1);
+                    }
+                }
+            }
+        }
+
+        private void writeTo(OutputStream out) throws IOException{
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(body);
+            writeVarint(data, constantPool.size());
+            for(double value: constantPool)
+                data.writeDouble(value);
+            writeVarint(data, symbolPool.size());
+            for(String name: symbolPool){
+                byte[] bytes = name.getBytes(UTF8);
+                writeVarint(data, bytes.length);
+                data.write(bytes);
+            }
+            writeVarint(data, shared ? operations.size() : 0);
+            nodes.writeTo(data);
+            data.flush();
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            writeVarint(header, body.size());
+            body.writeTo(header);
+            header.flush();
+        }
+    }
+
+    /**
+     * Decodes the nodes of an encoding, whose pools have already been read.
+     */
+    private static final class Decoder{
+        private final ByteBuffer buffer;
+        private final double[] constants;
+        private final String[] symbols;
+        private final Expression[] operations; //null if the tree has no shared operations
+        private final String[] argNames; //null if the tree isn't the body of a function
+        private int operationCount;
+
+        private Decoder(ByteBuffer buffer, double[] constants, String[] symbols, int operationCount, String[] argNames){
+            this.buffer = buffer;
+            this.constants = constants;
+            this.symbols = symbols;
+            this.argNames = argNames;
+            this.operations = operationCount == 0 ? null : new Expression[operationCount];
+        }
+
+        private double constant() throws IOException{
+            int index = readVarint(buffer);
+            if(index >= constants.length)
+                throw new IOException("Invalid constant index: " + index);
+            return constants[index];
+        }
+
+        private String symbol() throws IOException{
+            int index = readVarint(buffer);
+            if(index >= symbols.length)
+                throw new IOException("Invalid symbol index: " + index);
+            return symbols[index];
+        }
+
+        /**
+         * Decodes a tree without recursion, keeping the operations whose operands are being decoded in a list, so that a deep tree can't overflow the stack.
+         */
+        private Expression decode() throws IOException, ExpressionException{
+            ArrayList<PendingOperation> pending = new ArrayList<PendingOperation>(); //the innermost operation is the last one
+            while(true){
+                Expression node = decodeNode(pending);
+                while(node != null){
+                    if(pending.isEmpty())
+                        return node;
+                    PendingOperation op = pending.get(pending.size() - 1);
+                    op.operands[op.count++] = node;
+                    if(op.count < op.operands.length)
+                        break;
+                    pending.remove(pending.size() - 1); //the last operand completes the operation, which is an operand of the previous one
+                    node = complete(op);
+                }
+            }
+        }
+
+        /**
+         * Decodes a node.
+         * @param pending The operations whose operands are being decoded; if the node is an operation with operands, it's added to the list.
+         * @return The decoded node, or <code>null</code> if its operands must be decoded first.
+         */
+        private Expression decodeNode(ArrayList<PendingOperation> pending) throws IOException, ExpressionException{
+            byte opcode = buffer.get();
+            switch(opcode){
+                case CONST:
+                    return new ConstExpression(constant());
+                case VARIABLE:
+                    return new VariableExpression(symbol());
+                case BOUND_VARIABLE:
+                    VariableExpression var = new VariableExpression(symbol());
+                    var.bind(new ConstExpression(constant()));
+                    return var;
+                case ARGUMENT:
+                    String argName = symbol();
+                    NamedSymbolExpression.assertValidSymbolName(argName);
+                    int argIndex = readVarint(buffer);
+                    if(argNames != null && (argIndex >= argNames.length || !argNames[argIndex].equals(argName))) //it would read another argument, or past the end of the frame
+                        throw new IOException("Invalid argument: " + argName + " at position " + argIndex);
+                    return new ArgumentExpression(argName, argIndex);
+                case REFERENCE:
+                    int index = readVarint(buffer);
+                    if(operations == null || index >= operationCount || operations[index] == null) //an operation can't be an operand of itself
+                        throw new IOException("Invalid reference: " + index);
+                    return operations[index];
+            }
+            int position = operationCount++; //numbered before the operands, as they were written
+            PendingOperation op;
+            if(opcode == NEGATION)
+                op = new PendingOperation(opcode, position, null, 1);
+            else if(opcode == CALL){
+                String name = symbol();
+                int argCount = readVarint(buffer);
+                if(argCount > buffer.remaining()) //each argument takes at least one byte
+                    throw new IOException("Invalid number of arguments: " + argCount);
+                op = new PendingOperation(opcode, position, name, argCount);
+            }else if(opcode >= OPERATION && opcode < OPERATION + OPERATORS.length())
+                op = new PendingOperation(opcode, position, null, 2);
+            else
+                throw new IOException("Invalid opcode: " + opcode);
+            if(op.operands.length == 0)
+                return complete(op);
+            if(pending.size() >= MAX_DEPTH)
+                throw new IOException("Expression too deep");
+            pending.add(op);
+            return null;
+        }
+
+        /**
+         * Builds an operation whose operands have all been decoded.
+         */
+        private Expression complete(PendingOperation op) throws IOException, ExpressionException{
+            Expression result;
+            if(op.opcode == NEGATION)
+                result = new NegatedExpression(op.operands[0]);
+            else if(op.opcode == CALL)
+                result = new FunctionExpression(op.name, op.operands);
+            else
+                result = new BinaryOpExpression(op.operands[0], OPERATORS.charAt(op.opcode - OPERATION), op.operands[1]);
+            if(operations != null){
+                if(op.position >= operations.length)
+                    throw new IOException("Too many operations");
+                operations[op.position] = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An operation whose operands are being decoded.
+     */
+    private static final class PendingOperation{
+        private final byte opcode;
+        private final int position;
+        private final String name; //the name of the function, if it's a call
+        private final Expression[] operands;
+        private int count;
+
+        private PendingOperation(byte opcode, int position, String name, int operandCount){
+            this.opcode = opcode;
+            this.position = position;
+            this.name = name;
+            this.operands = new Expression[operandCount];
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException{
+        while((value & ~0x7f) != 0){
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value){
+        try{
+            writeVarint((OutputStream) out, value);
+        }catch(IOException ex){
+            throw new AssertionError(ex); //never thrown by a ByteArrayOutputStream
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException{
+        byte first = buffer.get();
+        if(first >= 0) //most operands are small indexes
+            return first;
+        int value = first & 0x7f;
+        for(int shift = 7; shift < 32; shift += 7){
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0){
+                if(value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    private static int readVarint(InputStream in) throws IOException{
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.read();
+            if(b < 0)
+                throw new IOException("Truncated expression");
+            value |= (b & 0x7f) << shift;
+            if(b < 0x80){
+                if(value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Encodes an expression.
+     * @param expr The expression to encode.
+     * @param out The stream to write the encoding to.
+     * @throws IOException if the stream can't be written.
+     * @throws NotSerializableException if the tree contains an expression of a type defined outside of this library.
+     */
+    static void write(Expression expr, OutputStream out) throws IOException{
+        Encoder encoder = new Encoder();
+        encoder.encode(expr);
+        encoder.writeTo(out);
+    }
+
+    /**
+     * Reads and decodes an expression, without reading past the end of its encoding.
+     * @param in The stream to read the encoding from.
+     * @return The decoded expression.
+     * @throws IOException if the stream can't be read or it doesn't contain a valid encoding.
+     */
+    static Expression read(InputStream in) throws IOException{
+        return read(in, null);
+    }
+
+    /**
+     * Reads and decodes the body of a function (see {@link CustomFunction#getBody()}), without reading past the end of its encoding.
+     * @param in The stream to read the encoding from.
+     * @param argNames The names of the arguments of the function, or <code>null</code> if the expression isn't the body of a function.
+     * @return The decoded expression.
+     * @throws IOException if the stream can't be read or it doesn't contain a valid encoding, or an argument doesn't match the name at its position in <code>argNames</code>.
+     */
+    static Expression read(InputStream in, String[] argNames) throws IOException{
+        DataInputStream data = new DataInputStream(in);
+        checkHeader(data.readInt(), data.readByte());
+        int length = readVarint(data);
+        byte[] body = new byte[length];
+        data.readFully(body);
+        return readBody(ByteBuffer.wrap(body), argNames);
+    }
+
+    /**
+     * Decodes an expression from the current position of a buffer, which is moved to the end of the encoding.
+     * @param buffer The buffer to read the encoding from.
+     * @return The decoded expression.
+     * @throws IOException if the buffer doesn't contain a valid encoding.
+     */
+    static Expression read(ByteBuffer buffer) throws IOException{
+        ByteBuffer body;
+        int end;
+        try{
+            ByteBuffer header = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+            checkHeader(header.getInt(), header.get());
+            int length = readVarint(header);
+            if(length > header.remaining())
+                throw new IOException("Truncated expression");
+            body = header.slice();
+            body.limit(length);
+            end = header.position() + length;
+        }catch(BufferUnderflowException ex){
+            throw new IOException("Truncated expression");
+        }
+        Expression result = readBody(body, null);
+        buffer.position(end);
+        return result;
+    }
+
+    private static void checkHeader(int magic, byte version) throws IOException{
+        if(magic != MAGIC)
+            throw new IOException("Not an encoded expression");
+        if(version != VERSION)
+            throw new IOException("Unsupported expression encoding version: " + version);
+    }
+
+    /**
+     * Decodes the pools and the nodes, which must take the whole buffer.
+     */
+    private static Expression readBody(ByteBuffer body, String[] argNames) throws IOException{
+        try{
+            int constantCount = readVarint(body);
+            if(constantCount > body.remaining() / 8)
+                throw new IOException("Invalid number of constants: " + constantCount);
+            double[] constants = new double[constantCount];
+            body.asDoubleBuffer().get(constants);
+            body.position(body.position() + 8 * constantCount);
+            int symbolCount = readVarint(body);
+            if(symbolCount > body.remaining())
+                throw new IOException("Invalid number of symbols: " + symbolCount);
+            String[] symbols = new String[symbolCount];
+            for(int i = 0; i < symbolCount; i++){
+                int length = readVarint(body);
+                if(length > body.remaining())
+                    throw new IOException("Truncated expression");
+                if(body.hasArray()){
+                    symbols[i] = new String(body.array(), body.arrayOffset() + body.position(), length, UTF8);
+                    body.position(body.position() + length);
+                }else{ //a direct or read-only buffer, like a mapped file
+                    byte[] bytes = new byte[length];
+                    body.get(bytes);
+                    symbols[i] = new String(bytes, UTF8);
+                }
+            }
+            int operationCount = readVarint(body);
+            if(operationCount > body.remaining())
+                throw new IOException("Invalid number of operations: " + operationCount);
+            Expression result = decodeNodes(body, constants, symbols, operationCount, argNames);
+            if(body.hasRemaining())
+                throw new IOException("Unexpected data after the expression");
+            return result;
+        }catch(BufferUnderflowException ex){
+            throw new IOException("Truncated expression");
+        }
+    }
+
+    private static Expression decodeNodes(ByteBuffer body, double[] constants, String[] symbols, int operationCount, String[] argNames) throws IOException{
+        Decoder decoder = new Decoder(body, constants, symbols, operationCount, argNames);
+        try{
+            Expression result = decoder.decode();
+            return operationCount > 0 ? new DagExpression(result) : result;
+        }catch(ExpressionException ex){
+            throw new IOException("Invalid expression: " + ex.getMessage(), ex);
+        }
+    }
+
+}
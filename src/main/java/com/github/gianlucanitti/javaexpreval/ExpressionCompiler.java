@@ -0,0 +1,426 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Translates {@link Expression} trees to JVM bytecode (see {@link Expression#compile(ExpressionContext)}).
+ * Each expression becomes a subclass of {@link CompiledExpression} whose {@link CompiledExpression#evalCompiled(double[], ExpressionContext)}
+ * method contains the whole tree as straight-line code. When the running JVM supports them, the classes are defined as hidden classes
+ * (<code>MethodHandles.Lookup.defineHiddenClass</code>), which can be unloaded as soon as the {@link CompiledExpression} is unreachable;
+ * otherwise each class is defined by its own {@link ClassLoader}, which has the same effect.
+ */
+final class ExpressionCompiler {
+
+    private static final String GENERATED_CLASS = "com/github/gianlucanitti/javaexpreval/GeneratedExpression";
+    private static final String SUPER_CLASS = "com/github/gianlucanitti/javaexpreval/CompiledExpression";
+    private static final String EVAL_DESCRIPTOR = "([DLcom/github/gianlucanitti/javaexpreval/ExpressionContext;)D";
+    private static final String CALL_DESCRIPTOR = "(I[DLcom/github/gianlucanitti/javaexpreval/ExpressionContext;)D";
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final Method defineHiddenClass;
+    private static final Method lookupClass;
+    private static final Object noClassOptions;
+
+    static{
+        Method define = null;
+        Method lookup = null;
+        Object options = null;
+        try{
+            Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+            lookup = MethodHandles.Lookup.class.getMethod("lookupClass");
+        }catch(Exception ex){
+            define = null; //hidden classes are not supported by this JVM (they were introduced in Java 15)
+        }
+        defineHiddenClass = define;
+        lookupClass = lookup;
+        noClassOptions = options;
+    }
+
+    /**
+     * Signals that a tree can't be translated, so the interpreter must be used instead.
+     */
+    private static final class UnsupportedExpressionException extends Exception{}
+
+    /**
+     * A {@link ClassLoader} that defines a single generated class; used when hidden classes are not available.
+     */
+    private static final class GeneratedClassLoader extends ClassLoader{
+        private GeneratedClassLoader(){
+            super(CompiledExpression.class.getClassLoader());
+        }
+
+        private Class<?> define(byte[] bytes){
+            return defineClass(GENERATED_CLASS.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+
+    private final ExpressionContext context;
+    private final LinkedHashMap<String, Integer> variables = new LinkedHashMap<String, Integer>();
+    private final ArrayList<String> functions = new ArrayList<String>();
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int stack = 0;
+    private int maxStack = 0;
+    private final IdentityHashMap<Expression, Integer> uses = new IdentityHashMap<Expression, Integer>(); //for a DagExpression, how many times each node is used
+    private final IdentityHashMap<Expression, Integer> locals = new IdentityHashMap<Expression, Integer>(); //the local variable where each shared node has been stored
+    private int maxLocals = 3; //this, values, context
+
+    private ExpressionCompiler(ExpressionContext context){
+        this.context = context;
+    }
+
+    /**
+     * Compiles the specified expression. Calls to the built-in functions defined in <code>context</code> are bound to the respective {@link Math} methods;
+     * every other symbol is resolved when the expression is evaluated.
+     * If the tree contains expressions unknown to the compiler, or it's too big to fit in a single method, the returned object uses the interpreter.
+     * @param expr The expression to compile.
+     * @param context The context used to resolve the functions at compile time.
+     * @return A {@link CompiledExpression} equivalent to <code>expr</code>.
+     */
+    static CompiledExpression compile(Expression expr, ExpressionContext context){
+        ExpressionCompiler compiler = new ExpressionCompiler(context);
+        try{
+            if(expr instanceof DagExpression){ //shared nodes are computed once and stored in local variables
+                expr = ((DagExpression) expr).getRoot();
+                compiler.countUses(expr);
+            }
+            compiler.emitExpression(expr);
+            compiler.emit(0xaf); //dreturn
+            if(compiler.code.size() > MAX_CODE_LENGTH || compiler.pool.size() > 0xffff || compiler.maxLocals > 0xffff)
+                throw new UnsupportedExpressionException();
+            CompiledExpression result = (CompiledExpression)defineClass(compiler.toClassFile()).getDeclaredConstructor().newInstance();
+            result.init(compiler.variables.keySet().toArray(new String[0]), compiler.functions.toArray(new String[0]));
+            return result;
+        }catch(UnsupportedExpressionException ex){
+            return new CompiledExpression.Interpreted(expr);
+        }catch(Exception ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Class<?> defineClass(byte[] bytes) throws Exception{
+        if(defineHiddenClass != null)
+            return (Class<?>)lookupClass.invoke(defineHiddenClass.invoke(MethodHandles.lookup(), bytes, true, noClassOptions));
+        return new GeneratedClassLoader().define(bytes);
+    }
+
+    private void countUses(Expression expr){
+        Integer count = uses.get(expr);
+        uses.put(expr, count == null ? 1 : count + 1);
+        if(count == null)
+            for(Expression e: expr.getSubExpressions())
+                countUses(e);
+    }
+
+    private void emitExpression(Expression expr) throws UnsupportedExpressionException{
+        Integer local = locals.get(expr);
+        if(local != null){ //a shared node that has already been computed (the code is straight-line, so the store always runs before this load)
+            emitLocal(0x18, local); //dload
+            push(2);
+            return;
+        }
+        emitNode(expr);
+        Integer count = uses.get(expr);
+        if(count != null && count > 1 && expr.getSubExpressions().length > 0){
+            local = maxLocals;
+            maxLocals += 2;
+            locals.put(expr, local);
+            emit(0x5c); //dup2
+            push(2);
+            emitLocal(0x39, local); //dstore
+            pop(2);
+        }
+    }
+
+    private void emitLocal(int opcode, int index){
+        if(index > 0xff){
+            emit(0xc4); //wide
+            emit(opcode);
+            emitShort(index);
+        }else{
+            emit(opcode);
+            emit(index);
+        }
+    }
+
+    private void emitNode(Expression expr) throws UnsupportedExpressionException{
+        if(expr instanceof ConstExpression)
+            emitConstant(((ConstExpression)expr).getValue());
+        else if(expr instanceof VariableExpression){
+            VariableExpression var = (VariableExpression)expr;
+            if(var.getBinding() != null)
+                emitConstant(var.getBinding().getValue());
+            else{
+                Integer slot = variables.get(var.getName());
+                if(slot == null){
+                    slot = variables.size();
+                    variables.put(var.getName(), slot);
+                }
+                emit(0x2b); //aload_1
+                push(1);
+                emitInt(slot);
+                emit(0x31); //daload
+                pop(2);
+                push(2);
+            }
+        }else if(expr instanceof NegatedExpression){
+            emitExpression(expr.getSubExpressions()[0]);
+            emit(0x77); //dneg
+        }else if(expr instanceof BinaryOpExpression){
+            Expression[] operands = expr.getSubExpressions();
+            emitExpression(operands[0]);
+            emitExpression(operands[1]);
+            switch(((BinaryOpExpression)expr).getOperator()){
+                case '+': emit(0x63); break; //dadd
+                case '-': emit(0x67); break; //dsub
+                case '*': emit(0x6b); break; //dmul
+                case '/': emit(0x6f); break; //ddiv
+                case '^': emitInvoke(0xb8, "java/lang/Math", "pow", "(DD)D"); break; //invokestatic
+                default: throw new UnsupportedExpressionException();
+            }
+            pop(2);
+        }else if(expr instanceof FunctionExpression)
+            emitFunction((FunctionExpression)expr);
+        else
+            throw new UnsupportedExpressionException();
+    }
+
+    private void emitFunction(FunctionExpression expr) throws UnsupportedExpressionException{
+        Expression[] args = expr.getSubExpressions();
+        Function f;
+        try{
+            f = context.getFunction(expr.getName(), args.length);
+        }catch(UndefinedException ex){
+            f = null;
+        }
+        if(f instanceof BuiltInFunctions.MathFunction){ //built-in functions are read-only, so the call can't change meaning
+            emitExpression(args[0]);
+            emitInvoke(0xb8, "java/lang/Math", f.getName(), "(D)D"); //invokestatic
+            return;
+        }
+        //anything else is resolved at evaluation time through CompiledExpression.callFunction
+        int index = functions.size();
+        functions.add(expr.getName());
+        emit(0x2a); //aload_0
+        push(1);
+        emitInt(index);
+        emitInt(args.length);
+        emit(0xbc); //newarray
+        emit(7); //T_DOUBLE
+        for(int i = 0; i < args.length; i++){
+            emit(0x59); //dup
+            push(1);
+            emitInt(i);
+            emitExpression(args[i]);
+            emit(0x52); //dastore
+            pop(4);
+        }
+        emit(0x2c); //aload_2
+        push(1);
+        emitInvoke(0xb6, SUPER_CLASS, "callFunction", CALL_DESCRIPTOR); //invokevirtual
+        pop(4);
+        push(2);
+    }
+
+    private void emitConstant(double value){
+        if(Double.doubleToRawLongBits(value) == 0L)
+            emit(0x0e); //dconst_0
+        else if(value == 1.0)
+            emit(0x0f); //dconst_1
+        else{
+            emit(0x14); //ldc2_w
+            emitShort(pool.doubleConstant(value));
+        }
+        push(2);
+    }
+
+    private void emitInt(int value){
+        if(value >= -1 && value <= 5)
+            emit(0x03 + value); //iconst_<n>
+        else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            emit(0x10); //bipush
+            emit(value);
+        }else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            emit(0x11); //sipush
+            emitShort(value);
+        }else{
+            emit(0x13); //ldc_w
+            emitShort(pool.intConstant(value));
+        }
+        push(1);
+    }
+
+    private void emitInvoke(int opcode, String owner, String name, String descriptor){
+        emit(opcode);
+        emitShort(pool.methodRef(owner, name, descriptor));
+    }
+
+    private void emit(int b){
+        code.write(b);
+    }
+
+    private void emitShort(int s){
+        code.write(s >>> 8);
+        code.write(s);
+    }
+
+    private void push(int slots){
+        stack += slots;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void pop(int slots){
+        stack -= slots;
+    }
+
+    private byte[] toClassFile() throws IOException{
+        int thisClass = pool.classRef(GENERATED_CLASS);
+        int superClass = pool.classRef(SUPER_CLASS);
+        int superInit = pool.methodRef(SUPER_CLASS, "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int evalName = pool.utf8("evalCompiled");
+        int evalDescriptor = pool.utf8(EVAL_DESCRIPTOR);
+        int codeName = pool.utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0); //minor version
+        out.writeShort(50); //major version (Java 6), the code is straight-line so no stack map frames are needed
+        pool.writeTo(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020); //ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); //interfaces
+        out.writeShort(0); //fields
+        out.writeShort(2); //methods
+        //public <init>(){ super(); }
+        byte[] initCode = new byte[]{0x2a, (byte)0xb7, (byte)(superInit >>> 8), (byte)superInit, (byte)0xb1}; //aload_0, invokespecial, return
+        writeMethod(out, 0x0001, initName, initDescriptor, codeName, 1, 1, initCode);
+        //protected double evalCompiled(double[] values, ExpressionContext context){ ... }
+        writeMethod(out, 0x0004, evalName, evalDescriptor, codeName, maxStack, maxLocals, code.toByteArray());
+        out.writeShort(0); //attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName, int maxStack, int maxLocals, byte[] code) throws IOException{
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1); //attributes
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); //exception table
+        out.writeShort(0); //attributes
+    }
+
+    /**
+     * The constant pool of the generated class; identical entries are shared.
+     */
+    private static final class ConstantPool{
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        private int size(){
+            return count;
+        }
+
+        private int utf8(String s){
+            Integer index = entries.get("U" + s);
+            if(index != null)
+                return index;
+            try{
+                out.writeByte(1);
+                out.writeUTF(s);
+            }catch(IOException ex){
+                throw new IllegalStateException(ex);
+            }
+            return add("U" + s, 1);
+        }
+
+        private int classRef(String name){
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        private int methodRef(String owner, String name, String descriptor){
+            int ownerIndex = classRef(owner);
+            int nameAndType = entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+            return entry("M" + owner + "." + name + ":" + descriptor, 10, ownerIndex, nameAndType);
+        }
+
+        private int doubleConstant(double value){
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer index = entries.get(key);
+            if(index != null)
+                return index;
+            try{
+                out.writeByte(6);
+                out.writeLong(Double.doubleToRawLongBits(value));
+            }catch(IOException ex){
+                throw new IllegalStateException(ex);
+            }
+            return add(key, 2); //double constants take two entries
+        }
+
+        private int intConstant(int value){
+            String key = "I" + value;
+            Integer index = entries.get(key);
+            if(index != null)
+                return index;
+            try{
+                out.writeByte(3);
+                out.writeInt(value);
+            }catch(IOException ex){
+                throw new IllegalStateException(ex);
+            }
+            return add(key, 1);
+        }
+
+        private int entry(String key, int tag, int first, int second){
+            Integer index = entries.get(key);
+            if(index != null)
+                return index;
+            try{
+                out.writeByte(tag);
+                out.writeShort(first);
+                if(second >= 0)
+                    out.writeShort(second);
+            }catch(IOException ex){
+                throw new IllegalStateException(ex);
+            }
+            return add(key, 1);
+        }
+
+        private int add(String key, int slots){
+            int index = count;
+            entries.put(key, index);
+            count += slots;
+            return index;
+        }
+
+        private void writeTo(DataOutputStream classFile) throws IOException{
+            out.flush();
+            classFile.writeShort(count);
+            bytes.writeTo(classFile);
+        }
+    }
+
+}
@@ -1,11 +1,27 @@
 package com.github.gianlucanitti.javaexpreval;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The context an expression can be evaluated in. Can contain binding between variables and their values and function definitions.
  * This object is {@link Observable}; it notifies its {@link Observer}s every time it's internal state changes (i.e. a variable or function is added, changed or deleted).
+ * {@link ContextListener}s can be added too (see {@link #addListener(ContextListener)}): they are told what changed, and the changes made in a batch
+ * (see {@link #beginBatch()}) are delivered together, so that listeners and observers are notified once for many updates.
  */
 public class ExpressionContext extends Observable {
 
@@ -49,27 +65,131 @@ public class ExpressionContext extends Observable {
         }
     }
 
+    private static final int SNAPSHOT_MAGIC = 0x4A455853;
+    private static final int SNAPSHOT_VERSION = 1;
+
     private HashMap<String, VariableValue> variables;
-    private HashSet<Function> functions;
+    private FunctionTable functions;
+    private final CopyOnWriteArrayList<ContextListener> listeners = new CopyOnWriteArrayList<ContextListener>();
+    private ChangeBatch batch;
 
     /**
      * Initializes an empty context.
      */
     public ExpressionContext(){
-        variables = new HashMap<String, VariableValue>();
-        functions = new HashSet<Function>();
-        functions.addAll(BuiltInFunctions.getList());
+        this(true);
+    }
+
+    /**
+     * Initializes an empty context.
+     * @param storage Whether the variables and functions are kept by this class; subclasses that keep them in their own storage (like
+     * {@link ConcurrentExpressionContext}) pass <code>false</code> and override every method that uses them, so that the storage of this class
+     * isn't allocated and a method that isn't overridden fails instead of silently working on it.
+     */
+    ExpressionContext(boolean storage){
+        if(storage){
+            variables = new HashMap<String, VariableValue>();
+            functions = new FunctionTable();
+        }
+    }
+
+    /**
+     * Returns a counter that changes every time a function is set or deleted in this context.
+     * Call sites use it to check if the function they resolved earlier is still the right one (see {@link FunctionBinding}).
+     * @return The number of modifications of the functions defined in this context.
+     */
+    int getFunctionsVersion(){
+        return functions.getVersion();
     }
 
     /**
      * Marks this object as changed and notifies the observers
      * (simply calls {@link #setChanged()} and {@link #notifyObservers()} from {@link Observable}.
+     * Subclasses that keep their own observers override this, so that the monitor of {@link Observable} isn't taken.
      */
-    private void updateObservers(){
+    void notifyChange(){
         setChanged();
         notifyObservers();
     }
 
+    /**
+     * @return The batch of changes in progress, or <code>null</code> if the changes must be delivered immediately.
+     */
+    ChangeBatch getBatch(){
+        return batch;
+    }
+
+    /**
+     * @param batch The batch of changes in progress, or <code>null</code> when the batch ends.
+     */
+    void setBatch(ChangeBatch batch){
+        this.batch = batch;
+    }
+
+    /**
+     * Reports a change of this context to the listeners and observers, or adds it to the batch in progress.
+     * @param change The change.
+     */
+    void fireChange(ContextChange change){
+        ChangeBatch b = getBatch();
+        if(b != null)
+            b.add(change);
+        else{
+            for(ContextListener l: listeners)
+                change.deliver(l, this);
+            notifyChange();
+        }
+    }
+
+    /**
+     * Adds a listener, which will be told every change of the variables and functions of this context. A listener which was already added is not added again.
+     * @param listener The listener to add.
+     */
+    public void addListener(ContextListener listener){
+        if(listener == null)
+            throw new NullPointerException();
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener The listener to remove.
+     */
+    public void removeListener(ContextListener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a batch of changes: until the matching call to {@link #endBatch()}, the changes made to this context are collected instead of being delivered,
+     * and the changes of the same symbol are coalesced. Batches can be nested; the changes are delivered when the outermost one ends.
+     */
+    public void beginBatch(){
+        ChangeBatch b = getBatch();
+        if(b == null)
+            setBatch(b = new ChangeBatch());
+        b.begin();
+    }
+
+    /**
+     * Ends a batch of changes started by {@link #beginBatch()}. When the outermost batch ends, the coalesced changes are delivered to the listeners in order
+     * and, if anything changed, the observers are notified once.
+     * @throws IllegalStateException if there isn't a batch in progress.
+     */
+    public void endBatch(){
+        ChangeBatch b = getBatch();
+        if(b == null)
+            throw new IllegalStateException("No batch in progress.");
+        if(!b.end())
+            return;
+        setBatch(null);
+        for(ContextChange change: b.getChanges())
+            if(change != null)
+                for(ContextListener l: listeners)
+                    change.deliver(l, this);
+        if(b.isChanged())
+            notifyChange();
+    }
+
     /**
      * @return A unmodifiable {@link Map} containing the names and values of the variables defined in this context.
      */
@@ -81,7 +201,7 @@ public class ExpressionContext extends Observable {
      * @return A unmodifiable {@link Set} containing the functions defined in this context.
      */
     public Set<Function> getFunctions(){
-        return Collections.unmodifiableSet(functions);
+        return Collections.unmodifiableSet(functions.getFunctions());
     }
 
     /**
@@ -96,6 +216,17 @@ public class ExpressionContext extends Observable {
         return variables.get(varName).value;
     }
 
+    /**
+     * Returns the value of the variable read by the specified expression; contexts that index their variables by id
+     * (see {@link CompactExpressionContext}) use the id cached by the expression instead of looking the name up.
+     * @param var The expression that reads the variable.
+     * @return The value of the variable, if defined in this context.
+     * @throws UndefinedException if the variable is not defined in this context.
+     */
+    double getVariable(VariableExpression var) throws UndefinedException{
+        return getVariable(var.getName());
+    }
+
     /**
      * Binds the specified variable name to the specified value, flagging the variable as read-only of specified.
      * If a variable with the same name is already defined, it's value is replaced.
@@ -107,11 +238,81 @@ public class ExpressionContext extends Observable {
      */
     public void setVariable(String varName, boolean readOnly, double value) throws InvalidSymbolNameException, ReadonlyException{
         VariableExpression.assertValidSymbolName(varName);
-        if(variables.containsKey(varName) && variables.get(varName).readOnly)
+        VariableValue oldValue = variables.get(varName);
+        if(oldValue != null && oldValue.readOnly)
             throw new ReadonlyException(varName);
-        else
-            variables.put(varName, new VariableValue(value, readOnly));
-        updateObservers();
+        VariableValue newValue = new VariableValue(value, readOnly);
+        variables.put(varName, newValue);
+        fireChange(new ContextChange.VariableChange(varName, oldValue, newValue));
+    }
+
+    /**
+     * Binds many variables at once, flagging them as read-only if specified. The names and the read-only flags of the current values are all checked
+     * before any variable is changed, so either all the variables are set or, if an exception is thrown, none of them is.
+     * The listeners and observers are notified once, as if the variables were set in a batch (see {@link #beginBatch()}).
+     * @param values The names of the variables to add/edit, with the values to assign to them.
+     * @param readOnly Whether these variables must be read-only or they can be redefined later.
+     * @throws InvalidSymbolNameException if one of the names isn't a valid symbol name.
+     * @throws ReadonlyException if one of the variables can't be set because it was previously defined as read-only.
+     */
+    public void setVariables(Map<String, Double> values, boolean readOnly) throws InvalidSymbolNameException, ReadonlyException{
+        String[] names = new String[values.size()];
+        double[] newValues = new double[names.length];
+        checkVariables(values, names, newValues);
+        beginBatch();
+        try{
+            for(int i = 0; i < names.length; i++){
+                VariableValue newValue = new VariableValue(newValues[i], readOnly);
+                fireChange(new ContextChange.VariableChange(names[i], variables.put(names[i], newValue), newValue));
+            }
+        }finally{
+            endBatch();
+        }
+    }
+
+    /**
+     * Binds many variables at once without flagging them as read-only.
+     * Wrapper for {@link #setVariables(Map, boolean)} with <code>false</code> as 2nd argument.
+     * @param values The names of the variables to add/edit, with the values to assign to them.
+     * @throws InvalidSymbolNameException if one of the names isn't a valid symbol name.
+     * @throws ReadonlyException if one of the variables can't be set because it was previously defined as read-only.
+     */
+    public void setVariables(Map<String, Double> values) throws InvalidSymbolNameException, ReadonlyException{
+        setVariables(values, false);
+    }
+
+    /**
+     * Checks that all the variables of a bulk update can be set, and copies them to arrays.
+     * @param values The names of the variables, with their new values (which must not be <code>null</code>).
+     * @param names The array to copy the names to.
+     * @param newValues The array to copy the values to.
+     * @throws InvalidSymbolNameException if one of the names isn't a valid symbol name.
+     * @throws ReadonlyException if one of the variables is defined as read-only.
+     */
+    void checkVariables(Map<String, Double> values, String[] names, double[] newValues) throws InvalidSymbolNameException, ReadonlyException{
+        Map<String, VariableValue> current = getVariables();
+        int i = 0;
+        for(Map.Entry<String, Double> e: values.entrySet()){
+            VariableExpression.assertValidSymbolName(e.getKey());
+            VariableValue oldValue = current.get(e.getKey());
+            if(oldValue != null && oldValue.readOnly)
+                throw new ReadonlyException(e.getKey());
+            names[i] = e.getKey();
+            newValues[i++] = e.getValue();
+        }
+    }
+
+    /**
+     * Stores the result of an evaluation in the "ans" variable (see {@link Expression#eval(ExpressionContext, Writer, boolean)}),
+     * without notifying the listeners and observers.
+     * @param value The result.
+     * @throws ReadonlyException if the "ans" variable is defined as read-only.
+     */
+    void storeResult(double value) throws ReadonlyException{
+        VariableValue oldValue = variables.get("ans");
+        if(oldValue != null && oldValue.readOnly)
+            throw new ReadonlyException("ans");
+        variables.put("ans", new VariableValue(value, false));
     }
 
     /**
@@ -132,7 +333,7 @@ public class ExpressionContext extends Observable {
      * @param varName The name of the variable to assign the value of the expression to.
      * @param readOnly Whether this variable must be read-only or it can be redefined later.
      * @param value The expression whose value will be assigned to the variable.
-     * @param logWriter A {@link Writer} where the evaluation steps of the expression will be logged to.
+     * @param logWriter A {@link Writer} where the evaluation steps of the expression will be logged to, or <code>null</code> if the steps must not be logged.
      * @throws UndefinedException if <code>value</code> can't be evaluated because it contains a symbol that isn't defined in this context.
      * @throws InvalidSymbolNameException if <code>varName</code> isn't a valid symbol name.
      * @throws ReadonlyException if the variable can't be set because it was previously defined as read-only.
@@ -155,15 +356,18 @@ public class ExpressionContext extends Observable {
     }
 
     /**
-     * Deletes/un-defines the specified variable from this context, if existing.
+     * Deletes/un-defines the specified variable from this context, if existing; if it isn't defined, the observers and listeners aren't notified.
      * @param varName The name of the variable to delete.
      * @throws ReadonlyException if the variable can't be deleted because it was defined as read-only.
      */
     public void delVariable(String varName) throws ReadonlyException{
-        if(variables.get(varName) != null && variables.get(varName).readOnly)
+        VariableValue oldValue = variables.get(varName);
+        if(oldValue == null)
+            return;
+        if(oldValue.readOnly)
             throw new ReadonlyException(varName);
         variables.remove(varName);
-        updateObservers();
+        fireChange(new ContextChange.VariableChange(varName, oldValue, null));
     }
 
     /**
@@ -172,18 +376,11 @@ public class ExpressionContext extends Observable {
      * @throws ReadonlyException if the function can't be set because it was previously defined as read-only.
      */
     public void setFunction(Function f) throws ReadonlyException{
-        boolean isReadonly;
-        try{
-            isReadonly = getFunction(f.getName(), f.getArgCount()).isReadOnly(); //check if a function with the same signature is already defined as readonly
-        }catch(UndefinedException ex){
-            isReadonly = false;
-        }
-        if(isReadonly)
+        Function oldFunction = functions.get(f.getName(), f.getArgCount());
+        if(oldFunction != null && oldFunction.isReadOnly()) //check if a function with the same signature is already defined as readonly
             throw new ReadonlyException(f.getName(), f.getArgCount());
-        else //if it's not read-only...
-                functions.remove(f); //...the old function is removed (the new one can be used as key because they have the same name and number of arguments, so they are equal according to Function.equals(Object))
-        functions.add(f); //then the new one is added, replacing the previous
-        updateObservers();
+        functions.put(f); //if it's not read-only, the new function replaces the old one
+        fireChange(new ContextChange.FunctionChange(oldFunction, f));
     }
 
     /**
@@ -223,29 +420,26 @@ public class ExpressionContext extends Observable {
      * @throws UndefinedException if the requested function is not defined in this context.
      */
     public Function getFunction(String name, int argCount) throws UndefinedException{
-        for(Function f: functions)
-            if(f.getArgCount() == argCount && f.getName().equals(name))
-                return f;
-        throw new UndefinedException(name, argCount);
+        Function f = functions.get(name, argCount);
+        if(f == null)
+            throw new UndefinedException(name, argCount);
+        return f;
     }
 
     /**
-     * Deletes the specified function definition from this context, if existing.
+     * Deletes the specified function definition from this context, if existing; if it isn't defined, the observers and listeners aren't notified.
      * @param name The name of the function to remove.
      * @param argCount The number of arguments of the function to remove.
      * @throws  ReadonlyException if the function can't be deleted because it was defined as read-only.
      */
     public void delFunction(String name, int argCount) throws ReadonlyException {
-        Function toRemove = null;
-        for(Function f: functions)
-            if(f.getArgCount() == argCount && f.getName().equals(name))
-                toRemove = f;
-        if(toRemove != null)
-            if(toRemove.isReadOnly())
-                throw new ReadonlyException(name, argCount);
-            else
-                functions.remove(toRemove);
-        updateObservers();
+        Function toRemove = functions.get(name, argCount);
+        if(toRemove == null)
+            return;
+        if(toRemove.isReadOnly())
+            throw new ReadonlyException(name, argCount);
+        functions.remove(toRemove);
+        fireChange(new ContextChange.FunctionChange(toRemove, null));
     }
 
     /**
@@ -256,11 +450,173 @@ public class ExpressionContext extends Observable {
         while(varIterator.hasNext())
             if(!varIterator.next().getValue().readOnly)
                 varIterator.remove();
-        Iterator<Function> funcIterator = functions.iterator();
-        while(funcIterator.hasNext())
-            if(!funcIterator.next().isReadOnly())
-                funcIterator.remove();
-        updateObservers();
+        functions.clear();
+        fireChange(new ContextChange.Clear());
+    }
+
+    /**
+     * Writes the variables and the user-defined functions of this context to a stream in a compact binary format, so that they can be loaded again
+     * by {@link #restore(InputStream)} much faster than the statements that defined them can be executed.
+     * Only the functions defined as expressions ({@link CustomFunction}s) are written; built-in functions and other functions implemented in Java are not.
+     * The format is big-endian:
+     * <ul>
+     *     <li>the magic number <code>0x4A455853</code> ("JEXS" in ASCII) and the format version (1), as 32 bit integers;</li>
+     *     <li>the number of variables (32 bit integer), followed by the name of each variable (as in {@link DataOutputStream#writeUTF(String)}),
+     *     its value (64 bit IEEE 754 double) and whether it's read-only (a byte, 0 or 1);</li>
+     *     <li>the number of functions (32 bit integer), followed by the name of each function, whether it's read-only, the number of arguments
+     *     (32 bit integer), the names of the arguments and the definition of the function, encoded as by {@link Expression#writeTo(OutputStream)}.</li>
+     * </ul>
+     * @param out The stream to write to; it's not closed.
+     * @throws IOException if the stream can't be written.
+     */
+    public void snapshot(OutputStream out) throws IOException{
+        ArrayList<Map.Entry<String, VariableValue>> vars = new ArrayList<Map.Entry<String, VariableValue>>(getVariables().entrySet());
+        ArrayList<CustomFunction> customFunctions = new ArrayList<CustomFunction>();
+        for(Function f: getFunctions())
+            if(f instanceof CustomFunction)
+                customFunctions.add((CustomFunction) f);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(); //written at once, so the stream doesn't need to be buffered
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_VERSION);
+        data.writeInt(vars.size());
+        for(Map.Entry<String, VariableValue> var: vars){
+            data.writeUTF(var.getKey());
+            data.writeDouble(var.getValue().getValue());
+            data.writeBoolean(var.getValue().isReadOnly());
+        }
+        data.writeInt(customFunctions.size());
+        for(CustomFunction f: customFunctions){
+            data.writeUTF(f.getName());
+            data.writeBoolean(f.isReadOnly());
+            String[] argNames = f.getArgNames();
+            data.writeInt(argNames.length);
+            for(String argName: argNames)
+                data.writeUTF(argName);
+            f.getBody().writeTo(data);
+        }
+        data.flush();
+        bytes.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Reads the variables and functions written by {@link #snapshot(OutputStream)} and defines them in this context, replacing the ones with the same names.
+     * The whole snapshot is read, the symbols are checked to be defined only once and the read-only flags of the current variables and functions are checked before anything is changed;
+     * the listeners and observers are notified once, as if the changes were made in a batch (see {@link #beginBatch()}).
+     * The stream is not read past the end of the snapshot.
+     * @param in The stream to read from; it's not closed.
+     * @throws IOException if the stream can't be read, or it doesn't contain a snapshot in a supported version of the format.
+     * @throws ReadonlyException if one of the variables or functions of the snapshot is defined as read-only in this context.
+     */
+    public void restore(InputStream in) throws IOException, ReadonlyException{
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a context snapshot");
+        int version = data.readInt();
+        if(version != SNAPSHOT_VERSION)
+            throw new IOException("Unsupported context snapshot version: " + version);
+        try{
+            int varCount = data.readInt();
+            if(varCount < 0)
+                throw new IOException("Invalid number of variables: " + varCount);
+            HashMap<String, Double> values = new HashMap<String, Double>();
+            HashMap<String, Double> readOnlyValues = new HashMap<String, Double>();
+            for(int i = 0; i < varCount; i++){
+                String name = data.readUTF();
+                VariableExpression.assertValidSymbolName(name);
+                double value = data.readDouble();
+                if(values.containsKey(name) || readOnlyValues.containsKey(name)) //the second definition would fail after the first one was applied
+                    throw new IOException("Invalid context snapshot: duplicate variable " + name);
+                (data.readBoolean() ? readOnlyValues : values).put(name, value);
+            }
+            int functionCount = data.readInt();
+            if(functionCount < 0)
+                throw new IOException("Invalid number of functions: " + functionCount);
+            ArrayList<CustomFunction> customFunctions = new ArrayList<CustomFunction>();
+            HashSet<String> functionKeys = new HashSet<String>();
+            for(int i = 0; i < functionCount; i++){
+                String name = data.readUTF();
+                boolean readOnly = data.readBoolean();
+                int argCount = data.readInt();
+                if(argCount < 0 || argCount > 0xffff)
+                    throw new IOException("Invalid number of arguments: " + argCount);
+                String[] argNames = new String[argCount];
+                for(int j = 0; j < argCount; j++)
+                    argNames[j] = data.readUTF();
+                CustomFunction f = new CustomFunction(name, ExpressionCodec.read(data, argNames), readOnly, argNames);
+                if(!functionKeys.add(SymbolDependencies.functionKey(name, f.getArgCount())))
+                    throw new IOException("Invalid context snapshot: duplicate function " + name + " with " + f.getArgCount() + " arguments");
+                customFunctions.add(f);
+            }
+            Map<String, VariableValue> current = getVariables();
+            for(Map<String, Double> m: Arrays.asList(values, readOnlyValues))
+                for(String name: m.keySet())
+                    if(current.containsKey(name) && current.get(name).isReadOnly())
+                        throw new ReadonlyException(name);
+            for(CustomFunction f: customFunctions){
+                try{
+                    if(getFunction(f.getName(), f.getArgCount()).isReadOnly())
+                        throw new ReadonlyException(f.getName(), f.getArgCount());
+                }catch(UndefinedException ex){
+                    //not defined yet
+                }
+            }
+            beginBatch();
+            try{
+                setVariables(values, false);
+                setVariables(readOnlyValues, true);
+                for(CustomFunction f: customFunctions)
+                    setFunction(f);
+            }finally{
+                endBatch();
+            }
+        }catch(InvalidSymbolNameException ex){
+            throw new IOException("Invalid context snapshot: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the variables and the user-defined functions of this context to a file, as {@link #snapshot(OutputStream)} does.
+     * The snapshot is written to a temporary file in the same directory, which is synced to the storage device and then renamed over <code>file</code>,
+     * so if writing fails (or the system crashes) the previous content of <code>file</code> is kept.
+     * @param file The file to write.
+     * @throws IOException if the file can't be written.
+     */
+    public void snapshot(File file) throws IOException{
+        File target = file.getAbsoluteFile();
+        File temp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        try{
+            FileOutputStream out = new FileOutputStream(temp);
+            try{
+                snapshot(out);
+                out.getFD().sync();
+            }finally{
+                out.close();
+            }
+            try{
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(AtomicMoveNotSupportedException ex){
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }finally{
+            temp.delete(); //if it was not moved
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #snapshot(File)} or {@link #snapshot(OutputStream)} from a file, as {@link #restore(InputStream)} does.
+     * @param file The file to read.
+     * @throws IOException if the file can't be read, or it doesn't contain a snapshot in a supported version of the format.
+     * @throws ReadonlyException if one of the variables or functions of the snapshot is defined as read-only in this context.
+     */
+    public void restore(File file) throws IOException, ReadonlyException{
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try{
+            restore(in);
+        }finally{
+            in.close();
+        }
     }
 
     /**
@@ -270,9 +626,9 @@ public class ExpressionContext extends Observable {
     public String toString(){
         String result = "";
         String newLine = System.getProperty("line.separator");
-        for(Map.Entry<String, VariableValue> var: variables.entrySet())
+        for(Map.Entry<String, VariableValue> var: getVariables().entrySet())
             result += var.getKey() + "=" + var.getValue() + newLine;
-        for(Function f: functions)
+        for(Function f: getFunctions())
             result += f.toString() + newLine;
         return result.length() == 0 ? result : result.substring(0, result.length() - newLine.length());
     }
@@ -0,0 +1,103 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Deduplicates structurally equal expressions (see the <code>equals</code> methods of the {@link Expression} subclasses) by hash-consing:
+ * every node of an interned tree is replaced by the first equal node that was interned, so identical sub-trees, in the same expression or in
+ * different ones interned by the same object, become a single shared object.
+ * When an interned expression contains shared operations, it's evaluated by a flattened program where each shared node is evaluated only once per evaluation;
+ * the result is the same of the original expression.
+ * This object keeps a reference to all the interned nodes until {@link #clear()} is called. It can be safely used by many threads at the same time.
+ * Since the interned nodes are shared, the returned expressions must not be modified (see {@link Expression#bindVariables(String[], double[])}).
+ */
+public final class ExpressionInterner {
+
+    private final HashMap<Expression, Expression> nodes = new HashMap<Expression, Expression>();
+
+    /**
+     * Returns an expression equivalent to the specified one, where each node is replaced by the equal interned node (if any).
+     * @param expr The expression to intern; it's not modified, but its nodes may become the interned ones.
+     * @return The interned expression.
+     */
+    public synchronized Expression intern(Expression expr){
+        IdentityHashMap<Expression, Integer> uses = new IdentityHashMap<Expression, Integer>();
+        Expression result = intern(expr, new IdentityHashMap<Expression, Expression>(), uses);
+        for(Integer count: uses.values())
+            if(count > 1) //at least one operation is shared, so it's worth evaluating the tree as a DAG
+                return new DagExpression(result);
+        return result;
+    }
+
+    /**
+     * Interns an expression, counting how many times each interned operation is used.
+     * @param expr The expression to intern.
+     * @param visited The interned node of each node of the tree already visited (if the tree already has shared nodes, they are visited once).
+     * @param uses The number of uses of the interned operations (nodes with sub-expressions) of the tree.
+     * @return The interned node.
+     */
+    private Expression intern(Expression expr, IdentityHashMap<Expression, Expression> visited, IdentityHashMap<Expression, Integer> uses){
+        if(expr instanceof DagExpression)
+            return intern(((DagExpression) expr).getRoot(), visited, uses);
+        Expression interned = visited.get(expr);
+        if(interned == null){
+            Expression[] subExpressions = expr.getSubExpressions();
+            interned = expr;
+            if(subExpressions.length > 0){
+                subExpressions = subExpressions.clone();
+                for(int i = 0; i < subExpressions.length; i++)
+                    subExpressions[i] = intern(subExpressions[i], visited, uses);
+                interned = expr.withSubExpressions(subExpressions);
+            }
+            Expression equal = nodes.get(interned);
+            if(equal == null)
+                nodes.put(interned, interned);
+            else
+                interned = equal;
+            visited.put(expr, interned);
+        }
+        if(interned.getSubExpressions().length > 0){
+            Integer count = uses.get(interned);
+            uses.put(interned, count == null ? 1 : count + 1);
+        }
+        return interned;
+    }
+
+    /**
+     * Parses the given {@link String} into an {@link Expression} object without logging the steps done, and interns it.
+     * @param expr The string representation of the expression to parse.
+     * @return The interned expression.
+     * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
+     */
+    public Expression parse(String expr) throws ExpressionException{
+        return intern(Expression.parse(expr));
+    }
+
+    /**
+     * Parses the given {@link String} into an {@link Expression} object, logging the steps done to the specified {@link Writer}, and interns it.
+     * @param expr The string representation of the expression to parse.
+     * @param logWriter A {@link Writer} to write the parsing steps to, or <code>null</code> if the steps must not be logged.
+     * @return The interned expression.
+     * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
+     */
+    public Expression parse(String expr, Writer logWriter) throws ExpressionException{
+        return intern(Expression.parse(expr, logWriter));
+    }
+
+    /**
+     * @return The number of distinct nodes interned.
+     */
+    public synchronized int size(){
+        return nodes.size();
+    }
+
+    /**
+     * Forgets all the interned nodes. The expressions that were already interned are not affected.
+     */
+    public synchronized void clear(){
+        nodes.clear();
+    }
+
+}
@@ -1,8 +1,6 @@
 package com.github.gianlucanitti.javaexpreval;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 /**
  * Represents a list of expressions with the operators that concatenate them.
@@ -58,28 +56,21 @@ public final class ExpressionList{
   }
 
   /**
-   * Evaluates the specified operators, by replacing any expression-operator-expression structure with a properly initialized {@link BinaryOpExpression}.
-   * @param ops A char or {@link Character} or an array of them that represent the operators to evaluate.
-   * @throws InvalidOperatorException if an unknown operator is found.
+   * Replaces the two operands on top of the <code>operands</code> stack with a {@link BinaryOpExpression} made with the operator on top of the <code>ops</code> stack.
+   * @param operands The stack of operands.
+   * @param ops The stack of operators.
+   * @throws InvalidOperatorException if the operator is unknown.
    */
-  private void evalOperators(Character ... ops) throws InvalidOperatorException{
-    List<Character> opsList = Arrays.asList(ops);
-    int i = 0;
-    while(i < operators.size()){
-      Character op = operators.get(i);
-      if(opsList.contains(op)){
-        operators.remove(i);
-        Expression left = items.remove(i);
-        Expression right = items.remove(i);
-        items.add(i, new BinaryOpExpression(left, op, right));
-      }else{
-        i++;
-      }
-    }
+  private static void reduce(ArrayList<Expression> operands, ArrayList<Character> ops) throws InvalidOperatorException{
+    Expression right = operands.remove(operands.size() - 1);
+    Expression left = operands.remove(operands.size() - 1);
+    operands.add(new BinaryOpExpression(left, ops.remove(ops.size() - 1), right));
   }
 
   /**
    * Simplifies this list of expression by returning an equivalent expression.
+   * Operators are applied in a single left-to-right pass according to their precedence (see {@link BinaryOpExpression#getPrecedence(char)});
+   * the list itself is not modified.
    * @throws InvalidOperatorException if an unknown operator is found.
    * @throws EmptyExpressionException if no expression were added.
    * @throws UnexpectedTokenException if this list is ending with a binary operator (that has no right operand).
@@ -88,13 +79,24 @@ public final class ExpressionList{
   public Expression simplify() throws InvalidOperatorException, EmptyExpressionException, UnexpectedTokenException{
     if(!expectOperator) //if true we were expecting an expression, so the expression ends with a binary operator
       throw new UnexpectedTokenException(expectOperator, true);
-    evalOperators('^');
-    evalOperators('*', '/');
-    evalOperators('+', '-');
     if(items.size() == 0)
       throw new EmptyExpressionException();
-    if(items.size() != 1 || operators.size() != 0) throw new InvalidOperatorException(operators.get(0));
-    return items.get(0);
+    ArrayList<Expression> operands = new ArrayList<Expression>();
+    ArrayList<Character> ops = new ArrayList<Character>();
+    operands.add(items.get(0));
+    for(int i = 0; i < operators.size(); i++){
+      char op = operators.get(i);
+      int precedence = BinaryOpExpression.getPrecedence(op);
+      if(precedence == 0)
+        throw new InvalidOperatorException(op);
+      while(!ops.isEmpty() && BinaryOpExpression.getPrecedence(ops.get(ops.size() - 1)) >= precedence) //all operators are left-associative
+        reduce(operands, ops);
+      ops.add(op);
+      operands.add(items.get(i + 1));
+    }
+    while(!ops.isEmpty())
+      reduce(operands, ops);
+    return operands.get(0);
   }
 
 }
@@ -0,0 +1,247 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Rewrites expression trees into equivalent ones which are cheaper to evaluate (see {@link Expression#optimize()}).
+ * Only the rewrites that give exactly the same result of the original expression for every value of the variables are applied,
+ * including NaN, infinities and signed zeros:
+ * <ul>
+ *     <li>operations and calls to built-in functions (see {@link BuiltInFunctions}) whose operands are all constants are replaced by their result;</li>
+ *     <li><code>x*1</code>, <code>1*x</code>, <code>x/1</code>, <code>x^1</code>, <code>x-0</code>, <code>x+(-0)</code> and <code>(-0)+x</code> become <code>x</code>;</li>
+ *     <li><code>x*(-1)</code> and <code>(-1)*x</code> become <code>-x</code>, and <code>-(-x)</code> becomes <code>x</code>;</li>
+ *     <li><code>x+(-y)</code> becomes <code>x-y</code> and <code>x-(-y)</code> becomes <code>x+y</code>;</li>
+ *     <li><code>x^2</code> becomes <code>x*x</code> when <code>x</code> is a variable or a constant, so it's not evaluated twice.</li>
+ * </ul>
+ * Other common simplifications are not exact, so they are not applied: for example <code>x+0</code> is <code>0</code>, not <code>x</code>, when <code>x</code> is <code>-0</code>,
+ * <code>x*0</code> is NaN when <code>x</code> is infinite, and <code>x*2*3</code> can't be computed as <code>x*6</code> because <code>x*2</code> may overflow.
+ * Since the operands of the removed operations are still evaluated, undefined symbols are reported like in the original expression.
+ * Trees are never modified: the rewritten parts are new objects, and the unchanged sub-trees are shared with the original tree.
+ * <p>
+ * When a context is given (see {@link #inline(Expression, ExpressionContext, int)}), the calls to read-only user-defined functions are also replaced by
+ * their definitions, since they can't be redefined in that context; then the other rewrites can be applied to the inlined bodies too.
+ */
+public final class ExpressionOptimizer {
+
+    private static final HashMap<String, Function> BUILT_INS = new HashMap<String, Function>(); //built-in functions are read-only, so they are the same in every context
+
+    static{
+        for(Function f: BuiltInFunctions.getList())
+            BUILT_INS.put(f.getName() + "/" + f.getArgCount(), f);
+    }
+
+    /**
+     * The maximum number of nodes of an inlined function body used by {@link #optimize(Expression, ExpressionContext)}.
+     */
+    public static final int DEFAULT_INLINE_SIZE = 32;
+
+    private ExpressionOptimizer(){}
+
+    /**
+     * Returns an optimized expression equivalent to the specified one.
+     * @param expr The expression to optimize; it's not modified.
+     * @return The optimized expression, or <code>expr</code> itself if it can't be optimized.
+     */
+    public static Expression optimize(Expression expr){
+        Expression[] subExpressions = expr.getSubExpressions();
+        if(subExpressions.length == 0)
+            return expr;
+        Expression[] optimized = subExpressions.clone();
+        for(int i = 0; i < optimized.length; i++)
+            optimized[i] = optimize(optimized[i]);
+        expr = expr.withSubExpressions(optimized);
+        if(expr instanceof NegatedExpression)
+            return optimizeNegation((NegatedExpression) expr);
+        if(expr instanceof BinaryOpExpression)
+            return optimizeBinaryOp((BinaryOpExpression) expr);
+        if(expr instanceof FunctionExpression)
+            return optimizeCall((FunctionExpression) expr);
+        return expr;
+    }
+
+    /**
+     * Returns an optimized expression equivalent to the specified one, inlining the read-only user-defined functions of the specified context
+     * whose bodies have at most {@link #DEFAULT_INLINE_SIZE} nodes.
+     * @param expr The expression to optimize; it's not modified.
+     * @param context The context where the result will be evaluated.
+     * @return The optimized expression, or <code>expr</code> itself if it can't be optimized.
+     */
+    public static Expression optimize(Expression expr, ExpressionContext context){
+        return optimize(inline(expr, context, DEFAULT_INLINE_SIZE));
+    }
+
+    /**
+     * Returns a copy of the specified expression where the calls to the read-only {@link CustomFunction}s defined in the specified context are replaced
+     * by the bodies of the functions, with the arguments substituted by the argument expressions of the call. The calls inside the inlined bodies are inlined too,
+     * except for recursive ones. A call is not inlined when:
+     * <ul>
+     *     <li>the function is not defined in the context, isn't read-only or isn't a {@link CustomFunction} (built-in functions and other subclasses are kept);</li>
+     *     <li>the inlined body would have more than <code>maxSize</code> nodes;</li>
+     *     <li>the body reads variables from the context, because in the caller the same names may be bound to other values
+     *     (see {@link Expression#prepare(ExpressionContext, String...)});</li>
+     *     <li>an argument would not be evaluated anymore (it's not a constant and the body doesn't use it),
+     *     or it's neither a constant nor a symbol and the body uses it more than once, so it would be evaluated many times.</li>
+     * </ul>
+     * The result is only equivalent to <code>expr</code> when evaluated in <code>context</code>, or in any context with the same read-only functions.
+     * Since the arguments are evaluated where they appear in the body, if many of them are undefined the reported one may differ from the original expression.
+     * @param expr The expression to inline the calls into; it's not modified.
+     * @param context The context to look up the functions in.
+     * @param maxSize The maximum number of nodes of an inlined body.
+     * @return The expression with the calls inlined, or <code>expr</code> itself if no call can be inlined.
+     */
+    public static Expression inline(Expression expr, ExpressionContext context, int maxSize){
+        return inline(expr, context, maxSize, new ArrayList<Function>());
+    }
+
+    private static Expression inline(Expression expr, ExpressionContext context, int maxSize, ArrayList<Function> inlining){
+        Expression[] subExpressions = expr.getSubExpressions();
+        if(subExpressions.length == 0)
+            return expr;
+        Expression[] inlined = subExpressions.clone();
+        for(int i = 0; i < inlined.length; i++)
+            inlined[i] = inline(inlined[i], context, maxSize, inlining);
+        expr = expr.withSubExpressions(inlined);
+        if(!(expr instanceof FunctionExpression))
+            return expr;
+        Function f;
+        try{
+            f = context.getFunction(((FunctionExpression) expr).getName(), inlined.length);
+        }catch(UndefinedException ex){
+            return expr; //reported when the expression is evaluated
+        }
+        if(f.getClass() != CustomFunction.class || !f.isReadOnly() || inlining.contains(f))
+            return expr;
+        inlining.add(f);
+        Expression body = inline(((CustomFunction) f).getBody(), context, maxSize, inlining);
+        inlining.remove(inlining.size() - 1);
+        int[] uses = new int[inlined.length];
+        if(countNodes(body, uses, maxSize) > maxSize)
+            return expr;
+        for(int i = 0; i < inlined.length; i++){
+            if(inlined[i] instanceof ConstExpression)
+                continue;
+            boolean symbol = inlined[i] instanceof VariableExpression || inlined[i] instanceof ArgumentExpression;
+            if(uses[i] == 0 || (uses[i] > 1 && !symbol))
+                return expr;
+        }
+        return substitute(body, inlined);
+    }
+
+    /**
+     * Counts the nodes of a function body and the uses of each argument.
+     * @param body The body of the function.
+     * @param uses The number of uses of each argument, incremented by this method.
+     * @param maxSize The size limit; the count stops as soon as it's exceeded.
+     * @return The number of nodes of the body, or a number greater than <code>maxSize</code> if it's too big or it reads a variable from the context.
+     */
+    private static int countNodes(Expression body, int[] uses, int maxSize){
+        if(body instanceof ArgumentExpression)
+            uses[((ArgumentExpression) body).getIndex()]++;
+        else if(body instanceof VariableExpression && ((VariableExpression) body).getBinding() == null)
+            return maxSize + 1;
+        int count = 1;
+        for(Expression e: body.getSubExpressions()){
+            count += countNodes(e, uses, maxSize);
+            if(count > maxSize)
+                return count;
+        }
+        return count;
+    }
+
+    private static Expression substitute(Expression body, Expression[] args){
+        if(body instanceof ArgumentExpression)
+            return args[((ArgumentExpression) body).getIndex()];
+        Expression[] subExpressions = body.getSubExpressions();
+        if(subExpressions.length == 0)
+            return body;
+        subExpressions = subExpressions.clone();
+        for(int i = 0; i < subExpressions.length; i++)
+            subExpressions[i] = substitute(subExpressions[i], args);
+        return body.withSubExpressions(subExpressions);
+    }
+
+    private static boolean isConst(Expression expr, double value){
+        //compares the bits, to tell 0 from -0
+        return expr instanceof ConstExpression && Double.doubleToLongBits(((ConstExpression) expr).getValue()) == Double.doubleToLongBits(value);
+    }
+
+    private static Expression optimizeNegation(NegatedExpression expr){
+        Expression operand = expr.getSubExpressions()[0];
+        if(operand instanceof ConstExpression)
+            return new ConstExpression(-((ConstExpression) operand).getValue());
+        if(operand instanceof NegatedExpression)
+            return operand.getSubExpressions()[0];
+        return expr;
+    }
+
+    private static Expression optimizeBinaryOp(BinaryOpExpression expr){
+        Expression left = expr.getSubExpressions()[0];
+        Expression right = expr.getSubExpressions()[1];
+        char op = expr.getOperator();
+        try {
+            if(left instanceof ConstExpression && right instanceof ConstExpression)
+                return new ConstExpression(expr.evalExpr(null, null)); //operations on constants don't read the context
+            switch (op) {
+                case '+':
+                    if(isConst(right, -0.0))
+                        return left;
+                    if(isConst(left, -0.0))
+                        return right;
+                    if(right instanceof NegatedExpression)
+                        return new BinaryOpExpression(left, '-', right.getSubExpressions()[0]);
+                    break;
+                case '-':
+                    if(isConst(right, 0.0))
+                        return left;
+                    if(right instanceof NegatedExpression)
+                        return new BinaryOpExpression(left, '+', right.getSubExpressions()[0]);
+                    break;
+                case '*':
+                    if(isConst(right, 1.0))
+                        return left;
+                    if(isConst(left, 1.0))
+                        return right;
+                    if(isConst(right, -1.0))
+                        return optimizeNegation(new NegatedExpression(left));
+                    if(isConst(left, -1.0))
+                        return optimizeNegation(new NegatedExpression(right));
+                    break;
+                case '/':
+                    if(isConst(right, 1.0))
+                        return left;
+                    break;
+                case '^':
+                    if(isConst(right, 1.0)) //Math.pow(x, 1) is x
+                        return left;
+                    if(isConst(right, 2.0) && (left instanceof VariableExpression || left instanceof ConstExpression))
+                        return new BinaryOpExpression(left, '*', left);
+                    break;
+            }
+        }catch(InvalidOperatorException ex){
+            throw new IllegalStateException(ex); //can't happen, the operators come from a valid expression
+        }catch(UndefinedException ex){
+            throw new IllegalStateException(ex); //can't happen, constants are always defined
+        }
+        return expr;
+    }
+
+    private static Expression optimizeCall(FunctionExpression expr){
+        Expression[] args = expr.getSubExpressions();
+        Function f = BUILT_INS.get(expr.getName() + "/" + args.length);
+        if(f == null)
+            return expr;
+        double[] values = new double[args.length];
+        for(int i = 0; i < args.length; i++) {
+            if(!(args[i] instanceof ConstExpression))
+                return expr;
+            values[i] = ((ConstExpression) args[i]).getValue();
+        }
+        try {
+            return new ConstExpression(f.eval(values, null, null)); //built-in functions don't read the context
+        }catch(UndefinedException ex){
+            throw new IllegalStateException(ex); //can't happen, the number of arguments was checked
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import static com.github.gianlucanitti.javaexpreval.LocalizationHelper.*;
+
+/**
+ * Single-pass parser used by {@link Expression#parse(String, java.io.Writer)}.
+ * The input is scanned once, left to right; binary operations are built with an operator-precedence stack as soon as the precedence of
+ * the following operator is known, and parenthesized groups and function arguments are tracked with an explicit stack of {@link Range}s
+ * instead of recursion. Parsing takes linear time in the length of the input, and deeply nested input can't overflow the call stack.
+ * The trees (and the exceptions for malformed input) are the same that an {@link ExpressionList} for each parenthesized range would produce.
+ */
+final class ExpressionParser {
+
+    /**
+     * The kinds of range that can be parsed, which differ in the characters that can terminate them.
+     */
+    private enum Kind{
+        /**
+         * The whole input, terminated by its end.
+         */
+        TOP,
+        /**
+         * The content of a parenthesized group, terminated by ')'.
+         */
+        GROUP,
+        /**
+         * A function argument, terminated by ',' or ')'.
+         */
+        ARGUMENT
+    }
+
+    /**
+     * The state of a range being parsed: the operands and operators that can't be joined yet because they could be the left operand of an operator with higher precedence.
+     */
+    private static final class Range{
+        private final Kind kind;
+        private final int begin;
+        private final Range parent;
+        private final ArrayList<Expression> operands = new ArrayList<Expression>();
+        private final ArrayList<Character> operators = new ArrayList<Character>();
+        private boolean expectOperator = false; //When true, it's expected that an operator is added; otherwise, an expression is expected.
+        private boolean negate = false;
+        private String function; //for ARGUMENT ranges, the name of the called function
+        private ArrayList<Expression> args; //for ARGUMENT ranges, the arguments parsed so far
+
+        private Range(Kind kind, int begin, Range parent){
+            this.kind = kind;
+            this.begin = begin;
+            this.parent = parent;
+        }
+
+        /**
+         * Same as {@link ExpressionList#addItem(Expression)}, but applies the pending unary minus signs to the item.
+         */
+        private void addItem(Expression item) throws UnexpectedTokenException{
+            if(expectOperator)
+                throw new UnexpectedTokenException(expectOperator, false);
+            operands.add(negate ? new NegatedExpression(item) : item);
+            negate = false;
+            expectOperator = true;
+        }
+
+        /**
+         * Same as {@link ExpressionList#addOperator(char)}, but first joins the previous operations with the same or higher precedence (all operators are left-associative).
+         */
+        private void addOperator(char op) throws UnexpectedTokenException, InvalidOperatorException{
+            if(!expectOperator)
+                throw new UnexpectedTokenException(expectOperator, false);
+            int precedence = BinaryOpExpression.getPrecedence(op);
+            while(!operators.isEmpty() && BinaryOpExpression.getPrecedence(operators.get(operators.size() - 1)) >= precedence)
+                reduce();
+            operators.add(op);
+            expectOperator = false;
+        }
+
+        private void reduce() throws InvalidOperatorException{
+            Expression right = operands.remove(operands.size() - 1);
+            Expression left = operands.remove(operands.size() - 1);
+            operands.add(new BinaryOpExpression(left, operators.remove(operators.size() - 1), right));
+        }
+
+        /**
+         * Same as {@link ExpressionList#simplify()}.
+         */
+        private Expression simplify() throws UnexpectedTokenException, InvalidOperatorException{
+            if(!expectOperator) //if true we were expecting an expression, so the expression ends with a binary operator
+                throw new UnexpectedTokenException(expectOperator, true);
+            while(!operators.isEmpty())
+                reduce();
+            return operands.get(0);
+        }
+    }
+
+    private final String expr;
+    private final int length;
+    private final PrintWriter logWriter;
+    private int pos = 0;
+
+    private ExpressionParser(String expr, PrintWriter logWriter){
+        this.expr = expr;
+        this.length = expr.length();
+        this.logWriter = logWriter;
+    }
+
+    /**
+     * Parses the given {@link String} into an {@link Expression} object and logs the steps done to the specified {@link PrintWriter}.
+     * @param expr The string representation of the expression to parse.
+     * @param logWriter A {@link PrintWriter} to write the parsing steps to, or <code>null</code> if the steps must not be logged.
+     * @return An {@link Expression} object representing the expression given as string.
+     * @throws ExpressionException if the parsing process failed, i.e. the given string isn't a well-formed expression.
+     */
+    static Expression parse(String expr, PrintWriter logWriter) throws ExpressionException{
+        return new ExpressionParser(expr, logWriter).parse();
+    }
+
+    /**
+     * Computes, in a single pass, which opened parenthesis are matched by a closed one.
+     * @return An array where the item at the index of each '(' is <code>true</code> if the parenthesis is closed somewhere after it.
+     */
+    private boolean[] matchParenthesis(){
+        boolean[] closed = new boolean[length];
+        int[] open = new int[length];
+        int depth = 0;
+        for(int i = 0; i < length; i++){
+            char c = expr.charAt(i);
+            if(c == '(')
+                open[depth++] = i;
+            else if(c == ')' && depth > 0)
+                closed[open[--depth]] = true;
+        }
+        return closed;
+    }
+
+    private Expression parse() throws ExpressionException{
+        boolean[] closed = matchParenthesis();
+        Range range = new Range(Kind.TOP, 0, null);
+        while(pos < length){
+            char c = expr.charAt(pos);
+            if(!range.expectOperator && (c == '+' || c == '-')){
+                if(c == '-')
+                    range.negate = !range.negate;
+                pos++;
+            }else if(c == '.' || Character.isDigit(c)){
+                int begin = pos;
+                while(pos < length && (expr.charAt(pos) == '.' || Character.isDigit(expr.charAt(pos))))
+                    pos++;
+                range.addItem(new ConstExpression(Double.parseDouble(expr.substring(begin, pos))));
+            }else if(NamedSymbolExpression.isValidSymbolFirstChar(c)){
+                int begin = pos;
+                while(pos < length && NamedSymbolExpression.isValidSymbolChar(expr.charAt(pos)))
+                    pos++;
+                String symName = expr.substring(begin, pos);
+                if(pos < length && expr.charAt(pos) == '('){ //it's a function
+                    if(!closed[pos]) //a mismatch is reported before any error in the arguments
+                        throw new MismatchedParenthesisException();
+                    pos++;
+                    range = beginArgument(range, symName, new ArrayList<Expression>());
+                }else //it's a variable
+                    range.addItem(new VariableExpression(symName));
+            }else if(c == '('){
+                if(!closed[pos]) //a mismatch is reported before any error in the group
+                    throw new MismatchedParenthesisException();
+                pos++;
+                range = new Range(Kind.GROUP, pos, range);
+            }else if(BinaryOpExpression.isAllowedOperator(c)){
+                range.addOperator(c);
+                pos++;
+            }else if(c == ')' && range.kind == Kind.GROUP){
+                Expression group = endRange(range);
+                pos++;
+                range = range.parent;
+                range.addItem(group);
+            }else if((c == ')' || c == ',') && range.kind == Kind.ARGUMENT){
+                range.args.add(endRange(range));
+                pos++;
+                range = c == ',' ? beginArgument(range.parent, range.function, range.args) : endCall(range.parent, range.function, range.args);
+            }else if(c == ')'){ //if a closed parenthesis is found here, it means there are more closed than opened ones
+                throw new MismatchedParenthesisException();
+            }else if(c == ' '){ //spaces are allowed and ignored
+                pos++;
+            }else{
+                throw new UnknownCharException(c);
+            }
+        }
+        if(range.kind != Kind.TOP)
+            throw new MismatchedParenthesisException();
+        return endRange(range);
+    }
+
+    /**
+     * Starts parsing the next argument of a function call, skipping the empty ones (like in "f(1,,2)").
+     * @param range The range containing the function call.
+     * @param function The name of the called function.
+     * @param args The arguments parsed so far.
+     * @return The range of the new argument, or <code>range</code> if the call ended.
+     * @throws UnexpectedTokenException if the function call is found where an operator is expected.
+     */
+    private Range beginArgument(Range range, String function, ArrayList<Expression> args) throws UnexpectedTokenException{
+        while(pos < length && expr.charAt(pos) == ',')
+            pos++;
+        if(pos < length && expr.charAt(pos) == ')'){
+            pos++;
+            return endCall(range, function, args);
+        }
+        Range argument = new Range(Kind.ARGUMENT, pos, range);
+        argument.function = function;
+        argument.args = args;
+        return argument;
+    }
+
+    private Range endCall(Range range, String function, ArrayList<Expression> args) throws UnexpectedTokenException{
+        try {
+            range.addItem(new FunctionExpression(function, args.toArray(new Expression[args.size()])));
+        }catch(InvalidSymbolNameException ex){
+            throw new IllegalStateException(ex); //can't happen, the name was read according to the same rules
+        }
+        return range;
+    }
+
+    /**
+     * Builds the expression of a range and logs it if its string representation is different from the input.
+     * @param range The range, which ends at the current position.
+     * @return The expression equivalent to the range.
+     * @throws ExpressionException if the range isn't a well-formed expression.
+     */
+    private Expression endRange(Range range) throws ExpressionException{
+        Expression result = range.simplify();
+        if(logWriter != null){
+            String userStr = expr.substring(range.begin, pos);
+            String parsedStr = result.toString();
+            if(!userStr.equals(parsedStr)) { //log only if the string representation of the parsed expression is different from the input string
+                logWriter.println(getMessage(Message.REWRITE_STEP, userStr, parsedStr));
+                logWriter.flush();
+            }
+        }
+        return result;
+    }
+
+}
@@ -42,7 +42,7 @@ public abstract class Function {
      * @param args The values to pass to the function.
      * @param context The context this function must be evaluated into
      * (this is necessary, for example, if this is a {@link CustomFunction} defined as an expression with references to variables or other functions).
-     * @param logWriter The {@link java.io.Writer} to write evaluation steps onto
+     * @param logWriter The {@link java.io.Writer} to write evaluation steps onto, or <code>null</code> if the steps must not be logged
      * (only used if this is a {@link CustomFunction}, defined as a function that needs to be evaluated).
      * @return The result of the evaluation.
      * @throws UndefinedException if the number of arguments supplied is different than the number of arguments expected by this function
@@ -65,7 +65,7 @@ public abstract class Function {
      * (this is done by the public wrapper {@link #eval(double[], ExpressionContext, PrintWriter)}).
      * @param args The values to pass to the function.
      * @param context The context this function must be evaluated into.
-     * @param logWriter The {@link java.io.Writer} to write evaluation steps onto.
+     * @param logWriter The {@link java.io.Writer} to write evaluation steps onto, or <code>null</code> if the steps must not be logged.
      * @return The result of the evaluation.
      * @throws UndefinedException If the function can't be evaluated because its definition references undefined variables or functions.
      */
@@ -0,0 +1,50 @@
+package com.github.gianlucanitti.javaexpreval;
+
+/**
+ * The result of resolving a function call in an {@link ExpressionContext}, cached by a call site
+ * ({@link FunctionExpression} or {@link CompiledExpression}) so that it doesn't have to look the function up on every call.
+ * A binding is immutable, so it can be safely shared between threads; it's valid until the functions of its context are modified
+ * (see {@link ExpressionContext#getFunctionsVersion()}).
+ */
+final class FunctionBinding {
+
+    private final ExpressionContext context;
+    private final int version;
+    private final Function function;
+
+    private FunctionBinding(ExpressionContext context, int version, Function function){
+        this.context = context;
+        this.version = version;
+        this.function = function;
+    }
+
+    /**
+     * @return The function this call site is bound to.
+     */
+    Function getFunction(){
+        return function;
+    }
+
+    /**
+     * Checks whether this binding can be used to call the function in the specified context.
+     * @param context The context the call is being evaluated in.
+     * @return <code>true</code> if this binding was resolved in <code>context</code> and no function has been set or deleted since then.
+     */
+    boolean isValid(ExpressionContext context){
+        return this.context == context && version == context.getFunctionsVersion();
+    }
+
+    /**
+     * Resolves a function call in the specified context.
+     * @param context The context to resolve the function in.
+     * @param name The name of the function.
+     * @param argCount The number of arguments passed to the function.
+     * @return A new binding to the function.
+     * @throws UndefinedException if the requested function is not defined in <code>context</code>.
+     */
+    static FunctionBinding bind(ExpressionContext context, String name, int argCount) throws UndefinedException{
+        int version = context.getFunctionsVersion(); //read before the lookup, so a concurrent modification can only make the binding look stale
+        return new FunctionBinding(context, version, context.getFunction(name, argCount));
+    }
+
+}
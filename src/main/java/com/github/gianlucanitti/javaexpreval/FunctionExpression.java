@@ -1,6 +1,7 @@
 package com.github.gianlucanitti.javaexpreval;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 /**
  * An expression representing a function (built-in, like sqrt, log,... or user-defined in the context).
@@ -8,6 +9,8 @@ import java.io.PrintWriter;
 public class FunctionExpression extends NamedSymbolExpression{
 
     private Expression[] args;
+    private int hash; //cached by hashCode(), 0 if not computed yet
+    private volatile FunctionBinding binding; //the function this call was resolved to the last time it was evaluated
 
     /**
      * Initializes a new FunctionExpression representing a call to the specified function with the specified arguments.
@@ -33,10 +36,50 @@ public class FunctionExpression extends NamedSymbolExpression{
      */
     @Override
     protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException {
+        return evalExpr(context, logWriter, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The array of the evaluated arguments becomes the frame of the called function, if it's a {@link CustomFunction}.
+     */
+    @Override
+    double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException {
         double[] evaluatedArgs = new double[args.length];
         for(int i = 0; i < args.length; i++)
-            evaluatedArgs[i] = args[i].eval(context, logWriter);
-        return context.getFunction(getName(), args.length).eval(evaluatedArgs, context, logWriter);
+            evaluatedArgs[i] = args[i].eval(context, logWriter, frame);
+        return resolve(context).eval(evaluatedArgs, context, logWriter);
+    }
+
+    /**
+     * Returns the function called by this expression in the specified context, looking it up only if the functions of the context changed since the last call
+     * (or if this expression was evaluated in another context).
+     * @param context The context this expression is being evaluated in.
+     * @return The called function.
+     * @throws UndefinedException if the function is not defined in <code>context</code>.
+     */
+    Function resolve(ExpressionContext context) throws UndefinedException{
+        FunctionBinding b = binding;
+        if(b == null || !b.isValid(context))
+            binding = b = FunctionBinding.bind(context, getName(), args.length);
+        return b.getFunction();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Expression withSubExpressions(Expression[] subExpressions){
+        boolean changed = false;
+        for(int i = 0; i < args.length; i++)
+            changed |= subExpressions[i] != args[i];
+        if(!changed)
+            return this;
+        try{
+            return new FunctionExpression(getName(), subExpressions);
+        }catch(InvalidSymbolNameException ex){
+            throw new IllegalStateException(ex); //can't happen, the name was already validated by this object's constructor
+        }
     }
 
     /**
@@ -52,4 +95,30 @@ public class FunctionExpression extends NamedSymbolExpression{
         return result.replace(",)", ")");
     }
 
+    /**
+     * Compares this expression with another object.
+     * @param other The object to compare to.
+     * @return <code>true</code> if <code>other</code> is a call to a function with the same name and equal arguments, <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object other){
+        if(this == other)
+            return true;
+        if(!(other instanceof FunctionExpression))
+            return false;
+        FunctionExpression otherCall = (FunctionExpression) other;
+        return hashCode() == otherCall.hashCode() && getName().equals(otherCall.getName()) && Arrays.equals(args, otherCall.args);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode(){
+        int h = hash;
+        if(h == 0)
+            hash = h = 31 * getName().hashCode() + Arrays.hashCode(args);
+        return h;
+    }
+
 }
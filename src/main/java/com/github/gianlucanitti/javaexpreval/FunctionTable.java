@@ -0,0 +1,109 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The functions defined in an {@link ExpressionContext}, indexed by name and then by number of arguments, so that they can be looked up without scanning them all.
+ * The table also counts its modifications, which are used by call sites to validate the functions they resolved earlier (see {@link FunctionBinding}).
+ * It's not thread-safe; {@link ConcurrentExpressionContext} never modifies a table that has been published, but replaces it with a modified {@link #copy()}.
+ */
+final class FunctionTable {
+
+    private final HashSet<Function> functions;
+    private final HashMap<String, Function[]> byName;
+    private int version;
+
+    /**
+     * Initializes a table that contains the built-in functions.
+     */
+    FunctionTable(){
+        functions = new HashSet<Function>();
+        byName = new HashMap<String, Function[]>();
+        version = 0;
+        for(Function f: BuiltInFunctions.getList())
+            put(f);
+    }
+
+    private FunctionTable(FunctionTable other){
+        functions = new HashSet<Function>(other.functions);
+        byName = new HashMap<String, Function[]>();
+        for(Map.Entry<String, Function[]> e: other.byName.entrySet())
+            byName.put(e.getKey(), e.getValue().clone());
+        version = other.version;
+    }
+
+    /**
+     * @return A table with the same functions and version of this one, which can be modified without affecting this one.
+     */
+    FunctionTable copy(){
+        return new FunctionTable(this);
+    }
+
+    /**
+     * @return The set of the functions in this table (which must not be modified directly).
+     */
+    Set<Function> getFunctions(){
+        return functions;
+    }
+
+    /**
+     * @return The number of modifications of this table.
+     */
+    int getVersion(){
+        return version;
+    }
+
+    /**
+     * Returns the function with the specified name and number of arguments.
+     * @param name The name of the function.
+     * @param argCount The number of arguments of the function.
+     * @return The function, or <code>null</code> if it's not in this table.
+     */
+    Function get(String name, int argCount){
+        Function[] byArgCount = byName.get(name);
+        if(byArgCount == null || argCount < 0 || argCount >= byArgCount.length)
+            return null;
+        return byArgCount[argCount];
+    }
+
+    /**
+     * Adds a function to this table, replacing the one with the same name and number of arguments (if any).
+     * @param f The function to add.
+     */
+    void put(Function f){
+        functions.remove(f); //the new function can be used as key because it has the same name and number of arguments of the old one, so they are equal according to Function.equals(Object)
+        functions.add(f);
+        Function[] byArgCount = byName.get(f.getName());
+        if(byArgCount == null || byArgCount.length <= f.getArgCount()){
+            Function[] grown = new Function[f.getArgCount() + 1];
+            if(byArgCount != null)
+                System.arraycopy(byArgCount, 0, grown, 0, byArgCount.length);
+            byName.put(f.getName(), byArgCount = grown);
+        }
+        byArgCount[f.getArgCount()] = f;
+        version++;
+    }
+
+    /**
+     * Removes a function from this table.
+     * @param f The function to remove, which must be in this table.
+     */
+    void remove(Function f){
+        functions.remove(f);
+        byName.get(f.getName())[f.getArgCount()] = null;
+        version++;
+    }
+
+    /**
+     * Removes all the functions that aren't read-only.
+     */
+    void clear(){
+        for(Function f: functions.toArray(new Function[functions.size()]))
+            if(!f.isReadOnly())
+                remove(f);
+    }
+
+}
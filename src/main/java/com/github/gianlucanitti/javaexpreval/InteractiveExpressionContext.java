@@ -1,7 +1,17 @@
 package com.github.gianlucanitti.javaexpreval;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import static com.github.gianlucanitti.javaexpreval.LocalizationHelper.*;
@@ -46,10 +56,12 @@ public class InteractiveExpressionContext extends ExpressionContext {
     private PrintWriter outputWriter;
     private PrintWriter verboseWriter;
     private PrintWriter errorWriter;
+    private boolean verbose;
     private HashMap<String, Command> commands;
     private String prompt;
     private boolean helpVerbose;
     private boolean stopOnError;
+    private ExpressionCache expressionCache;
 
     /**
      * Initializes an InteractiveExpressionContext that takes input from the specified {@link Reader} and writes output to the specified {@link Writer}s.
@@ -125,6 +137,7 @@ public class InteractiveExpressionContext extends ExpressionContext {
      */
     public void setVerboseOutputWriter(Writer w, boolean autoFlush){
         verboseWriter = new PrintWriter(w, autoFlush);
+        verbose = !NullOutputStream.isNullWriter(w);
     }
 
     /**
@@ -161,6 +174,26 @@ public class InteractiveExpressionContext extends ExpressionContext {
         stopOnError = value;
     }
 
+    /**
+     * Sets an {@link ExpressionCache} used by {@link #update()} to parse the statements, so that repeated statements are parsed only once.
+     * The parsing steps of a cached expression are not logged again. The same cache can be shared by many contexts.
+     * @param cache The cache to use, or <code>null</code> to parse every statement (default).
+     */
+    public void setExpressionCache(ExpressionCache cache){
+        expressionCache = cache;
+    }
+
+    /**
+     * Parses an expression using the {@link ExpressionCache}, if one is set.
+     * @param expr The string representation of the expression to parse.
+     * @param logWriter A {@link Writer} to write the parsing steps to, or <code>null</code> if the steps must not be logged.
+     * @return An {@link Expression} object representing the expression given as string.
+     * @throws ExpressionException if the given string isn't a well-formed expression.
+     */
+    private Expression parse(String expr, Writer logWriter) throws ExpressionException{
+        return expressionCache == null ? Expression.parse(expr, logWriter) : expressionCache.parse(expr, logWriter);
+    }
+
     /**
      * Prints the prompt (if set) to the output {@link Writer}, then reads a line from the input {@link Reader}.
      * @return The line read.
@@ -175,20 +208,133 @@ public class InteractiveExpressionContext extends ExpressionContext {
     }
 
     /**
-     * Reads commands from the input {@link Reader}, if any, and executes them.
-     * It then writes their output, if any, to the output {@link Writer}s.
-     * @return One of the {@link Status} values depending on what caused the method to return (see {@link Status} for more detail).
-     * @throws IOException in case of IO problems with the {@link Reader} or {@link Writer}.
-     * @see Status
+     * A line read from the input {@link Reader}, executed in three steps: {@link #parse(Writer)} and {@link #evaluate(Writer)}, which don't modify
+     * this context, and {@link #commit(Writer)}, which applies the changes and writes the output.
      */
-    public Status update() throws IOException{
-        String command;
-        while((command = getLine()) != null){
+    private final class Statement{
+        private final String line;
+        private Command command;
+        private boolean assignment;
+        private String[] sides;
+        private Matcher matcher; //the left side of an assignment, or the symbol to delete
+        private String symName;
+        private boolean readOnly;
+        private String[] argNames; //null if the statement doesn't define a function
+        private Expression expr;
+        private double value;
+        private ExpressionException error;
+        private StringWriter logBuffer; //the parsing and evaluation steps of a statement executed concurrently with others
+
+        /**
+         * Recognizes the kind of statement.
+         * @param line The line read from the input.
+         */
+        private Statement(String line){
+            this.line = line;
+            command = commands.get(line);
+            if(command != null || !line.contains("=")) //a command, or an expression
+                return;
+            assignment = true;
+            sides = line.split("=");
+            if(sides.length == 1){ //an assignment with nothing on the right of the equality symbol (e.g. "someVar=" or "someFun(1)=") deletes the variable/function (if function, the number of arguments must be specified)
+                Pattern pattern = Pattern.compile("^([A-Za-z0-9_]*?)(?:\\((\\d+)\\))?$");
+                matcher = pattern.matcher(sides[0].trim()); //remove spaces and parse with regex
+                if(!matcher.matches())
+                    matcher = null;
+            }else if(sides.length == 2){
+                Pattern pattern = Pattern.compile("^(.*?)(?:\\((.*)\\))?$");
+                matcher = pattern.matcher(sides[0].trim()); //remove spaces and parse with regex
+                matcher.matches();
+                symName = matcher.group(1);
+                if(!commands.containsKey(symName)){
+                    if(readOnly = symName.startsWith("readonly ")) //this intentionally assigns readOnly (not an equality condition typo)
+                        symName = symName.substring("readonly ".length());
+                    if(matcher.group(2) != null) //argument names are specified, so it's a function definition
+                        argNames = matcher.group(2).replace(" ", "").split(",");
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if this statement assigns the value of an expression to a variable.
+         */
+        private boolean isVariableAssignment(){
+            return symName != null && !commands.containsKey(matcher.group(1)) && argNames == null;
+        }
+
+        /**
+         * @return <code>true</code> if this statement defines a function.
+         */
+        private boolean isFunctionDefinition(){
+            return symName != null && !commands.containsKey(matcher.group(1)) && argNames != null;
+        }
+
+        /**
+         * @return <code>true</code> if this statement evaluates an expression (which may read any symbol of this context) before committing.
+         */
+        private boolean isEvaluated(){
+            return command == null && (!assignment || isVariableAssignment());
+        }
+
+        /**
+         * Parses the expression of this statement, if any. Errors are stored and reported by {@link #commit(Writer)}.
+         * @param logWriter The {@link Writer} for the parsing steps, or <code>null</code>.
+         */
+        private void parse(Writer logWriter){
+            try {
+                if(command == null && !assignment)
+                    expr = InteractiveExpressionContext.this.parse(line, logWriter);
+                else if(isVariableAssignment() || isFunctionDefinition())
+                    expr = InteractiveExpressionContext.this.parse(sides[1], logWriter);
+            }catch(ExpressionException ex){
+                error = ex;
+            }
+        }
+
+        /**
+         * Evaluates the expression of this statement, if it must be evaluated, without modifying this context.
+         * @param logWriter The {@link Writer} for the evaluation steps, or <code>null</code>.
+         */
+        private void evaluate(Writer logWriter){
+            if(error == null && isEvaluated()){
+                try {
+                    value = expr.eval(InteractiveExpressionContext.this, logWriter, false);
+                }catch(UndefinedException ex){
+                    error = ex;
+                }
+            }
+        }
+
+        /**
+         * Stores the result of the evaluation in the "ans" variable, like {@link Expression#eval(ExpressionContext, Writer, boolean)}.
+         * @param logWriter The {@link Writer} where a failure is reported, or <code>null</code>.
+         */
+        private void storeResult(Writer logWriter){
             try {
-                if(commands.containsKey(command))
-                    switch (commands.get(command)) {
+                InteractiveExpressionContext.this.storeResult(value);
+            }catch(ExpressionException ex){
+                if(logWriter != null)
+                    new PrintWriter(logWriter).println(getMessage(Message.FAILED_STORE_RESULT, ex.getMessage()));
+            }
+        }
+
+        /**
+         * Applies the changes of this statement to this context and writes its output.
+         * @param logWriter The {@link Writer} for the evaluation steps, or <code>null</code>.
+         * @return The status that must be returned by {@link #update()}, or <code>null</code> if the execution must continue.
+         */
+        private Status commit(Writer logWriter){
+            if(logBuffer != null){
+                verboseWriter.print(logBuffer.toString());
+                verboseWriter.flush();
+            }
+            try {
+                if(error != null)
+                    throw error;
+                if(command != null)
+                    switch (command) {
                         case CONTEXT:
-                            outputWriter.println(toString());
+                            outputWriter.println(InteractiveExpressionContext.this.toString());
                             break;
                         case CLEAR:
                             clear();
@@ -201,55 +347,217 @@ public class InteractiveExpressionContext extends ExpressionContext {
                         case EXIT:
                             return Status.EXIT;
                     }
-                else{ //if the string doesn't begin with a known command
-                    if (command.contains("=")) { //if it contains an =, then it's considered an assignment
-                        String[] sides = command.split("=");
-                        if(sides.length == 1){ //an assignment with nothing on the right of the equality symbol (e.g. "someVar=" or "someFun(1)=") deletes the variable/function (if function, the number of arguments must be specified)
-                            Pattern pattern = Pattern.compile("^([A-Za-z0-9_]*?)(?:\\((\\d+)\\))?$");
-                            Matcher matcher = pattern.matcher(sides[0].trim()); //remove spaces and parse with regex
-                            if(!matcher.matches())
-                                errorWriter.println(getMessage(Message.INCORRECT_DELETE));
-                            else {
-                                if (matcher.group(2) == null) //no arguments, so it's a variable deletion
-                                    delVariable(matcher.group(1));
-                                else //argument number is specified, so it's a function deletion
-                                    delFunction(matcher.group(1), Integer.parseInt(matcher.group(2)));
-                                verboseWriter.println(getMessage(Message.VAR_DELETED, sides[0]));
-                            }
-                        }else if (sides.length == 2) {
-                            Pattern pattern = Pattern.compile("^(.*?)(?:\\((.*)\\))?$");
-                            Matcher matcher = pattern.matcher(sides[0].trim()); //remove spaces and parse with regex
-                            matcher.matches();
-                            String symName = matcher.group(1);
-                            if(commands.containsKey(symName)){
-                                errorWriter.println(getMessage(Message.RESERVED_WORD, symName));
-                                if(stopOnError) return Status.ERROR;
-                            }else {
-                                boolean readOnly;
-                                if(readOnly = symName.startsWith("readonly ")) //this intentionally assigns readOnly (not an equality condition typo)
-                                    symName = symName.substring("readonly ".length());
-                                Expression expr = Expression.parse(sides[1], verboseWriter);
-                                if(matcher.group(2) == null) { //no arguments, so it's a variable definition
-                                    setVariable(symName, readOnly, expr, verboseWriter);
-                                    verboseWriter.println(getMessage(Message.VAR_ASSIGNED, symName, Double.toString(getVariable(symName))));
-                                }else { //argument names are specified, so it's a function definition
-                                    setFunction(symName, expr, readOnly, matcher.group(2).replace(" ", "").split(","));
-                                    verboseWriter.println(getMessage(Message.FUNC_ASSIGNED, matcher.group(0), expr.toString()));
-                                }
-                            }
-                        }else {
-                            errorWriter.println(getMessage(Message.ONLY_ONE_EQUALITY));
-                            if(stopOnError) return Status.ERROR;
-                        }
-                    }else //otherwise, it's parsed as an expression
-                        outputWriter.println(Expression.parse(command, verboseWriter).eval(this, verboseWriter));
+                else if(!assignment){ //an expression
+                    storeResult(logWriter);
+                    outputWriter.println(value);
+                }else if(sides.length == 1){
+                    if(matcher == null)
+                        errorWriter.println(getMessage(Message.INCORRECT_DELETE));
+                    else {
+                        if (matcher.group(2) == null) //no arguments, so it's a variable deletion
+                            delVariable(matcher.group(1));
+                        else //argument number is specified, so it's a function deletion
+                            delFunction(matcher.group(1), Integer.parseInt(matcher.group(2)));
+                        verboseWriter.println(getMessage(Message.VAR_DELETED, sides[0]));
+                    }
+                }else if(sides.length == 2){
+                    if(commands.containsKey(matcher.group(1))){
+                        errorWriter.println(getMessage(Message.RESERVED_WORD, matcher.group(1)));
+                        if(stopOnError) return Status.ERROR;
+                    }else if(argNames == null){ //no arguments, so it's a variable definition
+                        storeResult(logWriter);
+                        setVariable(symName, readOnly, value);
+                        verboseWriter.println(getMessage(Message.VAR_ASSIGNED, symName, Double.toString(getVariable(symName))));
+                    }else { //argument names are specified, so it's a function definition
+                        setFunction(symName, expr, readOnly, argNames);
+                        verboseWriter.println(getMessage(Message.FUNC_ASSIGNED, matcher.group(0), expr.toString()));
+                    }
+                }else {
+                    errorWriter.println(getMessage(Message.ONLY_ONE_EQUALITY));
+                    if(stopOnError) return Status.ERROR;
                 }
             }catch(ExpressionException ex){
                 errorWriter.println(ex.getMessage());
                 if(stopOnError) return Status.ERROR;
             }
+            return null;
+        }
+
+        /**
+         * @return The symbols that are modified when this statement is committed (see {@link SymbolDependencies}).
+         */
+        private String[] getWrites(){
+            if(command == Command.CLEAR)
+                return new String[]{SymbolDependencies.ALL};
+            if(!assignment)
+                return command == null ? new String[]{"ans"} : new String[0];
+            if(sides.length == 1 && matcher != null)
+                return new String[]{matcher.group(2) == null ? matcher.group(1) : SymbolDependencies.functionKey(matcher.group(1), Integer.parseInt(matcher.group(2)))};
+            if(isVariableAssignment())
+                return new String[]{"ans", symName};
+            if(isFunctionDefinition())
+                return new String[]{SymbolDependencies.functionKey(symName, SymbolDependencies.getArgCount(argNames))};
+            return new String[0];
+        }
+    }
+
+    /**
+     * Reads commands from the input {@link Reader}, if any, and executes them.
+     * It then writes their output, if any, to the output {@link Writer}s.
+     * @return One of the {@link Status} values depending on what caused the method to return (see {@link Status} for more detail).
+     * @throws IOException in case of IO problems with the {@link Reader} or {@link Writer}.
+     * @see Status
+     */
+    public Status update() throws IOException{
+        Writer logWriter = verbose ? verboseWriter : null; //when verbose output is discarded, parsing and evaluation steps aren't even formatted
+        String command;
+        while((command = getLine()) != null){
+            Statement statement = new Statement(command);
+            statement.parse(logWriter);
+            statement.evaluate(logWriter);
+            Status status = statement.commit(logWriter);
+            if(status != null)
+                return status;
+        }
+        return Status.INPUT_END;
+    }
+
+    /**
+     * Like {@link #update()}, but reads all the statements from the input {@link Reader} (up to the end of the input or an exit command) before executing them,
+     * and evaluates the independent ones concurrently in the specified executor.
+     * The symbols read and written by each statement are found from its expression (a call to a user-defined function reads the symbols read by its body,
+     * and every evaluation writes the "ans" variable); a statement is evaluated as soon as all the previous statements that write the symbols it reads have been executed.
+     * The changes to this context and the output are applied by the calling thread in the order of the statements, so they are the same of {@link #update()}:
+     * if an error stops the execution (see {@link #setStopOnError(boolean)}), the statements after it have no effect, even if they were already evaluated.
+     * This context must not be modified by other threads until this method returns.
+     * @param executor The {@link ExecutorService} that evaluates the statements.
+     * @return One of the {@link Status} values depending on what caused the method to return (see {@link Status} for more detail).
+     * @throws IOException in case of IO problems with the {@link Reader} or {@link Writer}.
+     * @throws InterruptedException if the calling thread is interrupted while waiting for an evaluation.
+     */
+    public Status update(ExecutorService executor) throws IOException, InterruptedException{
+        final boolean log = verbose;
+        final ArrayList<Statement> statements = new ArrayList<Statement>();
+        String line;
+        while((line = getLine()) != null){
+            Statement statement = new Statement(line);
+            if(log)
+                statement.logBuffer = new StringWriter();
+            statements.add(statement);
+            if(statement.command == Command.EXIT) //the following lines are left in the input, like update() does
+                break;
+        }
+        if(expressionCache == null){ //parsing doesn't read this context
+            ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(statements.size());
+            for(final Statement statement: statements)
+                tasks.add(Executors.callable(new Runnable(){
+                    @Override
+                    public void run(){
+                        statement.parse(statement.logBuffer);
+                    }
+                }));
+            waitAll(executor.invokeAll(tasks));
+        }else //parsed in order, so that the same statements are found in the cache (and not logged) as in update()
+            for(Statement statement: statements)
+                statement.parse(statement.logBuffer);
+        //each statement waits for the last previous statement that writes a symbol it reads; the ones waiting for the same statement are in the same list
+        HashMap<Integer, ArrayList<Integer>> waiting = new HashMap<Integer, ArrayList<Integer>>();
+        SymbolDependencies dependencies = new SymbolDependencies(this);
+        HashMap<String, Integer> lastWriters = new HashMap<String, Integer>();
+        int lastClear = -1;
+        for(int i = 0; i < statements.size(); i++){
+            Statement statement = statements.get(i);
+            if(statement.isEvaluated() && statement.error == null){
+                HashSet<String> reads = new HashSet<String>();
+                dependencies.addReads(statement.expr, reads);
+                int waitFor = reads.contains(SymbolDependencies.ALL) ? i - 1 : lastClear;
+                for(String symbol: reads)
+                    if(lastWriters.containsKey(symbol))
+                        waitFor = Math.max(waitFor, lastWriters.get(symbol));
+                ArrayList<Integer> list = waiting.get(waitFor);
+                if(list == null)
+                    waiting.put(waitFor, list = new ArrayList<Integer>());
+                list.add(i);
+            }
+            for(String symbol: statement.getWrites()){
+                if(symbol.equals(SymbolDependencies.ALL))
+                    lastClear = i;
+                else
+                    lastWriters.put(symbol, i);
+            }
+            if(statement.isFunctionDefinition() && statement.error == null)
+                dependencies.addFunction(statement.symName, statement.argNames, statement.expr);
+        }
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); //evaluations read this context concurrently, commits modify it
+        Future<?>[] evaluations = new Future<?>[statements.size()];
+        Writer logWriter = log ? verboseWriter : null;
+        try {
+            submitEvaluations(executor, waiting.remove(-1), statements, evaluations, lock);
+            for(int i = 0; i < statements.size(); i++){
+                if(evaluations[i] != null)
+                    waitAll(Collections.<Future<?>>singletonList(evaluations[i]));
+                Status status;
+                lock.writeLock().lock();
+                try {
+                    status = statements.get(i).commit(logWriter);
+                }finally{
+                    lock.writeLock().unlock();
+                }
+                if(status != null)
+                    return status;
+                submitEvaluations(executor, waiting.remove(i), statements, evaluations, lock);
+            }
+        }finally{
+            for(Future<?> f: evaluations) //if the execution was stopped, the remaining evaluations are discarded, but they must not run after this method returns
+                if(f != null)
+                    f.cancel(false);
+            for(Future<?> f: evaluations)
+                if(f != null && !f.isCancelled())
+                    try {
+                        f.get();
+                    }catch(Exception ex){
+                        //already reported, or discarded
+                    }
         }
         return Status.INPUT_END;
     }
 
+    private static void submitEvaluations(ExecutorService executor, ArrayList<Integer> indexes, ArrayList<Statement> statements, Future<?>[] evaluations, final ReentrantReadWriteLock lock){
+        if(indexes == null)
+            return;
+        for(int i: indexes){
+            final Statement statement = statements.get(i);
+            evaluations[i] = executor.submit(new Runnable(){
+                @Override
+                public void run(){
+                    lock.readLock().lock();
+                    try {
+                        statement.evaluate(statement.logBuffer);
+                    }finally{
+                        lock.readLock().unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the completion of the specified tasks, rethrowing the unchecked exceptions they threw.
+     * @param futures The tasks.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    private static void waitAll(List<? extends Future<?>> futures) throws InterruptedException{
+        for(Future<?> f: futures){
+            try {
+                f.get();
+            }catch(ExecutionException ex){
+                if(ex.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) ex.getCause();
+                if(ex.getCause() instanceof Error)
+                    throw (Error) ex.getCause();
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
 }
@@ -104,6 +104,10 @@ public class LocalizationHelper {
          * Default value: "The function \"%s\" is not defined for %s arguments."
          */
         UNDEFINED_FUNC("The function \"%s\" is not defined for %s arguments."),
+        /**
+         * Default value: "The variable \"%s\" is defined by a formula which depends on itself."
+         */
+        CYCLIC_DEPENDENCY("The variable \"%s\" is defined by a formula which depends on itself."),
         /**
          * Default value: "An operator was expected, but an expression was found."
          */
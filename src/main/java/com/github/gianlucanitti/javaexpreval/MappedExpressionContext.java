@@ -0,0 +1,327 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link ExpressionContext} whose variables are kept in a memory-mapped file, so that many processes can share them, for example a large table of constants
+ * used by several worker JVMs on the same host. The values are read in place from the mapping, which is shared with the other processes through the page cache:
+ * they don't take any heap space and there is nothing to load when a context is opened, only the names are read to index them.
+ * <p>
+ * The set of variables in the file is fixed when the file is created (see {@link #create(File, Map)}); their values can be changed only by a context that maps the file
+ * in read-write mode (see {@link #open(File, boolean)}), and the changes become visible to all the other processes that map it. Each value is written
+ * with a single aligned 8 byte store, so on 64 bit platforms a reader never sees a partially written value. After every update the writer also increments
+ * a counter in the file (see {@link #getVersion()}), but the file is shared through plain memory accesses, without any lock or memory barrier:
+ * the counter is only a hint that something changed, and it gives no ordering guarantee. Another process may see the new counter before the new values,
+ * or the values before the counter, and it may see a bulk update (see {@link #setVariables(Map, boolean)}) partially applied.
+ * Processes that need consistent snapshots of many values must synchronize by other means. In a context that maps the file in read-only mode, the variables
+ * of the file are read-only. Variables of the file can't be deleted, and the read-only flag is ignored when they are set.
+ * Other variables (like "ans") and functions are kept on the heap, as in {@link ExpressionContext}, and are not shared.
+ * <p>
+ * The format is little-endian:
+ * <ul>
+ *     <li>the magic number <code>0x4A455856</code> ("JEXV" in ASCII) and the format version (1), as 32 bit integers;</li>
+ *     <li>the number of variables (32 bit integer), 4 zero bytes and the update counter (64 bit integer);</li>
+ *     <li>the name of each variable, as the number of bytes (16 bit unsigned integer) followed by the UTF-8 bytes;</li>
+ *     <li>zero bytes up to a multiple of 8 bytes from the start of the file;</li>
+ *     <li>the values of the variables, as 64 bit IEEE 754 doubles.</li>
+ * </ul>
+ * Like {@link ExpressionContext}, this class is not thread-safe, but many threads can read the values of the file at the same time.
+ */
+public class MappedExpressionContext extends ExpressionContext {
+
+    private static final int MAGIC = 0x4A455856;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int VERSION_OFFSET = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer mapping;
+    private final DoubleBuffer values;
+    private final SymbolTable symbols = new SymbolTable(); //the ids of the variables of the file are their positions in it
+    private final int fileVariables;
+    private final boolean writable;
+
+    private MappedExpressionContext(MappedByteBuffer mapping, long dataOffset, String[] names, boolean writable) throws IOException{
+        this.mapping = mapping;
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        mapping.position((int) dataOffset);
+        this.values = mapping.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        mapping.clear();
+        for(int i = 0; i < names.length; i++)
+            if(symbols.intern(names[i]) != i) //a repeated name would shift the ids of the following ones away from their values
+                throw new IOException("Duplicate variable in the variables file: " + names[i]);
+        this.fileVariables = names.length;
+        this.writable = writable;
+    }
+
+    private static long align(long position){
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * Creates (or overwrites) a file with the specified variables, and maps it in read-write mode.
+     * @param file The file to create.
+     * @param values The names of the variables, with their initial values.
+     * @return A context which can change the values of the variables in the file.
+     * @throws IOException if the file can't be written, or it would be larger than 2GB.
+     * @throws InvalidSymbolNameException if one of the names isn't a valid symbol name.
+     */
+    public static MappedExpressionContext create(File file, Map<String, Double> values) throws IOException, InvalidSymbolNameException{
+        String[] names = new String[values.size()];
+        byte[][] encodedNames = new byte[names.length][];
+        long position = HEADER_SIZE;
+        int i = 0;
+        for(String name: values.keySet()){
+            VariableExpression.assertValidSymbolName(name);
+            names[i] = name;
+            encodedNames[i] = name.getBytes(UTF8);
+            if(encodedNames[i].length > 0xffff)
+                throw new IOException("Variable name too long: " + name);
+            position += 2 + encodedNames[i++].length;
+        }
+        long dataOffset = align(position);
+        long size = dataOffset + 8L * names.length;
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Too many variables: " + names.length);
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try{
+            FileChannel channel = f.getChannel();
+            channel.truncate(0);
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); //the mapping stays valid after the channel is closed
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            mapping.putInt(MAGIC).putInt(VERSION).putInt(names.length).putInt(0).putLong(0);
+            for(byte[] name: encodedNames)
+                mapping.putShort((short) name.length).put(name);
+            mapping.clear();
+            MappedExpressionContext context = new MappedExpressionContext(mapping, dataOffset, names, true);
+            i = 0;
+            for(Double value: values.values())
+                context.values.put(i++, value);
+            return context;
+        }finally{
+            f.close();
+        }
+    }
+
+    /**
+     * Maps an existing file of variables.
+     * @param file The file to open.
+     * @param writable Whether the file must be mapped in read-write mode, so that this context can change the values of its variables.
+     * @return The opened context.
+     * @throws IOException if the file can't be read (or written, if <code>writable</code> is <code>true</code>), or it's not a valid file of variables
+     * (including a file whose variable names aren't valid symbol names or aren't distinct).
+     */
+    public static MappedExpressionContext open(File file, boolean writable) throws IOException{
+        RandomAccessFile f = new RandomAccessFile(file, writable ? "rw" : "r");
+        try{
+            FileChannel channel = f.getChannel();
+            long size = channel.size();
+            if(size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                throw new IOException("Not a variables file: " + file);
+            MappedByteBuffer mapping = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            if(mapping.getInt(0) != MAGIC)
+                throw new IOException("Not a variables file: " + file);
+            if(mapping.getInt(4) != VERSION)
+                throw new IOException("Unsupported variables file version: " + mapping.getInt(4));
+            int count = mapping.getInt(8);
+            if(count < 0)
+                throw new IOException("Invalid variables file header: " + file);
+            String[] names = new String[count];
+            int position = HEADER_SIZE;
+            for(int i = 0; i < count; i++){
+                if(position + 2 > size)
+                    throw new IOException("Truncated variables file header: " + file);
+                int length = mapping.getShort(position) & 0xffff;
+                if(position + 2 + length > size)
+                    throw new IOException("Truncated variables file header: " + file);
+                byte[] name = new byte[length];
+                mapping.position(position + 2);
+                mapping.get(name);
+                names[i] = new String(name, UTF8);
+                try{
+                    VariableExpression.assertValidSymbolName(names[i]);
+                }catch(InvalidSymbolNameException ex){
+                    throw new IOException("Invalid variable name in " + file + ": " + names[i], ex);
+                }
+                position += 2 + length;
+            }
+            mapping.clear();
+            long dataOffset = align(position);
+            if(size < dataOffset + 8L * count)
+                throw new IOException("Truncated variables file: " + file);
+            return new MappedExpressionContext(mapping, dataOffset, names, writable);
+        }finally{
+            f.close();
+        }
+    }
+
+    /**
+     * @return Whether this context maps the file in read-write mode, so it can change the values of its variables.
+     */
+    public boolean isWritable(){
+        return writable;
+    }
+
+    /**
+     * Returns the update counter of the file, which is incremented by the writer after every change of the values (a bulk update counts as one change).
+     * The counter is read with a plain memory access, so it's not ordered with the values: a new counter doesn't mean that the new values are visible yet,
+     * and there is no guarantee about when a change becomes visible to a polling loop (see {@link MappedExpressionContext}).
+     * @return The number of updates of the file since it was created.
+     */
+    public long getVersion(){
+        return mapping.getLong(VERSION_OFFSET);
+    }
+
+    /**
+     * Writes the changes of the values to the storage device, so that they are not lost if the system crashes
+     * (the other processes see them anyway). It does nothing if the file is mapped in read-only mode.
+     */
+    public void force(){
+        if(writable)
+            mapping.force();
+    }
+
+    /**
+     * @param varName The name of a variable.
+     * @return The position of the variable in the file, or -1 if it's not in the file.
+     */
+    private int indexOf(String varName){
+        int id = symbols.indexOf(varName);
+        return id < fileVariables ? id : -1;
+    }
+
+    /**
+     * @return A unmodifiable {@link Map} containing the names and values of the variables defined in this context, when this method is called.
+     */
+    @Override
+    public Map<String, VariableValue> getVariables(){
+        LinkedHashMap<String, VariableValue> result = new LinkedHashMap<String, VariableValue>();
+        for(int i = 0; i < fileVariables; i++)
+            result.put(symbols.getName(i), new VariableValue(values.get(i), !writable));
+        result.putAll(super.getVariables());
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getVariable(String varName) throws UndefinedException{
+        int id = indexOf(varName);
+        return id >= 0 ? values.get(id) : super.getVariable(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double getVariable(VariableExpression var) throws UndefinedException{
+        int id = var.getSymbolId(symbols); //only the names of the file are in the table
+        return id >= 0 && id < fileVariables ? values.get(id) : super.getVariable(var.getName());
+    }
+
+    /**
+     * Writes the value of a variable of the file, checking that this context can write it.
+     * @return The old value.
+     */
+    private VariableValue write(String varName, int id, double value) throws ReadonlyException{
+        if(!writable)
+            throw new ReadonlyException(varName);
+        VariableValue oldValue = new VariableValue(values.get(id), false);
+        values.put(id, value);
+        return oldValue;
+    }
+
+    private void incrementVersion(){
+        mapping.putLong(VERSION_OFFSET, mapping.getLong(VERSION_OFFSET) + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     * If the variable is in the file, the new value is visible to all the processes that map it; the read-only flag is ignored.
+     * @throws ReadonlyException if the variable can't be set because it was previously defined as read-only, or it's in the file and it's mapped in read-only mode.
+     */
+    @Override
+    public void setVariable(String varName, boolean readOnly, double value) throws InvalidSymbolNameException, ReadonlyException{
+        int id = indexOf(varName);
+        if(id < 0){
+            super.setVariable(varName, readOnly, value);
+            return;
+        }
+        VariableValue oldValue = write(varName, id, value);
+        incrementVersion();
+        fireChange(new ContextChange.VariableChange(varName, oldValue, new VariableValue(value, false)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * The values of the variables in the file are written after all the checks, and the update counter is incremented once;
+     * other processes may see the new values one at a time.
+     */
+    @Override
+    public void setVariables(Map<String, Double> values, boolean readOnly) throws InvalidSymbolNameException, ReadonlyException{
+        HashMap<String, Double> heapValues = new HashMap<String, Double>();
+        HashMap<Integer, Double> fileValues = new HashMap<Integer, Double>();
+        for(Map.Entry<String, Double> e: values.entrySet()){
+            int id = indexOf(e.getKey());
+            if(id < 0)
+                heapValues.put(e.getKey(), e.getValue());
+            else if(!writable)
+                throw new ReadonlyException(e.getKey());
+            else
+                fileValues.put(id, e.getValue());
+        }
+        beginBatch();
+        try{
+            if(!heapValues.isEmpty())
+                super.setVariables(heapValues, readOnly); //checks all the heap variables before changing anything
+            for(Map.Entry<Integer, Double> e: fileValues.entrySet()){
+                String varName = symbols.getName(e.getKey());
+                VariableValue oldValue = write(varName, e.getKey(), e.getValue());
+                fireChange(new ContextChange.VariableChange(varName, oldValue, new VariableValue(e.getValue(), false)));
+            }
+            if(!fileValues.isEmpty())
+                incrementVersion();
+        }finally{
+            endBatch();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void storeResult(double value) throws ReadonlyException{
+        int id = indexOf("ans");
+        if(id < 0)
+            super.storeResult(value);
+        else{
+            write("ans", id, value);
+            incrementVersion();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws ReadonlyException if the variable can't be deleted because it was defined as read-only, or it's in the file.
+     */
+    @Override
+    public void delVariable(String varName) throws ReadonlyException{
+        if(indexOf(varName) >= 0)
+            throw new ReadonlyException(varName);
+        super.delVariable(varName);
+    }
+
+}
@@ -8,6 +8,7 @@ import java.io.PrintWriter;
 public class NegatedExpression extends Expression {
 
     private Expression subExpression;
+    private int hash; //cached by hashCode(), 0 if not computed yet
 
     /**
      * Initializes a NegatedExpression representing the opposite value of the specified expression.
@@ -30,7 +31,23 @@ public class NegatedExpression extends Expression {
      */
     @Override
     protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException {
-        return -subExpression.eval(context, logWriter);
+        return evalExpr(context, logWriter, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException {
+        return -subExpression.eval(context, logWriter, frame);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Expression withSubExpressions(Expression[] subExpressions){
+        return subExpressions[0] == subExpression ? this : new NegatedExpression(subExpressions[0]);
     }
 
     /**
@@ -42,4 +59,25 @@ public class NegatedExpression extends Expression {
         return "(-(" + subExpression.toString() + "))";
     }
 
+    /**
+     * Compares this expression with another object.
+     * @param other The object to compare to.
+     * @return <code>true</code> if <code>other</code> is a NegatedExpression of an equal expression, <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object other){
+        return this == other || (other instanceof NegatedExpression && subExpression.equals(((NegatedExpression) other).subExpression));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode(){
+        int h = hash;
+        if(h == 0)
+            hash = h = ~subExpression.hashCode();
+        return h;
+    }
+
 }
@@ -7,14 +7,35 @@ import java.io.*;
  */
 public class NullOutputStream extends OutputStream {
 
+    /**
+     * The type of the writers returned by {@link #getWriter()}; it allows the library to recognize them and skip building the log messages at all.
+     */
+    private static final class NullWriter extends OutputStreamWriter{
+        private NullWriter(){
+            super(new NullOutputStream());
+        }
+    }
+
     @Override
     public void write(int b){}
 
+    @Override
+    public void write(byte[] b, int off, int len){}
+
     /**
      * Utility method to get an equivalent "null writer", i.e. a {@link Writer} that discards anything that gets written to it.
      * @return An {@link OutputStreamWriter} that discards anything that gets written to it.
      */
     public static OutputStreamWriter getWriter(){
-        return new OutputStreamWriter(new NullOutputStream());
+        return new NullWriter();
+    }
+
+    /**
+     * Checks whether writing to the specified {@link Writer} would have no effect.
+     * @param w The writer to check.
+     * @return <code>true</code> if <code>w</code> is <code>null</code> or it was returned by {@link #getWriter()}, <code>false</code> otherwise.
+     */
+    static boolean isNullWriter(Writer w){
+        return w == null || w instanceof NullWriter;
     }
-}
\ No newline at end of file
+}
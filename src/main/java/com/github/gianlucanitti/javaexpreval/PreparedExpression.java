@@ -0,0 +1,151 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * An {@link Expression} whose variables have been resolved to positions (slots) once, when it's prepared, like the parameters of a JDBC prepared statement.
+ * The values of the variables are passed as an array of doubles (or set one by one with {@link #setValue(int, double)}),
+ * so evaluating the expression many times with different values doesn't require to set the variables in a context nor to look them up by name.
+ * The result is not stored in the "ans" variable of the context.
+ * An object of this class is not thread-safe because of the values set with the setters; {@link #eval(double[])} can be called concurrently from many threads.
+ * Use {@link Expression#compile(ExpressionContext)} instead if the expression must be evaluated so many times that translating it to bytecode pays off.
+ */
+public final class PreparedExpression {
+
+    private final String[] variableNames;
+    private final Expression body;
+    private final ExpressionContext context;
+    private final double[] values;
+
+    /**
+     * Prepares an expression, binding the specified variables to slots in the given order.
+     * Variables that aren't in <code>variableNames</code> are read from the context at evaluation time.
+     * @param expr The expression to prepare; it's not modified.
+     * @param context The context used to resolve functions and the variables that aren't bound to slots.
+     * @param variableNames The names of the variables, in slot order.
+     */
+    public PreparedExpression(Expression expr, ExpressionContext context, String ... variableNames){
+        this.variableNames = variableNames.clone();
+        this.body = ArgumentExpression.bind(expr, this.variableNames);
+        this.context = context;
+        this.values = new double[variableNames.length];
+    }
+
+    /**
+     * Prepares an expression, binding all its variables to slots in order of first appearance (see {@link #getVariableNames()}).
+     * @param expr The expression to prepare; it's not modified.
+     * @param context The context used to resolve functions.
+     */
+    public PreparedExpression(Expression expr, ExpressionContext context){
+        this(expr, context, collectVariableNames(expr));
+    }
+
+    /**
+     * Prepares an expression to be evaluated in an empty context, binding all its variables to slots in order of first appearance.
+     * @param expr The expression to prepare; it's not modified.
+     */
+    public PreparedExpression(Expression expr){
+        this(expr, new ExpressionContext());
+    }
+
+    /**
+     * Returns the names of the variables which aren't bound to a value (see {@link Expression#bindVariables(String[], double[])}) in the specified expression.
+     * @param expr The expression to scan.
+     * @return The names of the variables, without duplicates, in order of first appearance (left to right).
+     */
+    private static String[] collectVariableNames(Expression expr){
+        LinkedHashSet<String> names = new LinkedHashSet<String>();
+        collectVariableNames(expr, names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static void collectVariableNames(Expression expr, LinkedHashSet<String> names){
+        if(expr instanceof VariableExpression){
+            if(((VariableExpression) expr).getBinding() == null)
+                names.add(((VariableExpression) expr).getName());
+        }else
+            for(Expression e: expr.getSubExpressions())
+                collectVariableNames(e, names);
+    }
+
+    /**
+     * @return A copy of the array of the names of the variables, indexed by slot.
+     */
+    public String[] getVariableNames(){
+        return variableNames.clone();
+    }
+
+    /**
+     * Returns the slot of the specified variable.
+     * @param varName The name of the variable.
+     * @return The slot the variable is bound to, or -1 if it's not bound to a slot.
+     */
+    public int getSlot(String varName){
+        for(int i = variableNames.length - 1; i >= 0; i--) //if a name is repeated, the last one wins
+            if(variableNames[i].equals(varName))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Sets the value of a variable, used by the following calls to {@link #eval()}.
+     * @param slot The slot of the variable, starting from 0.
+     * @param value The value of the variable.
+     * @throws IndexOutOfBoundsException if there's no variable in the specified slot.
+     */
+    public void setValue(int slot, double value){
+        values[slot] = value;
+    }
+
+    /**
+     * Sets the value of a variable, used by the following calls to {@link #eval()}.
+     * @param varName The name of the variable.
+     * @param value The value of the variable.
+     * @throws UndefinedException if the variable is not bound to a slot.
+     */
+    public void setValue(String varName, double value) throws UndefinedException{
+        int slot = getSlot(varName);
+        if(slot < 0)
+            throw new UndefinedException(varName);
+        values[slot] = value;
+    }
+
+    /**
+     * Sets all the values of the variables to 0.
+     */
+    public void clearValues(){
+        Arrays.fill(values, 0);
+    }
+
+    /**
+     * Evaluates this expression using the specified values for the variables.
+     * @param values The values of the variables, indexed as in {@link #getVariableNames()}.
+     * @return The computed value of the expression.
+     * @throws UndefinedException if the expression contains a symbol (function or variable not bound to a slot) not defined in the context.
+     * @throws IllegalArgumentException if <code>values</code> has a different length than the array returned by {@link #getVariableNames()}.
+     */
+    public double eval(double[] values) throws UndefinedException{
+        if(values.length != variableNames.length)
+            throw new IllegalArgumentException();
+        return body.eval(context, null, values);
+    }
+
+    /**
+     * Evaluates this expression using the values set with {@link #setValue(int, double)} and {@link #setValue(String, double)}.
+     * @return The computed value of the expression.
+     * @throws UndefinedException if the expression contains a symbol (function or variable not bound to a slot) not defined in the context.
+     */
+    public double eval() throws UndefinedException{
+        return body.eval(context, null, values);
+    }
+
+    /**
+     * @return The string representation of the prepared expression.
+     */
+    @Override
+    public String toString(){
+        return body.toString();
+    }
+
+}
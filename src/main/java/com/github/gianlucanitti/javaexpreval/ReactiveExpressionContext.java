@@ -0,0 +1,364 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link ExpressionContext} where variables can be defined by formulas, like the cells of a spreadsheet (see {@link #setFormula(String, Expression)}).
+ * The value of a formula is kept up to date when the variables and functions it reads (directly or through other formulas and user-defined functions) change:
+ * the context keeps the graph of the dependencies between the formulas and the symbols they read, so that a change only marks as dirty the formulas
+ * that depend on the changed symbol, and only those are evaluated again; the cost of a change is proportional to the number of affected formulas,
+ * not to the number of formulas defined.
+ * <p>
+ * In lazy mode (the default), a dirty formula is evaluated when its variable is read (see {@link #getVariable(String)}), so the values that are never read
+ * are not computed at all. In eager mode, the affected formulas are evaluated as soon as a symbol changes; the ones that can't be evaluated
+ * (for example because they read a variable which is not defined) stay dirty, and the error is thrown when they are read.
+ * The values in {@link #getVariables()} are the ones computed by the last evaluation of each formula; call {@link #refresh()} first to bring them up to date.
+ * <p>
+ * Formulas are evaluated without logging and without storing the result in the <code>ans</code> variable.
+ * Like {@link ExpressionContext}, this class is not thread-safe.
+ */
+public class ReactiveExpressionContext extends ExpressionContext {
+
+    /**
+     * The definition of a variable by a formula.
+     */
+    private static final class Formula{
+        private final Expression expr;
+        private Set<String> reads;
+        private boolean dirty = true;
+        private boolean evaluating;
+
+        Formula(Expression expr){
+            this.expr = expr;
+        }
+    }
+
+    private final boolean eager;
+    private final HashMap<String, Formula> formulas = new HashMap<String, Formula>();
+    private final HashMap<String, Set<String>> dependents = new HashMap<String, Set<String>>(); //the names of the formulas that read each symbol
+    private long evaluations;
+
+    /**
+     * Initializes an empty context, where the formulas are evaluated lazily.
+     */
+    public ReactiveExpressionContext(){
+        this(false);
+    }
+
+    /**
+     * Initializes an empty context.
+     * @param eager Whether the formulas affected by a change must be evaluated immediately, or when their variables are read.
+     */
+    public ReactiveExpressionContext(boolean eager){
+        this.eager = eager;
+    }
+
+    /**
+     * @return Whether the formulas affected by a change are evaluated immediately.
+     */
+    public boolean isEager(){
+        return eager;
+    }
+
+    /**
+     * @return The number of evaluations of formulas done so far by this context.
+     */
+    long getEvaluationCount(){
+        return evaluations;
+    }
+
+    /**
+     * Defines the specified variable by a formula: its value will be the value of the expression, updated every time one of the symbols the expression reads changes.
+     * If the variable is already defined by a value or another formula, the definition is replaced.
+     * The formula is evaluated when the variable is read or, in eager mode, immediately (if it can't be evaluated yet, the error is thrown when it's read).
+     * @param varName The name of the variable.
+     * @param expr The formula; it must not be modified while it's used by this context.
+     * @throws CyclicDependencyException if the formula reads <code>varName</code>, directly or through other formulas.
+     * @throws InvalidSymbolNameException if <code>varName</code> isn't a valid symbol name.
+     * @throws ReadonlyException if the variable can't be set because it was previously defined as read-only.
+     */
+    public void setFormula(String varName, Expression expr) throws CyclicDependencyException, InvalidSymbolNameException, ReadonlyException{
+        VariableExpression.assertValidSymbolName(varName);
+        VariableValue current = getVariables().get(varName);
+        if(current != null && current.isReadOnly())
+            throw new ReadonlyException(varName);
+        Formula f = new Formula(expr);
+        f.reads = getReads(expr, new SymbolDependencies(this));
+        if(dependsOn(f.reads, varName))
+            throw new CyclicDependencyException(varName);
+        removeFormula(varName);
+        formulas.put(varName, f);
+        link(varName, f);
+        LinkedHashSet<String> dirty = new LinkedHashSet<String>();
+        markDirty(varName, dirty);
+        dirty.add(varName);
+        if(eager)
+            evaluate(dirty);
+    }
+
+    /**
+     * Returns the formula that defines the specified variable.
+     * @param varName The name of the variable.
+     * @return The formula, or <code>null</code> if the variable is not defined by a formula.
+     */
+    public Expression getFormula(String varName){
+        Formula f = formulas.get(varName);
+        return f == null ? null : f.expr;
+    }
+
+    /**
+     * Evaluates all the dirty formulas, so that the values returned by {@link #getVariables()} are up to date.
+     * All the formulas are evaluated even if one of them fails, and the first error is then thrown.
+     * @throws UndefinedException if a formula can't be evaluated because it reads a symbol that isn't defined or it depends on itself.
+     */
+    public void refresh() throws UndefinedException{
+        UndefinedException error = evaluate(new ArrayList<String>(formulas.keySet()));
+        if(error != null)
+            throw error;
+    }
+
+    /**
+     * Returns the value of the specified variable; if it's defined by a dirty formula, the formula is evaluated first.
+     * @param varName The name of the variable.
+     * @return The value of the specified variable, if defined in this context.
+     * @throws UndefinedException if the specified variable is not defined in this context, or it's defined by a formula which can't be evaluated
+     * because it reads a symbol that isn't defined or it depends on itself ({@link CyclicDependencyException}).
+     */
+    @Override
+    public double getVariable(String varName) throws UndefinedException{
+        Formula f = formulas.get(varName);
+        if(f != null && f.dirty)
+            evaluate(varName, f);
+        return super.getVariable(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * If the variable was defined by a formula, the formula is removed; the formulas that read the variable are updated.
+     */
+    @Override
+    public void setVariable(String varName, boolean readOnly, double value) throws InvalidSymbolNameException, ReadonlyException{
+        super.setVariable(varName, readOnly, value);
+        removeFormula(varName);
+        changed(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The formulas defining the variables are removed; the formulas that read any of the variables are updated, and each of them is evaluated once in eager mode.
+     */
+    @Override
+    public void setVariables(Map<String, Double> values, boolean readOnly) throws InvalidSymbolNameException, ReadonlyException{
+        super.setVariables(values, readOnly);
+        LinkedHashSet<String> dirty = new LinkedHashSet<String>();
+        for(String varName: values.keySet()){
+            removeFormula(varName);
+            markDirty(varName, dirty);
+        }
+        if(eager)
+            evaluate(dirty);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The formulas that read the "ans" variable are updated.
+     */
+    @Override
+    void storeResult(double value) throws ReadonlyException{
+        super.storeResult(value);
+        removeFormula("ans");
+        changed("ans");
+    }
+
+    /**
+     * {@inheritDoc}
+     * If the variable was defined by a formula, the formula is removed; the formulas that read the variable are updated.
+     */
+    @Override
+    public void delVariable(String varName) throws ReadonlyException{
+        super.delVariable(varName);
+        removeFormula(varName);
+        changed(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The formulas that call the function, directly or through other functions, are updated.
+     */
+    @Override
+    public void setFunction(Function f) throws ReadonlyException{
+        super.setFunction(f);
+        functionChanged(SymbolDependencies.functionKey(f.getName(), f.getArgCount()));
+    }
+
+    /**
+     * {@inheritDoc}
+     * The formulas that call the function, directly or through other functions, are updated.
+     */
+    @Override
+    public void delFunction(String name, int argCount) throws ReadonlyException{
+        super.delFunction(name, argCount);
+        functionChanged(SymbolDependencies.functionKey(name, argCount));
+    }
+
+    /**
+     * {@inheritDoc}
+     * All the formulas are removed too, since they define non-readonly variables.
+     */
+    @Override
+    public void clear(){
+        super.clear();
+        formulas.clear();
+        dependents.clear();
+    }
+
+    private static Set<String> getReads(Expression expr, SymbolDependencies dependencies){
+        HashSet<String> reads = new HashSet<String>();
+        dependencies.addReads(expr, reads);
+        return reads;
+    }
+
+    /**
+     * Tells if a formula reading the specified symbols would read the specified variable, directly or through the formulas already defined.
+     */
+    private boolean dependsOn(Set<String> reads, String varName){
+        ArrayList<String> pending = new ArrayList<String>(reads);
+        HashSet<String> visited = new HashSet<String>(reads);
+        while(!pending.isEmpty()){
+            String symbol = pending.remove(pending.size() - 1);
+            if(symbol.equals(varName))
+                return true;
+            Formula f = formulas.get(symbol);
+            if(f != null)
+                for(String s: f.reads)
+                    if(visited.add(s))
+                        pending.add(s);
+        }
+        return false;
+    }
+
+    private void link(String varName, Formula f){
+        for(String symbol: f.reads){
+            Set<String> readers = dependents.get(symbol);
+            if(readers == null)
+                dependents.put(symbol, readers = new HashSet<String>());
+            readers.add(varName);
+        }
+    }
+
+    private void unlink(String varName, Formula f){
+        for(String symbol: f.reads){
+            Set<String> readers = dependents.get(symbol);
+            readers.remove(varName);
+            if(readers.isEmpty())
+                dependents.remove(symbol);
+        }
+    }
+
+    private void removeFormula(String varName){
+        Formula f = formulas.remove(varName);
+        if(f != null)
+            unlink(varName, f);
+    }
+
+    /**
+     * Marks as dirty the formulas that depend on the specified symbol and, in eager mode, evaluates them.
+     */
+    private void changed(String symbol){
+        LinkedHashSet<String> dirty = new LinkedHashSet<String>();
+        markDirty(symbol, dirty);
+        if(eager)
+            evaluate(dirty);
+    }
+
+    /**
+     * Updates the symbols read by the formulas that call the specified function, since the function's body may read other ones now, and marks them as dirty.
+     * A formula may become cyclic this way: the cycle is detected when it's evaluated.
+     */
+    private void functionChanged(String key){
+        Set<String> readers = dependents.get(key);
+        if(readers != null){
+            SymbolDependencies dependencies = new SymbolDependencies(this);
+            for(String varName: new ArrayList<String>(readers)){
+                Formula f = formulas.get(varName);
+                unlink(varName, f);
+                f.reads = getReads(f.expr, dependencies);
+                link(varName, f);
+            }
+        }
+        changed(key);
+    }
+
+    /**
+     * Marks as dirty the formulas that depend, directly or transitively, on the specified symbol, and the ones that may read any symbol
+     * (see {@link SymbolDependencies#ALL}). The dependents of a dirty formula are always dirty, so in lazy mode the walk stops at the formulas that were already dirty;
+     * in eager mode, those are the ones that couldn't be evaluated, and they are walked too, since they may be evaluated now with their dependents.
+     * @param symbol The symbol that changed.
+     * @param dirty The names of the formulas to evaluate in eager mode, which this method adds to; the formulas already in it are not walked again.
+     */
+    private void markDirty(String symbol, LinkedHashSet<String> dirty){
+        ArrayList<String> pending = new ArrayList<String>();
+        pending.add(SymbolDependencies.ALL);
+        pending.add(symbol);
+        while(!pending.isEmpty()){
+            Set<String> readers = dependents.get(pending.remove(pending.size() - 1));
+            if(readers != null)
+                for(String varName: readers){
+                    Formula f = formulas.get(varName);
+                    if(!f.dirty || (eager && !dirty.contains(varName))){
+                        f.dirty = true;
+                        dirty.add(varName);
+                        pending.add(varName);
+                    }
+                }
+        }
+    }
+
+    /**
+     * Evaluates the specified formulas, if they are still dirty.
+     * @param varNames The names of the variables defined by the formulas.
+     * @return The first error thrown by a formula, or <code>null</code> if all of them were evaluated.
+     */
+    private UndefinedException evaluate(Collection<String> varNames){
+        UndefinedException error = null;
+        for(String varName: varNames){
+            Formula f = formulas.get(varName);
+            if(f != null && f.dirty)
+                try{
+                    evaluate(varName, f);
+                }catch(UndefinedException ex){
+                    if(error == null)
+                        error = ex;
+                }
+        }
+        return error;
+    }
+
+    /**
+     * Evaluates a formula; the dirty formulas it reads are evaluated first, when the expression reads their variables.
+     */
+    private void evaluate(String varName, Formula f) throws UndefinedException{
+        if(f.evaluating)
+            throw new CyclicDependencyException(varName);
+        f.evaluating = true;
+        try{
+            double value = f.expr.eval(this, null, false);
+            super.setVariable(varName, false, value); //the dependents of a dirty formula are already dirty
+            evaluations++;
+            f.dirty = false;
+        }catch(InvalidSymbolNameException ex){
+            throw new IllegalStateException(ex); //can't happen, the name was checked by setFormula
+        }catch(ReadonlyException ex){
+            throw new IllegalStateException(ex); //can't happen, a read-only value replaces the formula
+        }finally{
+            f.evaluating = false;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * An expression that can't be rewritten by {@link ArgumentExpression#bind(Expression, String[])} (like the subclasses of {@link Expression}
+ * defined outside of this library), evaluated as part of a tree whose variables are bound to the positions of a frame.
+ * The variables under such an expression can't be replaced by {@link ArgumentExpression}s, so while it's evaluated the frame is stored
+ * in a thread-local scope, and the variables with the names of the arguments read their values from it instead of from the context.
+ */
+final class ScopedExpression extends Expression{
+
+    /**
+     * The frame of the innermost ScopedExpression being evaluated by a thread.
+     */
+    private static final class Scope{
+        private final ScopedExpression expr;
+        private final double[] frame;
+
+        private Scope(ScopedExpression expr, double[] frame){
+            this.expr = expr;
+            this.frame = frame;
+        }
+    }
+
+    private static final ThreadLocal<Scope> scope = new ThreadLocal<Scope>();
+
+    private final Expression expr;
+    private final String[] names;
+    private final IdentityHashMap<VariableExpression, Integer> arguments = new IdentityHashMap<VariableExpression, Integer>(); //the position in the frame of each variable that reads an argument
+
+    /**
+     * Initializes a new ScopedExpression.
+     * @param expr The expression that can't be rewritten.
+     * @param names The names of the arguments, in frame order.
+     */
+    ScopedExpression(Expression expr, String[] names){
+        this.expr = expr;
+        this.names = names;
+        addArguments(expr);
+    }
+
+    private void addArguments(Expression e){
+        if(e instanceof VariableExpression){
+            VariableExpression var = (VariableExpression) e;
+            if(var.getBinding() == null)
+                for(int i = names.length - 1; i >= 0; i--) //if a name is repeated, the last one wins (like in ArgumentExpression.bind)
+                    if(names[i].equals(var.getName())){
+                        arguments.put(var, i);
+                        var.setScoped();
+                        break;
+                    }
+            return;
+        }
+        for(Expression sub: e.getSubExpressions())
+            addArguments(sub);
+    }
+
+    /**
+     * Reads the value of a variable from the frame of the innermost ScopedExpression being evaluated by the current thread.
+     * @param var The variable.
+     * @return The value of the argument read by <code>var</code>, or <code>null</code> if it doesn't read an argument of the current scope.
+     */
+    static Double getArgument(VariableExpression var){
+        Scope s = scope.get();
+        if(s == null)
+            return null;
+        Integer index = s.expr.arguments.get(var);
+        return index == null ? null : s.frame[index];
+    }
+
+    /**
+     * @return An array containing the wrapped expression, so that tree walks see through this node.
+     */
+    @Override
+    public Expression[] getSubExpressions(){
+        return new Expression[]{expr};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
+        return expr.eval(context, logWriter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    double evalExpr(ExpressionContext context, PrintWriter logWriter, double[] frame) throws UndefinedException{
+        if(frame == null)
+            return expr.eval(context, logWriter);
+        Scope outer = scope.get();
+        scope.set(new Scope(this, frame));
+        try{
+            return expr.eval(context, logWriter);
+        }finally{
+            scope.set(outer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Expression withSubExpressions(Expression[] subExpressions){
+        return subExpressions[0] == expr ? this : new ScopedExpression(subExpressions[0], names);
+    }
+
+    /**
+     * Returns the message to log when this expression is evaluated, which is empty because the wrapped expression already logged its value.
+     * @return an empty string.
+     */
+    @Override
+    public String getEvalMsg(double val){
+        return "";
+    }
+
+    /**
+     * @return The string representation of the wrapped expression.
+     */
+    @Override
+    public String toString(){
+        return expr.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object other){
+        return other instanceof ScopedExpression && expr.equals(((ScopedExpression) other).expr) && Arrays.equals(names, ((ScopedExpression) other).names);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode(){
+        return expr.hashCode();
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the symbols of a context that are read by the evaluation of an expression, used by {@link InteractiveExpressionContext#update(java.util.concurrent.ExecutorService)}
+ * to tell which statements are independent, and by {@link ReactiveExpressionContext} to tell which formulas are affected by a change. The symbols are the names of the variables and the keys returned by {@link #functionKey(String, int)} for the functions.
+ * A call to a user-defined function reads the function itself and, transitively, the symbols read by its body; since a function can be redefined,
+ * the bodies of all the definitions added so far are taken into account.
+ */
+final class SymbolDependencies {
+
+    /**
+     * The symbol read (or written) by an operation which can access any symbol, like a call to a function implemented in Java whose body is unknown.
+     */
+    static final String ALL = "*";
+
+    /**
+     * A definition of a function: its body, with the names of the arguments (which are not read from the context), or <code>null</code> if the body is unknown.
+     */
+    private static final class Definition{
+        private final Expression body;
+        private final Set<String> argNames;
+
+        Definition(Expression body, Set<String> argNames){
+            this.body = body;
+            this.argNames = argNames;
+        }
+    }
+
+    private final HashMap<String, ArrayList<Definition>> functions = new HashMap<String, ArrayList<Definition>>();
+
+    /**
+     * Initializes the dependencies with the functions already defined in the specified context.
+     * @param context The context.
+     */
+    SymbolDependencies(ExpressionContext context){
+        for(Function f: context.getFunctions()){
+            if(f instanceof BuiltInFunctions.BuiltInFunction)
+                continue; //they don't read the context
+            Expression body = f.getClass() == CustomFunction.class ? ((CustomFunction) f).getBody() : null; //in the body, the arguments are ArgumentExpressions
+            addDefinition(functionKey(f.getName(), f.getArgCount()), new Definition(body, Collections.<String>emptySet()));
+        }
+    }
+
+    /**
+     * @param name The name of a function.
+     * @param argCount The number of arguments of the function.
+     * @return The symbol that represents the function, which can't be the name of a variable.
+     */
+    static String functionKey(String name, int argCount){
+        return name + "(" + argCount + ")";
+    }
+
+    private void addDefinition(String key, Definition definition){
+        ArrayList<Definition> definitions = functions.get(key);
+        if(definitions == null)
+            functions.put(key, definitions = new ArrayList<Definition>());
+        definitions.add(definition);
+    }
+
+    /**
+     * Adds a definition of a user-defined function, that can be called by the expressions analyzed later.
+     * @param name The name of the function.
+     * @param argNames The names of the arguments.
+     * @param body The expression that defines the function.
+     */
+    void addFunction(String name, String[] argNames, Expression body){
+        HashSet<String> args = new HashSet<String>();
+        Collections.addAll(args, argNames);
+        addDefinition(functionKey(name, getArgCount(argNames)), new Definition(body, args));
+    }
+
+    /**
+     * @param argNames The names of the arguments of a function definition, as written in a statement.
+     * @return The number of arguments of the defined function: like {@link CustomFunction}, it ignores the empty names.
+     */
+    static int getArgCount(String[] argNames){
+        int count = 0;
+        for(String s: argNames)
+            if(s != null && s.length() > 0)
+                count++;
+        return count;
+    }
+
+    /**
+     * Adds the symbols read by the evaluation of an expression to a set.
+     * @param expr The expression.
+     * @param reads The set of symbols; {@link #ALL} is added if the expression can read any symbol.
+     */
+    void addReads(Expression expr, Set<String> reads){
+        addReads(expr, Collections.<String>emptySet(), reads, new HashSet<String>());
+    }
+
+    private void addReads(Expression expr, Set<String> argNames, Set<String> reads, Set<String> visited){
+        if(expr instanceof VariableExpression){
+            VariableExpression var = (VariableExpression) expr;
+            if(var.getBinding() == null && !argNames.contains(var.getName()))
+                reads.add(var.getName());
+            return;
+        }
+        if(expr instanceof FunctionExpression){
+            String key = functionKey(((FunctionExpression) expr).getName(), expr.getSubExpressions().length);
+            reads.add(key);
+            ArrayList<Definition> definitions = functions.get(key);
+            if(definitions != null && visited.add(key)) //each function is visited once, so recursion terminates
+                for(Definition d: definitions){
+                    if(d.body == null)
+                        reads.add(ALL);
+                    else
+                        addReads(d.body, d.argNames, reads, visited);
+                }
+        }
+        for(Expression e: expr.getSubExpressions())
+            addReads(e, argNames, reads, visited);
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import java.util.Arrays;
+
+/**
+ * Interns symbol names, assigning to each distinct name a small integer id (0 for the first interned name, then 1, and so on), so that the values
+ * of the symbols can be kept in arrays indexed by id. Names are looked up in an open-addressing hash table with linear probing,
+ * which only stores two arrays instead of an entry object per name. Ids are never reused, since names are never removed.
+ * It's not thread-safe.
+ */
+final class SymbolTable {
+
+    /**
+     * The id of a symbol in a table, cached by the expressions that read the symbol (see {@link VariableExpression#getSymbolId(SymbolTable)}).
+     * It's immutable, so it can be safely shared between threads.
+     */
+    static final class Ref{
+        private final SymbolTable table;
+        private final int id;
+
+        Ref(SymbolTable table, int id){
+            this.table = table;
+            this.id = id;
+        }
+
+        /**
+         * @param table A symbol table.
+         * @return Whether this is the id of the symbol in <code>table</code>.
+         */
+        boolean isIn(SymbolTable table){
+            return this.table == table;
+        }
+
+        /**
+         * @return The id of the symbol.
+         */
+        int getId(){
+            return id;
+        }
+    }
+
+    private String[] slots = new String[16]; //the names, at the position given by their hash; the length is a power of 2
+    private int[] slotIds = new int[16];
+    private String[] names = new String[8]; //the names by id
+    private int size;
+
+    private static int hash(String name){
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param name A symbol name.
+     * @return The id of the name, or -1 if it hasn't been interned.
+     */
+    int indexOf(String name){
+        int mask = slots.length - 1;
+        for(int i = hash(name) & mask; slots[i] != null; i = (i + 1) & mask)
+            if(slots[i].equals(name))
+                return slotIds[i];
+        return -1;
+    }
+
+    /**
+     * @param name A symbol name.
+     * @return The id of the name, which is assigned now if it hasn't been interned yet.
+     */
+    int intern(String name){
+        int mask = slots.length - 1;
+        int i = hash(name) & mask;
+        for(; slots[i] != null; i = (i + 1) & mask)
+            if(slots[i].equals(name))
+                return slotIds[i];
+        if(size == names.length)
+            names = Arrays.copyOf(names, size * 2);
+        names[size] = name;
+        slots[i] = name;
+        slotIds[i] = size;
+        if(++size * 2 > slots.length) //keeps the table at most half full, so probe sequences are short
+            rehash(slots.length * 2);
+        return size - 1;
+    }
+
+    private void rehash(int capacity){
+        String[] oldSlots = slots;
+        int[] oldIds = slotIds;
+        slots = new String[capacity];
+        slotIds = new int[capacity];
+        int mask = capacity - 1;
+        for(int j = 0; j < oldSlots.length; j++)
+            if(oldSlots[j] != null){
+                int i = hash(oldSlots[j]) & mask;
+                while(slots[i] != null)
+                    i = (i + 1) & mask;
+                slots[i] = oldSlots[j];
+                slotIds[i] = oldIds[j];
+            }
+    }
+
+    /**
+     * @param id The id of an interned name.
+     * @return The name.
+     */
+    String getName(int id){
+        return names[id];
+    }
+
+    /**
+     * @return The number of interned names, which is also the smallest id not assigned yet.
+     */
+    int size(){
+        return size;
+    }
+
+}
@@ -22,4 +22,13 @@ public class UndefinedException extends ExpressionException{
         super(LocalizationHelper.getMessage(LocalizationHelper.Message.UNDEFINED_FUNC, funcName, Integer.toString(argCount)));
     }
 
+    /**
+     * Initializes a new UndefinedException with the specified message, for the subclasses that tell why a symbol can't be evaluated.
+     * @param message The message.
+     * @param args Arguments to fill the format specifiers in the message.
+     */
+    protected UndefinedException(LocalizationHelper.Message message, String ... args){
+        super(LocalizationHelper.getMessage(message, args));
+    }
+
 }
@@ -9,6 +9,8 @@ import java.io.PrintWriter;
 public class VariableExpression extends NamedSymbolExpression{
 
     private ConstExpression binding;
+    private boolean scoped; //whether this is under a ScopedExpression, so it may read an argument of a function instead of the context
+    private volatile SymbolTable.Ref symbol; //the id of this variable in the symbol table of the last context it was read from, if the context has one
 
     /**
      * Initializes a new VariableExpression with the specified variable name.
@@ -27,6 +29,37 @@ public class VariableExpression extends NamedSymbolExpression{
         binding = value;
     }
 
+    /**
+     * @return The {@link ConstExpression} this variable is bound to, or <code>null</code> if it's not bound (see {@link #bind(ConstExpression)}).
+     */
+    ConstExpression getBinding(){
+        return binding;
+    }
+
+    /**
+     * Marks this variable as part of a {@link ScopedExpression}, so that it reads the argument with its name from the scope when it's evaluated inside it.
+     */
+    void setScoped(){
+        scoped = true;
+    }
+
+    /**
+     * Returns the id of this variable in the specified symbol table; the id is cached, so the name is looked up only the first time
+     * this variable is read from a context with that table. The name is not interned, so reading undefined variables doesn't grow the table;
+     * a name which isn't in the table is looked up again the next time, since it may have been interned in the meantime.
+     * @param table The symbol table.
+     * @return The id of the name of this variable in <code>table</code>, or -1 if it's not in the table.
+     */
+    int getSymbolId(SymbolTable table){
+        SymbolTable.Ref s = symbol;
+        if(s != null && s.isIn(table))
+            return s.getId();
+        int id = table.indexOf(getName());
+        if(id >= 0) //ids are never reused, so a found id stays valid
+            symbol = new SymbolTable.Ref(table, id);
+        return id;
+    }
+
     /**
      * @return An empty array of {@link Expression}s.
      */
@@ -40,7 +73,14 @@ public class VariableExpression extends NamedSymbolExpression{
      */
     @Override
     protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
-        return binding == null ? context.getVariable(getName()) : binding.eval();
+        if(binding != null)
+            return binding.eval();
+        if(scoped){
+            Double argument = ScopedExpression.getArgument(this);
+            if(argument != null)
+                return argument;
+        }
+        return context.getVariable(this);
     }
 
     /**
@@ -52,4 +92,28 @@ public class VariableExpression extends NamedSymbolExpression{
         return binding == null ? getName() : binding.toString();
     }
 
+    /**
+     * Compares this expression with another object.
+     * @param other The object to compare to.
+     * @return <code>true</code> if <code>other</code> is a VariableExpression with the same name, bound to the same value or not bound, <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object other){
+        if(this == other)
+            return true;
+        if(!(other instanceof VariableExpression))
+            return false;
+        VariableExpression otherVar = (VariableExpression) other;
+        return getName().equals(otherVar.getName()) && (binding == null ? otherVar.binding == null : binding.equals(otherVar.binding));
+    }
+
+    /**
+     * Returns a hash code for this variable, which depends only on the name (so it doesn't change when the variable is bound).
+     * @return The hash code of the name of the variable.
+     */
+    @Override
+    public int hashCode(){
+        return getName().hashCode();
+    }
+
 }
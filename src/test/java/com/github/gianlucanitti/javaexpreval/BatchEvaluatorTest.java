@@ -0,0 +1,100 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class BatchEvaluatorTest extends TestCase{
+
+    private static final int ROWS = 2 * BatchEvaluator.CHUNK_SIZE + 17;
+
+    public void testEvalBatch() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("k", 3);
+        c.setFunction("f", Expression.parse("x*k+y"), "x", "y");
+        Random random = new Random(42);
+        double[] a = new double[ROWS];
+        double[] b = new double[ROWS];
+        for(int i = 0; i < ROWS; i++){
+            a[i] = random.nextDouble() * 10 - 5;
+            b[i] = random.nextDouble() * 10;
+        }
+        HashMap<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("a", a);
+        columns.put("b", b);
+        String[] exprs = new String[]{"a", "2.5", "-a+b*k", "(a-b)/(a+b)^2", "sqrt(b)+abs(a)-log(b)*sin(a)/cos(b)+tan(k)", "f(a,b)-f(b,2*a)", "-(a*(b-(a*(b-a))))"};
+        double[] out = new double[ROWS];
+        for(String s: exprs){
+            Expression expr = Expression.parse(s);
+            expr.evalBatch(c, columns, out);
+            for(int i = 0; i < ROWS; i++){
+                c.setVariable("a", a[i]);
+                c.setVariable("b", b[i]);
+                assertEquals(s, expr.eval(c), out[i]);
+            }
+            c.delVariable("a");
+            c.delVariable("b");
+        }
+    }
+
+    public void testInterpretedFallback() throws ExpressionException{
+        HashMap<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("x", new double[]{1, 2, 3});
+        double[] out = new double[3];
+        new ArgumentExpression("x", 0).evalBatch(columns, out); //a node type that has no batch implementation
+        assertEquals(2.0, out[1]);
+    }
+
+    public void testParallel() throws ExpressionException{
+        int rows = 5 * BatchEvaluator.PARALLEL_RANGE_SIZE + 17;
+        ExpressionContext c = new ExpressionContext();
+        c.setFunction("f", Expression.parse("x*2+y"), "x", "y");
+        double[] x = new double[rows];
+        for(int i = 0; i < rows; i++)
+            x[i] = i * 0.25 - 1000;
+        HashMap<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("x", x);
+        Expression expr = Expression.parse("f(x,3)/(x^2+1)-sqrt(abs(x))");
+        double[] expected = new double[rows];
+        double[] out = new double[rows];
+        expr.evalBatch(c, columns, expected);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try{
+            expr.evalBatchParallel(c, columns, out, pool);
+            for(int i = 0; i < rows; i++)
+                assertEquals(expected[i], out[i]);
+            c.setFunction("f", Expression.parse("x*z"), "x", "y");
+            try{
+                expr.evalBatchParallel(c, columns, out, pool);
+                fail("A function reading an undefined variable was evaluated without throwing exception.");
+            }catch(UndefinedException ex){
+                assertEquals(new UndefinedException("z").getMessage(), ex.getMessage());
+            }
+        }finally{
+            pool.shutdown();
+        }
+        double[] small = new double[10];
+        Expression.parse("x+1").evalBatchParallel(c, columns, small); //evaluated by the calling thread
+        assertEquals(-999.0, small[0]);
+    }
+
+    public void testErrors() throws ExpressionException{
+        HashMap<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("x", new double[2]);
+        try{
+            Expression.parse("x+y").evalBatch(columns, new double[2]);
+            fail("An undefined variable was evaluated without throwing exception.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        try{
+            Expression.parse("x").evalBatch(columns, new double[3]);
+            fail("A column shorter than the output was accepted.");
+        }catch(IllegalArgumentException ex){
+            //ok
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+public class ColumnFileTest extends TestCase{
+
+    private static final int ROWS = 3 * BatchEvaluator.CHUNK_SIZE + 5;
+
+    public void testCreateAndOpen() throws IOException{
+        File file = File.createTempFile("columns", ".bin");
+        try{
+            ColumnFile created = ColumnFile.create(file, ROWS, "x", "èy"); //the names are encoded in UTF-8
+            DoubleBuffer x = created.getColumn("x");
+            for(int i = 0; i < ROWS; i++)
+                x.put(i, i * 0.5);
+            created.getColumn("èy").put(ROWS - 1, -1);
+            created.force();
+            assertTrue(ColumnFile.isColumnFile(file));
+            ColumnFile opened = ColumnFile.open(file);
+            assertEquals(ROWS, opened.getRowCount());
+            assertTrue(Arrays.equals(new String[]{"x", "èy"}, opened.getColumnNames()));
+            assertEquals(ROWS / 2.0 - 0.5, opened.getColumn("x").get(ROWS - 1));
+            assertEquals(-1.0, opened.getColumn("èy").get(ROWS - 1));
+            assertEquals(0.0, opened.getColumn("èy").get(0));
+            assertNull(opened.getColumn("z"));
+        }finally{
+            file.delete();
+        }
+    }
+
+    public void testInvalidFile() throws IOException{
+        File file = File.createTempFile("columns", ".csv");
+        try{
+            FileWriter w = new FileWriter(file);
+            w.write("x,y\n1,2\n");
+            w.close();
+            assertFalse(ColumnFile.isColumnFile(file));
+            try{
+                ColumnFile.open(file);
+                fail("A text file was opened as a column file.");
+            }catch(IOException ex){
+                //ok
+            }
+        }finally{
+            file.delete();
+        }
+    }
+
+    public void testDuplicateNames() throws IOException{
+        File file = File.createTempFile("columns", ".bin");
+        try{
+            try{
+                ColumnFile.create(file, ROWS, "x", "y", "x");
+                fail("A column file with two columns with the same name was created.");
+            }catch(IllegalArgumentException ex){
+                //ok
+            }
+            ColumnFile.create(file, ROWS, "ab", "cd");
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            f.seek(26); //the second name, after the 20 bytes of the header and the first name with its length
+            f.write("ab".getBytes("UTF-8"));
+            f.close();
+            try{
+                ColumnFile.open(file);
+                fail("A column file with two columns with the same name was opened.");
+            }catch(IOException ex){
+                assertTrue(ex.getMessage(), ex.getMessage().startsWith("Duplicate"));
+            }
+        }finally{
+            file.delete();
+        }
+    }
+
+    public void testEvalBatch() throws Exception{
+        File in = File.createTempFile("columns", ".bin");
+        File out = File.createTempFile("result", ".bin");
+        try{
+            ColumnFile input = ColumnFile.create(in, ROWS, "a", "b");
+            double[] a = new double[ROWS];
+            double[] b = new double[ROWS];
+            for(int i = 0; i < ROWS; i++){
+                a[i] = i - 100;
+                b[i] = i % 7;
+            }
+            input.getColumn("a").put(a);
+            input.getColumn("b").put(b);
+            ExpressionContext c = new ExpressionContext();
+            c.setFunction("f", Expression.parse("x^2"), "x");
+            Expression expr = Expression.parse("f(a)/(b+1)-sqrt(abs(a))");
+            ColumnFile output = ColumnFile.create(out, ROWS, "ans");
+            expr.evalBatch(c, ColumnFile.open(in).getColumns(), output.getColumn("ans"));
+            double[] expected = new double[ROWS];
+            HashMap<String, double[]> columns = new HashMap<String, double[]>();
+            columns.put("a", a);
+            columns.put("b", b);
+            expr.evalBatch(c, columns, expected);
+            double[] actual = new double[ROWS];
+            ColumnFile.open(out).getColumn("ans").get(actual);
+            assertTrue(Arrays.equals(expected, actual));
+            DoubleBuffer partial = DoubleBuffer.allocate(10);
+            DoubleBuffer column = ColumnFile.open(in).getColumn("a");
+            column.position(ROWS - 10); //the rows start at the position of the buffer
+            Expression.parse("a*2").evalBatch(c, Collections.singletonMap("a", column), partial);
+            assertEquals(ROWS - 10, column.position());
+            assertEquals(2.0 * a[ROWS - 1], partial.get(9));
+        }finally{
+            in.delete();
+            out.delete();
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ColumnKernelsTest extends TestCase{
+
+    public void testSameResultsAsScalar(){
+        ColumnKernels kernels = ColumnKernels.getInstance(); //VectorKernels when the tests run with the incubator module
+        ColumnKernels scalar = new ColumnKernels.Scalar();
+        Random random = new Random(7);
+        double[] special = new double[]{0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -1, 1e308};
+        double[] a = new double[100];
+        double[] b = new double[100];
+        for(int i = 0; i < a.length; i++){
+            a[i] = i < special.length ? special[i] : random.nextGaussian() * 100;
+            b[i] = i < special.length ? special[special.length - 1 - i] : random.nextGaussian();
+        }
+        for(int length = 0; length <= 37; length += 1){
+            int ao = length % 5;
+            int bo = length % 3;
+            double[] expected = new double[length];
+            double[] actual = new double[length];
+            scalar.add(a, ao, b, bo, expected, length);
+            kernels.add(a, ao, b, bo, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.sub(a, ao, b, bo, expected, length);
+            kernels.sub(a, ao, b, bo, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.mul(a, ao, b, bo, expected, length);
+            kernels.mul(a, ao, b, bo, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.div(a, ao, b, bo, expected, length);
+            kernels.div(a, ao, b, bo, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.neg(a, ao, expected, length);
+            kernels.neg(a, ao, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.abs(a, ao, expected, length);
+            kernels.abs(a, ao, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+            scalar.sqrt(a, ao, expected, length);
+            kernels.sqrt(a, ao, actual, length);
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompactExpressionContextTest extends TestCase{
+
+    public void testVariables() throws ExpressionException{
+        CompactExpressionContext c = new CompactExpressionContext();
+        c.setVariable("a", 1);
+        c.setVariable("b", true, 2);
+        assertEquals(1.0, c.getVariable("a"));
+        assertEquals(2, c.getVariables().size());
+        assertTrue(c.getVariables().get("b").isReadOnly());
+        try{
+            c.setVariable("b", 3);
+            fail("A read-only variable was redefined.");
+        }catch(ReadonlyException ex){
+            assertEquals(2.0, c.getVariable("b"));
+        }
+        try{
+            c.delVariable("b");
+            fail("A read-only variable was deleted.");
+        }catch(ReadonlyException ex){
+            //ok
+        }
+        c.delVariable("a");
+        try{
+            c.getVariable("a");
+            fail("A deleted variable was read.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        c.setVariable("a", 4);
+        c.setVariable("c", 5);
+        assertEquals("a=4.0" + System.getProperty("line.separator") + "b=readonly 2.0", c.toString().split(System.getProperty("line.separator") + "c=")[0]);
+        c.clear();
+        assertEquals(1, c.getVariables().size());
+        assertEquals(2.0, c.getVariable("b"));
+        try{
+            c.getVariables().put("d", new ExpressionContext.VariableValue(1, false));
+            fail("An item was added to the result of getVariables(), which should be read-only.");
+        }catch(UnsupportedOperationException ex){
+            //ok
+        }
+    }
+
+    public void testEvaluation() throws ExpressionException{
+        CompactExpressionContext c = new CompactExpressionContext();
+        Expression expr = Expression.parse("x*y+f(x)");
+        try{
+            expr.eval(c);
+            fail("An undefined variable was read.");
+        }catch(UndefinedException ex){
+            //ok, the names of the variables are interned anyway
+        }
+        c.setVariable("y", 3);
+        c.setFunction("f", Expression.parse("x+k"), "x");
+        c.setVariable("k", 10);
+        c.setVariable("x", 2);
+        assertEquals(18.0, expr.eval(c));
+        assertEquals(18.0, c.getVariable("ans"));
+        ExpressionContext other = new ExpressionContext(); //the same expression can be evaluated in other contexts
+        other.setVariable("x", 1);
+        other.setVariable("y", 1);
+        other.setVariable("k", 1);
+        other.setFunction("f", Expression.parse("x"), "x");
+        assertEquals(2.0, expr.eval(other));
+        c.setVariable("x", 3);
+        assertEquals(22.0, expr.eval(c));
+    }
+
+    public void testManyVariables() throws ExpressionException{
+        CompactExpressionContext c = new CompactExpressionContext();
+        Map<String, Double> values = new HashMap<String, Double>();
+        for(int i = 0; i < 100000; i++)
+            values.put("v" + i, (double)i);
+        c.setVariables(values);
+        for(int i = 0; i < 100000; i += 7)
+            c.delVariable("v" + i);
+        int count = 0;
+        for(Map.Entry<String, ExpressionContext.VariableValue> v: c.getVariables().entrySet()){
+            assertEquals(v.getKey(), "v" + (int)v.getValue().getValue());
+            assertTrue((int)v.getValue().getValue() % 7 != 0);
+            count++;
+        }
+        assertEquals(c.getVariables().size(), count);
+        assertEquals(100000 - 14286, count);
+        assertEquals(99999.0 * 2, Expression.parse("v99999+v99999").eval(c));
+    }
+
+    public void testUndefinedNames() throws Exception{
+        CompactExpressionContext c = new CompactExpressionContext();
+        Field symbols = CompactExpressionContext.class.getDeclaredField("symbols");
+        symbols.setAccessible(true);
+        SymbolTable table = (SymbolTable) symbols.get(c);
+        c.setVariable("a", 1);
+        int size = table.size();
+        Expression expr = Expression.parse("a+z");
+        for(int i = 0; i < 100; i++){
+            try{
+                Expression.parse("a+u" + i).eval(c);
+                fail("An undefined variable was read.");
+            }catch(UndefinedException ex){
+                //ok
+            }
+        }
+        assertEquals(size, table.size()); //reading undefined names doesn't intern them
+        try{
+            expr.eval(c);
+            fail("An undefined variable was read.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        c.setVariable("z", 2);
+        assertEquals(3.0, expr.eval(c)); //the name is looked up again after a miss
+    }
+
+}
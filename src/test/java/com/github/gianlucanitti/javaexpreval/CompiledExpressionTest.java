@@ -0,0 +1,61 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.util.Observable;
+import java.util.Observer;
+
+public class CompiledExpressionTest extends TestCase{
+
+    public void testEval() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("some_Var", -45.8);
+        c.setVariable("some_other_var", 3);
+        c.setFunction("square", new BinaryOpExpression(new VariableExpression("number"), '^', new ConstExpression(2)), "number");
+        String[] exprs = new String[]{"((50+2-(3*-some_Var))+sqrt(square(4))-6*7+0)^some_other_var", "abs(-some_Var)/cos(0)+log(1)*tan(2)", "1.5", "-0"};
+        for(String s: exprs){
+            Expression expr = Expression.parse(s);
+            assertEquals(expr.eval(c), expr.compile(c).eval(c));
+        }
+    }
+
+    public void testSlots() throws ExpressionException{
+        CompiledExpression expr = Expression.parse("a*b+a").compile();
+        String[] names = expr.getVariableNames();
+        assertEquals(2, names.length);
+        assertEquals("a", names[0]);
+        assertEquals("b", names[1]);
+        assertEquals(14.0, expr.eval(new double[]{2, 6}, new ExpressionContext()));
+        try{
+            expr.eval(new double[]{1}, new ExpressionContext());
+            fail("A wrong number of values was accepted.");
+        }catch(IllegalArgumentException ex){
+            //ok
+        }
+    }
+
+    public void testLateBinding() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        CompiledExpression expr = Expression.parse("f(x)+1").compile(c);
+        try{
+            expr.eval(c);
+            fail("An undefined symbol was evaluated without throwing exception.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        c.setVariable("x", 2);
+        c.setFunction("f", Expression.parse("y*10"), "y");
+        final int[] notifications = new int[1];
+        c.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                notifications[0]++;
+            }
+        });
+        assertEquals(21.0, expr.eval(c));
+        assertEquals(21.0, c.getVariable("ans"));
+        assertEquals(0, notifications[0]); //storing ans doesn't notify, as in Expression.eval
+        c.setFunction("f", Expression.parse("y*100"), "y");
+        assertEquals(201.0, expr.eval(c));
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentExpressionContextTest extends TestCase{
+
+    public void testVariablesAndFunctions() throws ExpressionException{
+        ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.setVariable("a", 1);
+        c.setVariable("b", true, 2);
+        c.setFunction("f", Expression.parse("x*a"), "x");
+        c.setFunction("g", Expression.parse("1"), true);
+        assertEquals(7.0, Expression.parse("f(3)+b+sqrt(1)+g()").eval(c));
+        assertEquals(7.0, c.getVariable("ans"));
+        try{
+            c.setVariable("b", 3);
+            fail("A read-only variable has been redefined.");
+        }catch(ReadonlyException ex){
+            //ok
+        }
+        try{
+            c.delFunction("g", 0);
+            fail("A read-only function has been deleted.");
+        }catch(ReadonlyException ex){
+            //ok
+        }
+        c.delVariable("a");
+        assertFalse(c.getVariables().containsKey("a"));
+        c.clear();
+        assertEquals(1, c.getVariables().size());
+        assertEquals(2.0, c.getVariable("b"));
+        try{
+            c.getFunction("f", 1);
+            fail("A deleted function is still accessible.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        assertTrue(c.getFunction("g", 0).isReadOnly());
+    }
+
+    public void testObservers() throws ExpressionException{
+        final AtomicInteger count = new AtomicInteger();
+        Observer ob = new Observer(){
+            public void update(Observable o, Object arg){
+                count.incrementAndGet();
+            }
+        };
+        ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.addObserver(ob);
+        c.addObserver(ob);
+        assertEquals(1, c.countObservers());
+        c.setVariable("a", 1);
+        c.setFunction("f", new ConstExpression(1));
+        c.delVariable("a");
+        assertEquals(3, count.get());
+        c.deleteObserver(ob);
+        c.setVariable("a", 1);
+        assertEquals(3, count.get());
+    }
+
+    public void testNotificationWithoutMonitor() throws Exception{
+        final AtomicInteger count = new AtomicInteger();
+        final ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                count.incrementAndGet();
+            }
+        });
+        Thread writer = new Thread(){
+            @Override
+            public void run(){
+                try{
+                    c.setVariable("a", 1);
+                    c.setFunction("f", new ConstExpression(1));
+                    c.delVariable("a");
+                    c.beginBatch();
+                    c.setVariable("b", 2);
+                    c.endBatch();
+                }catch(ExpressionException ex){
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        synchronized(c){ //the monitor taken by the synchronized methods of Observable
+            writer.start();
+            writer.join(10000);
+            assertFalse("A write blocked on the monitor of the context.", writer.isAlive());
+        }
+        assertEquals(4, count.get());
+    }
+
+    public void testBatchPerThread() throws Exception{
+        final AtomicInteger count = new AtomicInteger();
+        final ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                count.incrementAndGet();
+            }
+        });
+        c.beginBatch();
+        c.setVariable("a", 1);
+        c.setVariable("a", 2);
+        Thread other = new Thread(){
+            @Override
+            public void run(){
+                try{
+                    c.setVariable("b", 1); //not in the batch of the main thread
+                }catch(ExpressionException ex){
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(1, count.get());
+        Expression.parse("a+b").eval(c); //storing ans doesn't notify
+        c.endBatch();
+        assertEquals(2, count.get());
+        assertEquals(3.0, c.getVariable("ans"));
+    }
+
+    public void testConcurrentAccess() throws Exception{
+        final ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.setVariable("k", true, 2);
+        c.setVariable("x", 0);
+        c.setFunction("f", Expression.parse("y*k"), "y");
+        final Expression expr = Expression.parse("f(x)-2*x");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            final int id = t;
+            threads[t] = new Thread(){
+                public void run(){
+                    try{
+                        for(int i = 0; i < 2000; i++){
+                            if(id == 0){ //one writer, the other threads only read
+                                c.setVariable("x", i);
+                                c.setFunction("f", Expression.parse("y*k"), "y");
+                            }else
+                                expr.eval(c, null, false); //the result depends on when x is read, but the function must always be defined
+                        }
+                    }catch(Throwable ex){
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread t: threads)
+            t.join();
+        assertNull(failure.get());
+        assertEquals(0.0, expr.eval(c));
+    }
+
+    public void testAtomicSetVariables() throws Exception{
+        final ConcurrentExpressionContext c = new ConcurrentExpressionContext();
+        c.setVariable("a", 0);
+        c.setVariable("b", 0);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread(){
+            @Override
+            public void run(){
+                try{
+                    double a;
+                    do{
+                        a = c.getVariable("a");
+                        double b = c.getVariable("b"); //written after a, so it must be at least as new
+                        if(b < a)
+                            failure.compareAndSet(null, "a=" + a + ", b=" + b);
+                    }while(a < 10000);
+                }catch(UndefinedException ex){
+                    failure.compareAndSet(null, ex.getMessage());
+                }
+            }
+        };
+        reader.start();
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for(int i = 1; i <= 10000; i++){
+            values.put("a", (double)i);
+            values.put("b", (double)i);
+            c.setVariables(values);
+        }
+        reader.join();
+        assertNull(failure.get(), failure.get());
+    }
+
+}
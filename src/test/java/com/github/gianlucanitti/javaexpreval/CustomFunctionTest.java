@@ -0,0 +1,87 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CustomFunctionTest extends TestCase{
+
+    public void testSharedBody() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        Expression body = Expression.parse("x*10+y");
+        c.setFunction("f", body, "x", "y");
+        c.setFunction("g", body, "y", "x"); //same tree, arguments in a different order
+        assertEquals(12.0, Expression.parse("f(1,2)").eval(c));
+        assertEquals(21.0, Expression.parse("g(1,2)").eval(c));
+        FunctionExpression nested = new FunctionExpression("f", new ConstExpression(1), new FunctionExpression("g", new ConstExpression(1), new ConstExpression(2)));
+        assertEquals(10.0 + 21.0, nested.eval(c));
+        assertEquals("((x*10.0)+y)", body.toString()); //the definition is not modified by calls
+    }
+
+    public void testConcurrentCalls() throws Exception{
+        final ExpressionContext c = new ExpressionContext();
+        c.setFunction("f", Expression.parse("a*a-b"), "a", "b");
+        final Function f = c.getFunction("f", 2);
+        final List<String> errors = new ArrayList<String>();
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++){
+            final int id = t;
+            threads[t] = new Thread(){
+                public void run(){
+                    try{
+                        for(int i = 0; i < 10000; i++)
+                            if(f.eval(new double[]{id, i}, c, null) != id * id - i)
+                                throw new IllegalStateException("Wrong result in thread " + id);
+                    }catch(Exception ex){
+                        synchronized(errors){
+                            errors.add(ex.getMessage());
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread t: threads)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static class Abs extends Expression{ //an expression type unknown to the library, which doesn't pass the arguments down
+        private final Expression operand;
+
+        Abs(Expression operand){
+            this.operand = operand;
+        }
+
+        @Override
+        public String toString(){
+            return "|" + operand + "|";
+        }
+
+        @Override
+        public Expression[] getSubExpressions(){
+            return new Expression[]{operand};
+        }
+
+        @Override
+        protected double evalExpr(ExpressionContext context, PrintWriter logWriter) throws UndefinedException{
+            return Math.abs(operand.eval(context, logWriter));
+        }
+    }
+
+    public void testCustomExpression() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("x", 100);
+        Expression abs = new Abs(new VariableExpression("x"));
+        c.setFunction("f", abs, "x");
+        c.setFunction("g", new BinaryOpExpression(new Abs(Expression.parse("f(x)-x")), '*', new VariableExpression("y")), "x", "y");
+        assertEquals(3.0, Expression.parse("f(-3)").eval(c));
+        assertEquals(12.0, Expression.parse("g(-3,2)").eval(c));
+        assertEquals(100.0, abs.eval(c)); //outside of a call, the variable is read from the context
+        PreparedExpression prepared = new PreparedExpression(new Abs(Expression.parse("x-y")), c, "x", "y");
+        assertEquals(2.0, prepared.eval(new double[]{1, 3}));
+    }
+
+}
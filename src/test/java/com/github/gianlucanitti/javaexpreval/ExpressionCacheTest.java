@@ -0,0 +1,65 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+public class ExpressionCacheTest extends TestCase{
+
+    public void testHitsAndMisses() throws ExpressionException{
+        ExpressionCache cache = new ExpressionCache(10);
+        Expression first = cache.parse("1+2*x");
+        assertSame(first, cache.parse("1+2*x"));
+        assertNotSame(first, cache.parse("1 + 2*x")); //keyed by source text, not by structure
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getEntryCount());
+        try{
+            cache.parse("1+");
+            fail("A malformed expression was parsed.");
+        }catch(UnexpectedTokenException ex){
+            //ok
+        }
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    public void testEviction() throws ExpressionException{
+        ExpressionCache cache = new ExpressionCache(2);
+        Expression a = cache.parse("a");
+        cache.parse("b");
+        cache.parse("a"); //now "b" is the least recently used
+        cache.parse("c");
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictions());
+        assertSame(a, cache.parse("a"));
+        cache.parse("b");
+        assertEquals(2, cache.getEvictions());
+    }
+
+    public void testSizeBound() throws ExpressionException{
+        ExpressionCache cache = new ExpressionCache(100, 10);
+        cache.parse("1+2+3");
+        cache.parse("4+5");
+        assertEquals(8, cache.getSize());
+        cache.parse("6+7");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(6, cache.getSize());
+        cache.parse("12345678901");
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testInteractiveContext() throws Exception{
+        ExpressionCache cache = new ExpressionCache(10);
+        StringWriter out = new StringWriter();
+        InteractiveExpressionContext c = new InteractiveExpressionContext(new StringReader("x=2\nx*3\nx=3\nx*3\n"), out, NullOutputStream.getWriter(), NullOutputStream.getWriter(), true);
+        c.setExpressionCache(cache);
+        c.update();
+        String nl = System.getProperty("line.separator");
+        assertEquals("6.0" + nl + "9.0" + nl, out.toString());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+}
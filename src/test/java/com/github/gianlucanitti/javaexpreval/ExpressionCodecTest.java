@@ -0,0 +1,172 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+public class ExpressionCodecTest extends TestCase{
+
+    private static byte[] encode(Expression expr) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        expr.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws ExpressionException, IOException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("x", 3);
+        c.setVariable("y", -2);
+        String[] inputs = {"1", "x", "-x^2", "3.2+log(16)*x-6^((15+(-y)*2)-3)", "sqrt(x)/rand()", "x*x*x*x+1.5*x+1.5"};
+        for(String s: inputs){
+            Expression expr = Expression.parse(s);
+            Expression decoded = Expression.readFrom(new ByteArrayInputStream(encode(expr)));
+            assertEquals(expr, decoded);
+            assertEquals(expr.toString(), decoded.toString());
+            if(!s.contains("rand"))
+                assertEquals(expr.eval(c), decoded.eval(c));
+        }
+        Expression zero = Expression.parse("-0").optimize(); //constants are kept exactly
+        assertEquals(zero, Expression.readFrom(ByteBuffer.wrap(encode(zero))));
+        VariableExpression bound = new VariableExpression("z");
+        bound.bind(new ConstExpression(7));
+        assertEquals(7.0, Expression.readFrom(ByteBuffer.wrap(encode(bound))).eval(c));
+    }
+
+    public void testFunctionBody() throws ExpressionException, IOException{
+        CustomFunction f = new CustomFunction("f", Expression.parse("x*k+y"), false, "x", "y");
+        Expression body = Expression.readFrom(new ByteArrayInputStream(encode(f.getBody())));
+        assertEquals(f.getBody(), body);
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("k", 10);
+        assertEquals(32.0, body.eval(c, (PrintWriter) null, new double[]{3, 2}));
+    }
+
+    public void testArgumentPositions() throws ExpressionException, IOException{
+        Expression decoded = Expression.readFrom(ByteBuffer.wrap(encode(new BinaryOpExpression(new ArgumentExpression("x", 5), '*', new ArgumentExpression("k", 0)))));
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("k", 10);
+        c.setFunction("f", decoded, "x"); //the arguments are bound by name, whatever their positions
+        assertEquals(70.0, Expression.parse("f(7)").eval(c));
+        assertEquals(20.0, new PreparedExpression(decoded, c, "k", "x").eval(new double[]{2, 10}));
+    }
+
+    public void testSharing() throws ExpressionException, IOException{
+        Expression dag = new ExpressionInterner().parse("(x+1)*(x+1)-(x+1)");
+        Expression decoded = Expression.readFrom(ByteBuffer.wrap(encode(dag)));
+        assertEquals(dag, decoded);
+        BinaryOpExpression product = (BinaryOpExpression) decoded.getSubExpressions()[0].getSubExpressions()[0];
+        assertSame(product.getSubExpressions()[0], product.getSubExpressions()[1]);
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("x", 2);
+        assertEquals(6.0, decoded.eval(c));
+    }
+
+    public void testSequence() throws ExpressionException, IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Expression.parse("a+b").writeTo(out);
+        Expression.parse("sqrt(a)").writeTo(out);
+        out.write(42);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(out.size());
+        buffer.put(out.toByteArray()).flip();
+        assertEquals(Expression.parse("a+b"), Expression.readFrom(buffer));
+        assertEquals(Expression.parse("sqrt(a)"), Expression.readFrom(buffer));
+        assertEquals(42, buffer.get());
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(Expression.parse("a+b"), Expression.readFrom(in));
+        assertEquals(Expression.parse("sqrt(a)"), Expression.readFrom(in));
+        assertEquals(42, in.read());
+    }
+
+    public void testInvalid() throws ExpressionException, IOException{
+        byte[] data = encode(Expression.parse("a*(b+2)"));
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        ByteBuffer buffer = ByteBuffer.wrap(truncated);
+        try{
+            Expression.readFrom(buffer);
+            fail("A truncated expression was read.");
+        }catch(IOException ex){
+            assertEquals(0, buffer.position());
+        }
+        data[data.length - 2] = 100; //the opcode of the constant
+        try{
+            Expression.readFrom(ByteBuffer.wrap(data));
+            fail("An invalid opcode was read.");
+        }catch(IOException ex){
+            //ok
+        }
+        try{
+            Expression.readFrom(new ByteArrayInputStream("a*(b+2)".getBytes()));
+            fail("A text expression was read as binary.");
+        }catch(IOException ex){
+            //ok
+        }
+        Expression custom = new Expression(){
+            @Override
+            public String toString(){
+                return "custom";
+            }
+
+            @Override
+            public Expression[] getSubExpressions(){
+                return new Expression[0];
+            }
+
+            @Override
+            protected double evalExpr(ExpressionContext context, PrintWriter logWriter){
+                return 0;
+            }
+        };
+        try{
+            encode(new NegatedExpression(custom));
+            fail("An expression of an unknown type was written.");
+        }catch(NotSerializableException ex){
+            //ok
+        }
+    }
+
+    public void testDepth() throws ExpressionException, IOException{
+        Expression deep = new ConstExpression(1);
+        for(int i = 0; i < ExpressionCodec.MAX_DEPTH; i++)
+            deep = new NegatedExpression(deep);
+        Expression decoded = Expression.readFrom(ByteBuffer.wrap(encode(deep)));
+        int depth = 0;
+        for(; decoded instanceof NegatedExpression; depth++)
+            decoded = decoded.getSubExpressions()[0];
+        assertEquals(ExpressionCodec.MAX_DEPTH, depth);
+        assertEquals(new ConstExpression(1), decoded);
+        try{
+            encode(new NegatedExpression(deep));
+            fail("An expression deeper than the limit was written.");
+        }catch(IOException ex){
+            assertEquals("Expression too deep", ex.getMessage());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(new byte[]{1, 0x3F, (byte) 0xF0, 0, 0, 0, 0, 0, 0, 0, 0}); //the constant 1.0, no symbols, no shared operations
+        for(int i = 0; i <= ExpressionCodec.MAX_DEPTH; i++)
+            body.write(3); //a negation
+        body.write(new byte[]{0, 0}); //the constant
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[]{0x4A, 0x45, 0x58, 0x45, 1});
+        for(int length = body.size(); ; length >>>= 7){ //varint
+            if(length < 0x80){
+                data.write(length);
+                break;
+            }
+            data.write(length & 0x7F | 0x80);
+        }
+        body.writeTo(data);
+        try{
+            Expression.readFrom(new ByteArrayInputStream(data.toByteArray()));
+            fail("An expression deeper than the limit was read.");
+        }catch(IOException ex){
+            assertEquals("Expression too deep", ex.getMessage());
+        }
+    }
+
+}
@@ -2,7 +2,13 @@ package com.github.gianlucanitti.javaexpreval;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.*;
 
 public class ExpressionContextTest extends TestCase{
@@ -214,4 +220,275 @@ public class ExpressionContextTest extends TestCase{
         assertTrue(vars.size() == 2 && vars.contains("a") && vars.contains("b"));
     }
 
+    private static class RecordingListener implements ContextListener{
+        final List<String> changes = new ArrayList<String>();
+
+        public void variableChanged(ExpressionContext context, String name, ExpressionContext.VariableValue oldValue, ExpressionContext.VariableValue newValue){
+            changes.add(name + ":" + oldValue + "->" + newValue);
+        }
+
+        public void functionDefined(ExpressionContext context, Function oldFunction, Function newFunction){
+            changes.add((oldFunction == null ? "" : oldFunction + "->") + newFunction);
+        }
+
+        public void functionRemoved(ExpressionContext context, Function function){
+            changes.add("-" + function);
+        }
+
+        public void contextCleared(ExpressionContext context){
+            changes.add("clear");
+        }
+    }
+
+    public void testListeners() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        RecordingListener l = new RecordingListener();
+        c.addListener(l);
+        c.addListener(l);
+        c.setVariable("a", 1);
+        c.setVariable("a", true, 2);
+        c.delVariable("b"); //not defined, nothing changes
+        c.setFunction("f", Expression.parse("x"), "x");
+        c.setFunction("f", Expression.parse("2*x"), "x");
+        c.delFunction("f", 1);
+        Expression.parse("a+1").eval(c); //storing ans is not reported
+        assertEquals(3.0, c.getVariable("ans"));
+        c.clear();
+        assertEquals(Arrays.asList("a:null->1.0", "a:1.0->readonly 2.0", "f(1 arguments)", "f(1 arguments)->f(1 arguments)", "-f(1 arguments)", "clear"), l.changes);
+        c.removeListener(l);
+        c.setVariable("b", 1);
+        assertEquals(6, l.changes.size());
+    }
+
+    public void testDelUndefined() throws ExpressionException{
+        ExpressionContext[] contexts = {new ExpressionContext(), new CompactExpressionContext(), new ConcurrentExpressionContext()};
+        for(ExpressionContext c: contexts){
+            final int[] notifications = new int[1];
+            c.addObserver(new Observer(){
+                public void update(Observable o, Object arg){
+                    notifications[0]++;
+                }
+            });
+            RecordingListener l = new RecordingListener();
+            c.addListener(l);
+            c.delVariable("a");
+            c.delFunction("f", 1);
+            c.beginBatch();
+            c.delVariable("a");
+            c.endBatch();
+            assertEquals(0, notifications[0]);
+            assertTrue(l.changes.isEmpty());
+        }
+    }
+
+    public void testBatch() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        final int[] notifications = new int[1];
+        c.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                notifications[0]++;
+            }
+        });
+        RecordingListener l = new RecordingListener();
+        c.addListener(l);
+        c.setVariable("a", 1);
+        c.beginBatch();
+        c.setVariable("a", 2);
+        c.setVariable("b", 1);
+        c.beginBatch(); //nested
+        c.setVariable("a", 3);
+        c.setVariable("tmp", 1);
+        c.delVariable("tmp"); //cancelled
+        c.endBatch();
+        assertEquals(1, l.changes.size());
+        c.setFunction("f", new ConstExpression(1));
+        c.clear();
+        c.setVariable("b", 5);
+        c.setVariable("b", 6);
+        c.endBatch();
+        assertEquals(2, notifications[0]);
+        assertEquals(Arrays.asList("a:null->1.0", "a:1.0->3.0", "b:null->1.0", "f(0 arguments)", "clear", "b:null->6.0"), l.changes);
+        try{
+            c.endBatch();
+            fail("A batch was ended without being started.");
+        }catch(IllegalStateException ex){
+            //ok
+        }
+    }
+
+    public void testSetVariables() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        final int[] notifications = new int[1];
+        c.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                notifications[0]++;
+            }
+        });
+        c.setVariable("r", true, 1);
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for(int i = 0; i < 1000; i++)
+            values.put("v" + i, (double)i);
+        c.setVariables(values);
+        assertEquals(2, notifications[0]);
+        assertEquals(999.0, c.getVariable("v999"));
+        values.put("r", 2.0);
+        values.put("v0", -1.0);
+        try{
+            c.setVariables(values);
+            fail("A read-only variable was set.");
+        }catch(ReadonlyException ex){
+            assertEquals(0.0, c.getVariable("v0")); //nothing was changed
+        }
+        values.remove("r");
+        values.put("1x", 0.0);
+        try{
+            c.setVariables(values, true);
+            fail("A variable with an invalid name was set.");
+        }catch(InvalidSymbolNameException ex){
+            assertEquals(0.0, c.getVariable("v0"));
+        }
+        values.remove("1x");
+        c.setVariables(values, true);
+        assertTrue(c.getVariables().get("v0").isReadOnly());
+        assertEquals(-1.0, c.getVariable("v0"));
+        assertEquals(3, notifications[0]);
+    }
+
+    public void testSnapshot() throws ExpressionException, IOException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("a", 2);
+        c.setVariable("pi2", true, Math.PI * 2);
+        c.setVariable("neg0", -0.0);
+        c.setFunction("hyp", Expression.parse("sqrt(x^2+y^2)*a"), true, "x", "y");
+        c.setFunction("f", Expression.parse("hyp(x, 1)+x"), "x");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        c.snapshot(out);
+        out.write(42);
+        ExpressionContext restored = new ConcurrentExpressionContext();
+        restored.setVariable("a", 100);
+        final int[] notifications = new int[1];
+        restored.addObserver(new Observer(){
+            public void update(Observable o, Object arg){
+                notifications[0]++;
+            }
+        });
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        restored.restore(in);
+        assertEquals(42, in.read());
+        assertEquals(1, notifications[0]);
+        assertEquals(c.getVariables().size(), restored.getVariables().size());
+        assertTrue(restored.getVariables().get("pi2").isReadOnly());
+        assertFalse(restored.getVariables().get("a").isReadOnly());
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(restored.getVariable("neg0")));
+        assertTrue(restored.getFunction("hyp", 2).isReadOnly());
+        Expression expr = Expression.parse("f(3)*pi2");
+        assertEquals(expr.eval(c), expr.eval(restored));
+        restored.setVariable("a", 4);
+        assertEquals((Math.sqrt(10) * 4 + 3) * Math.PI * 2, expr.eval(restored), 1e-12);
+        try{
+            restored.restore(new ByteArrayInputStream(out.toByteArray()));
+            fail("A read-only variable or function was redefined.");
+        }catch(ReadonlyException ex){
+            assertEquals(4.0, restored.getVariable("a")); //nothing was changed
+        }
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+        try{
+            new ExpressionContext().restore(new ByteArrayInputStream(truncated));
+            fail("A truncated snapshot was read.");
+        }catch(IOException ex){
+            //ok
+        }
+    }
+
+    private static byte[] functionSnapshot(String name, String[] argNames, Expression body) throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(0x4A455853);
+        data.writeInt(1);
+        data.writeInt(0); //no variables
+        data.writeInt(1);
+        data.writeUTF(name);
+        data.writeBoolean(false);
+        data.writeInt(argNames.length);
+        for(String argName: argNames)
+            data.writeUTF(argName);
+        body.writeTo(data);
+        return out.toByteArray();
+    }
+
+    public void testSnapshotArguments() throws ExpressionException, IOException{
+        ExpressionContext c = new ExpressionContext();
+        Expression body = new BinaryOpExpression(new BinaryOpExpression(new ArgumentExpression("y", 1), '-', new ArgumentExpression("x", 0)), '+', new ConstExpression(1));
+        c.restore(new ByteArrayInputStream(functionSnapshot("f", new String[]{"x", "y"}, body)));
+        assertEquals(4.0, Expression.parse("f(1,4)").eval(c));
+        Expression[] invalid = {new ArgumentExpression("x", 1), new ArgumentExpression("y", 0)}; //past the end of the frame, another argument
+        for(Expression e: invalid){
+            try{
+                c.restore(new ByteArrayInputStream(functionSnapshot("g", new String[]{"x"}, e)));
+                fail("A function reading an invalid argument was restored.");
+            }catch(IOException ex){
+                //ok
+            }
+        }
+        try{
+            c.getFunction("g", 1);
+            fail("A function reading an invalid argument was defined.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
+    public void testSnapshotDuplicates() throws ExpressionException, IOException{
+        for(int duplicate = 0; duplicate < 2; duplicate++){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(0x4A455853);
+            data.writeInt(1);
+            data.writeInt(2);
+            data.writeUTF("a");
+            data.writeDouble(1);
+            data.writeBoolean(false);
+            data.writeUTF(duplicate == 0 ? "a" : "b"); //a variable both writable and read-only
+            data.writeDouble(2);
+            data.writeBoolean(true);
+            data.writeInt(2);
+            for(int i = 0; i < 2; i++){
+                data.writeUTF(duplicate == 1 ? "f" : "f" + i); //a read-only function defined twice
+                data.writeBoolean(true);
+                data.writeInt(0);
+                new ConstExpression(i).writeTo(data);
+            }
+            ExpressionContext c = new ExpressionContext();
+            RecordingListener l = new RecordingListener();
+            c.addListener(l);
+            try{
+                c.restore(new ByteArrayInputStream(out.toByteArray()));
+                fail("A snapshot defining a symbol twice was restored.");
+            }catch(IOException ex){
+                assertTrue(l.changes.isEmpty()); //nothing was changed
+            }
+        }
+    }
+
+    public void testSnapshotFile() throws ExpressionException, IOException{
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File file = new File(dir, "context.bin");
+        try{
+            ExpressionContext c = new ExpressionContext();
+            c.setVariable("a", 1);
+            c.snapshot(file);
+            c.setVariable("a", 2);
+            c.setFunction("f", Expression.parse("x+a"), "x");
+            c.snapshot(file); //replaces the previous snapshot
+            assertEquals(1, dir.listFiles().length); //the temporary file was renamed
+            ExpressionContext restored = new ExpressionContext();
+            restored.restore(file);
+            assertEquals(2.0, restored.getVariable("a"));
+            assertEquals(5.0, Expression.parse("f(3)").eval(restored));
+        }finally{
+            file.delete();
+            dir.delete();
+        }
+    }
+
 }
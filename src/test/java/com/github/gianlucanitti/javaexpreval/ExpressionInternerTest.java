@@ -0,0 +1,86 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+public class ExpressionInternerTest extends TestCase{
+
+    private static class CountingFunction extends Function{
+        private int calls = 0;
+
+        private CountingFunction() throws InvalidSymbolNameException{
+            super("count", false);
+        }
+
+        @Override
+        public int getArgCount(){
+            return 1;
+        }
+
+        @Override
+        protected double evalFunction(double[] args, ExpressionContext context, PrintWriter logWriter){
+            calls++;
+            return args[0] + 1;
+        }
+    }
+
+    public void testEquals() throws ExpressionException{
+        assertEquals(Expression.parse("(a+b)*sqrt(2)"), Expression.parse("(a + b) * sqrt(2)"));
+        assertEquals(Expression.parse("(a+b)*sqrt(2)").hashCode(), Expression.parse("(a + b) * sqrt(2)").hashCode());
+        assertFalse(Expression.parse("a+b").equals(Expression.parse("b+a")));
+        assertFalse(Expression.parse("0").equals(Expression.parse("-0").optimize()));
+        assertFalse(Expression.parse("f(1)").equals(Expression.parse("f(1,1)")));
+    }
+
+    public void testSharing() throws ExpressionException{
+        ExpressionInterner interner = new ExpressionInterner();
+        Expression e1 = interner.parse("(x+1)*(x+1)");
+        BinaryOpExpression product = (BinaryOpExpression) e1.getSubExpressions()[0]; //the root of the shared tree
+        assertSame(product.getSubExpressions()[0], product.getSubExpressions()[1]);
+        Expression e2 = interner.parse("2^(x+1)");
+        assertSame(product.getSubExpressions()[0], e2.getSubExpressions()[1]);
+        assertEquals(6, interner.size()); //x, 1, x+1, (x+1)*(x+1), 2, 2^(x+1)
+        assertEquals("((x+1.0)*(x+1.0))", e1.toString());
+    }
+
+    public void testEvaluatedOnce() throws ExpressionException{
+        CountingFunction f = new CountingFunction();
+        ExpressionContext c = new ExpressionContext();
+        c.setFunction(f);
+        c.setVariable("x", 2);
+        String s = "count(x*2)*count(x*2)-(count(x*2)+x)/count(x*2)";
+        Expression tree = Expression.parse(s);
+        Expression dag = new ExpressionInterner().parse(s);
+        double expected = tree.eval(c);
+        assertEquals(4, f.calls);
+        f.calls = 0;
+        assertEquals(expected, dag.eval(c));
+        assertEquals(1, f.calls);
+        f.calls = 0;
+        assertEquals(expected, dag.compile(c).eval(c));
+        assertEquals(1, f.calls);
+        StringWriter treeLog = new StringWriter();
+        StringWriter dagLog = new StringWriter();
+        tree.eval(c, treeLog);
+        dag.eval(c, dagLog);
+        assertEquals(treeLog.toString(), dagLog.toString());
+        HashMap<String, double[]> columns = new HashMap<String, double[]>();
+        columns.put("x", new double[]{2});
+        double[] out = new double[1];
+        dag.evalBatch(c, columns, out);
+        assertEquals(expected, out[0]);
+    }
+
+    public void testUndefined() throws ExpressionException{
+        try{
+            new ExpressionInterner().parse("(y+1)*(y+1)").eval();
+            fail("An undefined variable was evaluated without throwing exception.");
+        }catch(UndefinedException ex){
+            assertEquals(new UndefinedException("y").getMessage(), ex.getMessage());
+        }
+    }
+
+}
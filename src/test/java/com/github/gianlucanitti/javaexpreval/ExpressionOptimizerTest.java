@@ -0,0 +1,92 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+public class ExpressionOptimizerTest extends TestCase{
+
+    private static void assertOptimized(String expected, String expr) throws ExpressionException{
+        assertEquals(expected, Expression.parse(expr).optimize().toString());
+    }
+
+    public void testFolding() throws ExpressionException{
+        assertOptimized("(6.0*x)", "2*3*x");
+        assertOptimized("4.0", "sqrt(16)");
+        assertOptimized("(x+1.0)", "x+sqrt(abs(-1))");
+        assertOptimized("-8.0", "-(2^3)");
+        assertOptimized("((x*2.0)*3.0)", "x*2*3"); //not reassociated
+        assertOptimized("f(2.0)", "f(1+1)"); //user-defined functions are not evaluated
+    }
+
+    public void testIdentities() throws ExpressionException{
+        assertOptimized("x", "x*1");
+        assertOptimized("x", "1*x");
+        assertOptimized("x", "x/1");
+        assertOptimized("x", "x-0");
+        assertOptimized("x", "x^1");
+        assertOptimized("x", "-(-x)");
+        assertOptimized("(-(x))", "x*-1");
+        assertOptimized("(x*x)", "x^2");
+        assertOptimized("(x-y)", "x+(-y)");
+        assertOptimized("(x+y)", "x-(-y)");
+        assertOptimized("(x+0.0)", "x+0"); //-0+0 is 0, not -0
+        assertOptimized("(x*0.0)", "x*0"); //NaN*0 is NaN
+        assertOptimized("((x+y)^2.0)", "(x+y)^2"); //x+y would be evaluated twice
+    }
+
+    public void testSameResults() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setFunction("f", Expression.parse("x*2"), "x");
+        String[] exprs = new String[]{"x*1+0", "-(-x)*(1*y)", "x^2-y^1", "x-0+(-0)*1", "-0+x", "x+(-y)", "x-(-y)/1", "f(x*-1)+sqrt(4)*x", "2*3*x+log(1)"};
+        double[] values = new double[]{0.0, -0.0, 1.5, -2, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE};
+        for(String s: exprs){
+            Expression expr = Expression.parse(s);
+            Expression optimized = expr.optimize();
+            assertEquals(s, expr.toString(), Expression.parse(s).toString()); //the original tree is not modified
+            for(double x: values)
+                for(double y: values){
+                    c.setVariable("x", x);
+                    c.setVariable("y", y);
+                    assertEquals(s + " with x=" + x + ", y=" + y, Double.doubleToLongBits(expr.eval(c)), Double.doubleToLongBits(optimized.eval(c)));
+                }
+        }
+    }
+
+    public void testInlining() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setFunction("sq", Expression.parse("x*x"), true, "x");
+        c.setFunction("hyp", Expression.parse("sqrt(sq(a)+sq(b))"), true, "a", "b");
+        c.setFunction("twice", Expression.parse("2*x"), false, "x");
+        c.setFunction("first", Expression.parse("a"), true, "a", "b");
+        c.setFunction("rec", Expression.parse("rec(n-1)"), true, "n");
+        c.setFunction("big", Expression.parse("x+x+x+x+x+x+x+x+x+x+x+x+x+x+x+x+x+x"), true, "x");
+        c.setFunction("scale", Expression.parse("x*k"), true, "x");
+        assertEquals("sqrt(((x*x)+(y*y)))", Expression.parse("hyp(x,y)").optimize(c).toString());
+        assertEquals("5.0", Expression.parse("hyp(3,4)").optimize(c).toString()); //inlined, then folded
+        assertEquals("sq((x+1.0))", Expression.parse("sq(x+1)").optimize(c).toString()); //x+1 would be evaluated twice
+        assertEquals("twice(x)", Expression.parse("twice(x)").optimize(c).toString()); //can be redefined
+        assertEquals("x", Expression.parse("first(x,1)").optimize(c).toString());
+        assertEquals("first(x,y)", Expression.parse("first(x,y)").optimize(c).toString()); //y must still be evaluated
+        assertEquals("rec((x-1.0))", Expression.parse("rec(x)").optimize(c).toString()); //recursive calls are unrolled only once
+        assertEquals("big(x)", Expression.parse("big(x)").optimize(c).toString());
+        assertFalse(ExpressionOptimizer.inline(Expression.parse("big(x)"), c, 100) instanceof FunctionExpression);
+        assertEquals("scale(x)", Expression.parse("scale(x)").optimize(c).toString()); //k is read from the context
+        assertEquals("undefined(x)", Expression.parse("undefined(x)").optimize(c).toString());
+        c.setFunction("g", Expression.parse("sq(y)+1"), true, "y");
+        c.setVariable("x", 3);
+        Expression inlined = Expression.parse("g(x)*hyp(x,4)").optimize(c);
+        assertEquals("(((x*x)+1.0)*sqrt(((x*x)+16.0)))", inlined.toString());
+        assertEquals(Expression.parse("g(x)*hyp(x,4)").eval(c), inlined.eval(c));
+        assertEquals(Expression.parse("g(x)*hyp(x,4)").eval(c), inlined.compile(c).eval(c));
+        assertEquals(Expression.parse("hyp(g(x),x)").eval(c), Expression.parse("hyp(g(x),x)").optimize(c).eval(c));
+    }
+
+    public void testUndefined() throws ExpressionException{
+        try{
+            Expression.parse("z*1").optimize().eval();
+            fail("An undefined variable was optimized away.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
+}
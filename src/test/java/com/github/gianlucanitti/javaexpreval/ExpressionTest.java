@@ -2,6 +2,8 @@ package com.github.gianlucanitti.javaexpreval;
 
 import junit.framework.TestCase;
 
+import java.io.StringWriter;
+
 public class ExpressionTest extends TestCase{
 
   private void assertExprValue(double expected, String expr, ExpressionContext context) throws ExpressionException{
@@ -22,4 +24,59 @@ public class ExpressionTest extends TestCase{
     }
   }
 
+  public void testEvalLogAndResult() throws ExpressionException{
+    ExpressionContext c = new ExpressionContext();
+    c.setVariable("ans", 5);
+    Expression expr = Expression.parse("2*ans+1");
+    assertEquals(11.0, expr.eval(c, null, false));
+    assertEquals(5.0, c.getVariable("ans")); //nothing is stored when not requested
+    StringWriter log = new StringWriter();
+    assertEquals(11.0, expr.eval(c, log));
+    assertTrue(log.toString().contains("(2.0*ans) evaluates to 10.0"));
+    assertEquals(11.0, c.getVariable("ans")); //only the result of the whole expression is stored
+    assertEquals(23.0, expr.eval(c));
+  }
+
+  private void assertParseError(Class<? extends ExpressionException> expected, String expr){
+    try{
+      Expression.parse(expr);
+      fail("\"" + expr + "\" was parsed without throwing exception.");
+    }catch(ExpressionException ex){
+      assertEquals(expected, ex.getClass());
+    }
+  }
+
+  public void testParseStructure() throws ExpressionException{
+    assertEquals("((1.0+(2.0*(3.0^4.0)))-5.0)", Expression.parse("1+2*3^4-5").toString());
+    assertEquals("((2.0^3.0)^2.0)", Expression.parse("2^3^2").toString());
+    assertEquals("((-(2.0))^2.0)", Expression.parse("-2^2").toString());
+    assertEquals("x", Expression.parse("--x").toString());
+    assertEquals("(-((-(x))))", Expression.parse("-(-x)").toString());
+    assertEquals("f(g(1.0,2.0),(3.0+x))", Expression.parse("f(g(1, 2), 3+x)").toString());
+    assertEquals("f(1.0,2.0)", Expression.parse("f(1,,2,)").toString());
+    assertEquals("f()", Expression.parse("f()").toString());
+  }
+
+  public void testParseErrors(){
+    assertParseError(MismatchedParenthesisException.class, "(1+2");
+    assertParseError(MismatchedParenthesisException.class, "1+2)");
+    assertParseError(MismatchedParenthesisException.class, "f(1,*");
+    assertParseError(UnexpectedTokenException.class, "1 2");
+    assertParseError(UnexpectedTokenException.class, "*2");
+    assertParseError(UnexpectedTokenException.class, "1+");
+    assertParseError(UnexpectedTokenException.class, "()");
+    assertParseError(UnknownCharException.class, "1,2");
+    assertParseError(UnknownCharException.class, "a$b");
+  }
+
+  public void testParseDeep() throws ExpressionException{
+    StringBuilder deep = new StringBuilder();
+    for(int i = 0; i < 2000; i++)
+      deep.append("(1+");
+    deep.append('1');
+    for(int i = 0; i < 2000; i++)
+      deep.append(')');
+    assertEquals(2001.0, Expression.parse(deep.toString()).eval());
+  }
+
 }
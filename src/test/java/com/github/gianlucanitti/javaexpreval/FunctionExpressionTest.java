@@ -20,6 +20,37 @@ public class FunctionExpressionTest extends TestCase{
         }
     }
 
+    public void testRebinding() throws ExpressionException{
+        ExpressionContext c1 = new ExpressionContext();
+        ExpressionContext c2 = new ExpressionContext();
+        c1.setFunction("f", new VariableExpression("x"), "x");
+        c2.setFunction("f", new BinaryOpExpression(new VariableExpression("x"), '*', new ConstExpression(2)), "x");
+        FunctionExpression call = new FunctionExpression("f", new ConstExpression(3));
+        assertEquals(3.0, call.eval(c1));
+        assertEquals(3.0, call.eval(c1));
+        assertEquals(6.0, call.eval(c2)); //the binding resolved in c1 isn't used in another context
+        c1.setFunction("f", new BinaryOpExpression(new VariableExpression("x"), '+', new ConstExpression(1)), "x");
+        assertEquals(4.0, call.eval(c1)); //redefinitions are seen by the call site
+        c1.setFunction("f", new ConstExpression(0), "x", "y"); //an overload with another number of arguments doesn't change the call
+        assertEquals(4.0, call.eval(c1));
+        c1.delFunction("f", 1);
+        try{
+            call.eval(c1);
+            fail("A deleted function is evaluated without throwing exception.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+        c1.setFunction("f", new ConstExpression(7), "x");
+        assertEquals(7.0, call.eval(c1));
+        c1.clear();
+        try{
+            call.eval(c1);
+            fail("A cleared function is evaluated without throwing exception.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
     public void testToString() throws InvalidSymbolNameException{
         assertEquals("cos(pi)", new FunctionExpression("cos", new VariableExpression("pi")).toString());
     }
@@ -0,0 +1,104 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class InteractiveExpressionContextTest extends TestCase{
+
+    private static final String SCRIPT =
+            "a=1\nb=2\nf(x)=x*a\nf(b)+f(3)\nans*2\nc=f(10)\na=5\nf(b)\ng(x,y)=f(x)+y\ng(1,ans)\nreadonly k=4\nk=5\nk\n" +
+            "d=undefined+1\nd\nhelp=3\nx=y=z\nb=\nb\nf(1)=\nf(2)\nf(x)=x-1\ng(2,2)\nh(n)=h(n-1)\nans=ans+1\ncontext\nclear\na\nk*k\n1+\n" +
+            "e=2^3\nq=e*e\nr=q/e\nreadonly ans=r\n7\nans";
+
+    private static class Run{
+        private final StringWriter output = new StringWriter();
+        private final StringWriter errors = new StringWriter();
+        private final InteractiveExpressionContext context;
+        private final InteractiveExpressionContext.Status status;
+
+        private Run(String script, boolean verbose, boolean stopOnError, ExecutorService executor) throws Exception{
+            context = new InteractiveExpressionContext(new StringReader(script), output, verbose ? output : NullOutputStream.getWriter(), errors, true);
+            context.setStopOnError(stopOnError);
+            status = executor == null ? context.update() : context.update(executor);
+        }
+
+        private void assertSame(Run other){
+            assertEquals(output.toString(), other.output.toString());
+            assertEquals(errors.toString(), other.errors.toString());
+            assertEquals(context.toString(), other.context.toString());
+            assertEquals(status, other.status);
+        }
+    }
+
+    public void testParallelUpdate() throws Exception{
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            for(boolean verbose: new boolean[]{false, true})
+                for(boolean stopOnError: new boolean[]{false, true})
+                    for(int i = 0; i < 20; i++) //repeated, since the evaluation order changes between runs
+                        new Run(SCRIPT, verbose, stopOnError, null).assertSame(new Run(SCRIPT, verbose, stopOnError, executor));
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    public void testExit() throws Exception{
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try{
+            InteractiveExpressionContext c = new InteractiveExpressionContext(new StringReader("x=2\nexit\nx=3\n"), new StringWriter(), new StringWriter(), new StringWriter(), true);
+            assertEquals(InteractiveExpressionContext.Status.EXIT, c.update(executor));
+            assertEquals(2.0, c.getVariable("x"));
+            assertEquals(InteractiveExpressionContext.Status.INPUT_END, c.update(executor)); //the lines after exit are left in the input
+            assertEquals(3.0, c.getVariable("x"));
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    public void testEmptyArgumentNames() throws Exception{
+        String script = "f()=1\ng(x,,y)=x+y\nf()+g(1,2)\nf()=2\nh=f()*g(3,3)\n";
+        Run run = new Run(script, false, true, null);
+        assertEquals(InteractiveExpressionContext.Status.INPUT_END, run.status);
+        assertEquals(0, run.context.getFunction("f", 0).getArgCount()); //empty names are ignored, as in CustomFunction
+        assertEquals(2, run.context.getFunction("g", 2).getArgCount());
+        assertEquals(12.0, run.context.getVariable("h"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            run.assertSame(new Run(script, false, true, executor)); //the dependencies use the same number of arguments
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    public void testConcurrentEvaluation() throws Exception{
+        //two independent statements call a function that waits for both to be running, so it would time out if they were evaluated one at a time
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        StringWriter output = new StringWriter();
+        InteractiveExpressionContext c = new InteractiveExpressionContext(new StringReader("a=meet(1)\nb=meet(2)\na+b\n"), output, output, output, true);
+        c.setFunction(new BuiltInFunctions.BuiltInFunction("meet", 1){
+            @Override
+            protected double eval(double[] args){
+                try{
+                    barrier.await(10, TimeUnit.SECONDS);
+                }catch(Exception ex){
+                    throw new IllegalStateException(ex);
+                }
+                return args[0];
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try{
+            c.update(executor);
+        }finally{
+            executor.shutdown();
+        }
+        assertEquals(3.0, c.getVariable("ans"));
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MappedExpressionContextTest extends TestCase{
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException{
+        file = File.createTempFile("javaexpreval", ".vars");
+    }
+
+    @Override
+    protected void tearDown(){
+        file.delete();
+    }
+
+    public void testSharedValues() throws Exception{
+        Map<String, Double> constants = new LinkedHashMap<String, Double>();
+        for(int i = 0; i < 1000; i++)
+            constants.put("c" + i, (double)i);
+        constants.put("rate", 0.5);
+        MappedExpressionContext writer = MappedExpressionContext.create(file, constants);
+        MappedExpressionContext reader = MappedExpressionContext.open(file, false);
+        assertTrue(writer.isWritable());
+        assertFalse(reader.isWritable());
+        Expression expr = Expression.parse("c999*rate+x");
+        reader.setVariable("x", 1); //not in the file
+        assertEquals(500.5, expr.eval(reader));
+        assertEquals(500.5, reader.getVariable("ans"));
+        assertEquals(0, reader.getVersion());
+        writer.setVariable("rate", 2);
+        assertEquals(1, reader.getVersion());
+        assertEquals(1999.0, expr.eval(reader)); //the change is seen through the shared mapping
+        Map<String, Double> update = new HashMap<String, Double>();
+        update.put("c0", 10.0);
+        update.put("c1", 11.0);
+        writer.setVariables(update);
+        assertEquals(2, reader.getVersion());
+        assertEquals(21.0, Expression.parse("c0+c1").eval(reader));
+        writer.force();
+        assertEquals(1003, reader.getVariables().size()); //the file, x and ans
+        assertTrue(reader.getVariables().get("c0").isReadOnly());
+        assertEquals(10.0, MappedExpressionContext.open(file, false).getVariable("c0"));
+    }
+
+    public void testReadOnly() throws Exception{
+        Map<String, Double> constants = new HashMap<String, Double>();
+        constants.put("k", 1.0);
+        MappedExpressionContext.create(file, constants);
+        MappedExpressionContext reader = MappedExpressionContext.open(file, false);
+        try{
+            reader.setVariable("k", 2);
+            fail("A variable of a file mapped in read-only mode was set.");
+        }catch(ReadonlyException ex){
+            assertEquals(1.0, reader.getVariable("k"));
+        }
+        Map<String, Double> update = new HashMap<String, Double>();
+        update.put("a", 1.0);
+        update.put("k", 2.0);
+        try{
+            reader.setVariables(update);
+            fail("A variable of a file mapped in read-only mode was set.");
+        }catch(ReadonlyException ex){
+            assertFalse(reader.getVariables().containsKey("a")); //nothing was changed
+        }
+        try{
+            MappedExpressionContext.open(file, true).delVariable("k");
+            fail("A variable of the file was deleted.");
+        }catch(ReadonlyException ex){
+            //ok
+        }
+        reader.clear();
+        assertEquals(1.0, reader.getVariable("k"));
+    }
+
+    public void testInvalidFile() throws IOException{
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24});
+        out.close();
+        try{
+            MappedExpressionContext.open(file, false);
+            fail("An invalid file was opened.");
+        }catch(IOException ex){
+            //ok
+        }
+    }
+
+    public void testInvalidNames() throws Exception{
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        values.put("ab", 1.0);
+        values.put("cd", 2.0);
+        values.put("x", 3.0);
+        String[][] patches = {{"30", "ab", "Duplicate"}, {"34", "1", "Invalid"}}; //a repeated name, a name that isn't a valid symbol
+        for(String[] patch: patches){
+            MappedExpressionContext.create(file, values);
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            f.seek(Integer.parseInt(patch[0])); //the names start after the 24 bytes of the header, each one after its 2 bytes length
+            f.write(patch[1].getBytes("UTF-8"));
+            f.close();
+            try{
+                MappedExpressionContext.open(file, false);
+                fail("A file with invalid names was opened.");
+            }catch(IOException ex){
+                assertTrue(ex.getMessage(), ex.getMessage().startsWith(patch[2]));
+            }
+        }
+    }
+
+}
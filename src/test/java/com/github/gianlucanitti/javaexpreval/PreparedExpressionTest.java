@@ -0,0 +1,53 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+public class PreparedExpressionTest extends TestCase{
+
+    public void testSlots() throws ExpressionException{
+        PreparedExpression expr = Expression.parse("b*a+b^2").prepare();
+        String[] names = expr.getVariableNames();
+        assertEquals(2, names.length);
+        assertEquals("b", names[0]);
+        assertEquals("a", names[1]);
+        assertEquals(1, expr.getSlot("a"));
+        assertEquals(-1, expr.getSlot("c"));
+        assertEquals(10.0, expr.eval(new double[]{2, 3}));
+        try{
+            expr.eval(new double[]{1});
+            fail("A wrong number of values was accepted.");
+        }catch(IllegalArgumentException ex){
+            //ok
+        }
+    }
+
+    public void testSetters() throws ExpressionException{
+        PreparedExpression expr = Expression.parse("x-y").prepare(new ExpressionContext(), "x", "y");
+        expr.setValue(0, 5);
+        expr.setValue("y", 3);
+        assertEquals(2.0, expr.eval());
+        expr.setValue(1, -1);
+        assertEquals(6.0, expr.eval());
+        expr.clearValues();
+        assertEquals(0.0, expr.eval());
+        try{
+            expr.setValue("z", 1);
+            fail("A value was set for a variable that isn't bound to a slot.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
+    public void testContext() throws ExpressionException{
+        ExpressionContext c = new ExpressionContext();
+        c.setVariable("k", 10);
+        c.setFunction("f", Expression.parse("x*k"), "x"); //the argument named as the slot variable is bound by the function, not by the slot
+        PreparedExpression expr = Expression.parse("f(x+1)+x").prepare(c, "x");
+        assertEquals(32.0, expr.eval(new double[]{2}));
+        c.setVariable("k", 1);
+        assertEquals(5.0, expr.eval(new double[]{2})); //variables that aren't bound to slots are read at evaluation time
+        assertFalse(c.getVariables().containsKey("ans"));
+        assertFalse(c.getVariables().containsKey("x"));
+    }
+
+}
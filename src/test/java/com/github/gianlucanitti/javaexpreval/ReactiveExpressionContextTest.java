@@ -0,0 +1,170 @@
+package com.github.gianlucanitti.javaexpreval;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReactiveExpressionContextTest extends TestCase{
+
+    public void testFormulas() throws ExpressionException{
+        for(boolean eager: new boolean[]{false, true}){
+            ReactiveExpressionContext c = new ReactiveExpressionContext(eager);
+            c.setVariable("a", 2);
+            c.setFormula("b", Expression.parse("a*3"));
+            c.setFormula("c", Expression.parse("b+a"));
+            assertEquals(8.0, c.getVariable("c"));
+            c.setVariable("a", 5);
+            assertEquals(15.0, c.getVariable("b"));
+            assertEquals(20.0, c.getVariable("c"));
+            c.setFormula("b", Expression.parse("a-1"));
+            assertEquals(9.0, c.getVariable("c"));
+            assertEquals("(a-1.0)", c.getFormula("b").toString());
+            c.setVariable("b", 1); //replaces the formula
+            assertNull(c.getFormula("b"));
+            c.setVariable("a", 100);
+            assertEquals(1.0, c.getVariable("b"));
+            assertEquals(101.0, c.getVariable("c"));
+            Expression.parse("a+1").eval(c, null, true); //stores ans, which no formula reads
+            assertEquals(101.0, c.getVariable("c"));
+        }
+    }
+
+    public void testFunctions() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext();
+        c.setVariable("k", 2);
+        c.setFunction("f", Expression.parse("x*k"), "x");
+        c.setFormula("y", Expression.parse("f(3)"));
+        assertEquals(6.0, c.getVariable("y"));
+        c.setVariable("k", 10); //read by the body of f
+        assertEquals(30.0, c.getVariable("y"));
+        c.setVariable("j", 1);
+        c.setFunction("f", Expression.parse("x+j"), "x");
+        assertEquals(4.0, c.getVariable("y"));
+        c.setVariable("j", 2); //read by the new body of f
+        assertEquals(5.0, c.getVariable("y"));
+        c.delFunction("f", 1);
+        try{
+            c.getVariable("y");
+            fail("A formula calling an undefined function was evaluated.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
+    public void testIncremental() throws ExpressionException{
+        for(boolean eager: new boolean[]{false, true}){
+            ReactiveExpressionContext c = new ReactiveExpressionContext(eager);
+            for(int i = 0; i < 100; i++){
+                c.setVariable("x" + i, i);
+                c.setFormula("y" + i, Expression.parse("x" + i + "*2"));
+            }
+            c.setFormula("total", Expression.parse("y0+y1+y2"));
+            c.refresh();
+            long evaluations = c.getEvaluationCount();
+            c.setVariable("x50", 0);
+            assertEquals(0.0, c.getVariable("y50"));
+            assertEquals(evaluations + 1, c.getEvaluationCount());
+            c.setVariable("x1", 10);
+            assertEquals(20.0, c.getVariable("y1"));
+            assertEquals(24.0, c.getVariable("total"));
+            assertEquals(evaluations + 3, c.getEvaluationCount());
+            assertEquals(24.0, c.getVariable("total")); //not dirty anymore
+            assertEquals(evaluations + 3, c.getEvaluationCount());
+        }
+    }
+
+    public void testLazy() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext();
+        c.setVariable("a", 1);
+        c.setFormula("b", Expression.parse("a+1"));
+        assertEquals(0, c.getEvaluationCount());
+        assertFalse(c.getVariables().containsKey("b"));
+        c.refresh();
+        assertEquals(2.0, c.getVariables().get("b").getValue());
+        c.setVariable("a", 5);
+        c.setVariable("a", 6);
+        assertEquals(1, c.getEvaluationCount());
+        assertEquals(7.0, c.getVariable("b"));
+        assertEquals(2, c.getEvaluationCount());
+    }
+
+    public void testEager() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext(true);
+        c.setFormula("b", Expression.parse("a+1")); //a is not defined yet
+        assertFalse(c.getVariables().containsKey("b"));
+        c.setVariable("a", 1);
+        assertEquals(2.0, c.getVariables().get("b").getValue());
+        c.setVariable("a", 5);
+        assertEquals(6.0, c.getVariables().get("b").getValue());
+        c.delVariable("a");
+        try{
+            c.getVariable("b");
+            fail("A formula reading an undefined variable was evaluated.");
+        }catch(UndefinedException ex){
+            //ok
+        }
+    }
+
+    public void testCycles() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext();
+        c.setFormula("a", Expression.parse("b+1"));
+        c.setFormula("b", Expression.parse("c*2"));
+        try{
+            c.setFormula("c", Expression.parse("a-1"));
+            fail("A cyclic formula was defined.");
+        }catch(CyclicDependencyException ex){
+            assertNull(c.getFormula("c"));
+        }
+        try{
+            c.setFormula("d", Expression.parse("d+1"));
+            fail("A cyclic formula was defined.");
+        }catch(CyclicDependencyException ex){
+            //ok
+        }
+        c.setFunction("g", Expression.parse("x"), "x");
+        c.setFormula("c", Expression.parse("g(1)"));
+        assertEquals(3.0, c.getVariable("a"));
+        c.setFunction("g", Expression.parse("x+a"), "x"); //c now reads a through g
+        try{
+            c.getVariable("a");
+            fail("A cyclic formula was evaluated.");
+        }catch(CyclicDependencyException ex){
+            //ok
+        }
+        c.setFunction("g", Expression.parse("x*2"), "x");
+        assertEquals(5.0, c.getVariable("a"));
+    }
+
+    public void testReadonly() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext();
+        c.setVariable("r", true, 1);
+        try{
+            c.setFormula("r", Expression.parse("2"));
+            fail("A read-only variable was redefined by a formula.");
+        }catch(ReadonlyException ex){
+            assertEquals(1.0, c.getVariable("r"));
+        }
+        c.setFormula("s", Expression.parse("r*2"));
+        c.clear();
+        assertNull(c.getFormula("s"));
+        assertEquals(1.0, c.getVariable("r"));
+    }
+
+    public void testSetVariables() throws ExpressionException{
+        ReactiveExpressionContext c = new ReactiveExpressionContext(true);
+        c.setVariable("a", 1);
+        c.setVariable("b", 2);
+        c.setFormula("sum", Expression.parse("a+b"));
+        c.setFormula("a", Expression.parse("b*10"));
+        long evaluations = c.getEvaluationCount();
+        Map<String, Double> values = new HashMap<String, Double>();
+        values.put("a", 5.0);
+        values.put("b", 6.0);
+        c.setVariables(values);
+        assertEquals(evaluations + 1, c.getEvaluationCount()); //sum is evaluated once
+        assertNull(c.getFormula("a"));
+        assertEquals(11.0, c.getVariables().get("sum").getValue());
+    }
+
+}